@@ -0,0 +1,80 @@
+package chess;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Live analysis for the window: searches whatever position it was last given
+ * on its own engine, until the search reaches its maximum depth or the
+ * position changes.
+ *
+ * Each finished iteration is published as an immutable Snapshot through an
+ * AtomicReference, so the painting code reads the latest one without locks
+ * and never waits for the search. analyze() is cheap: it stops the running
+ * search by its limits and queues the next, which starts as soon as the old
+ * one has returned.
+ */
+final class AnalysisService {
+
+    /** One published iteration. Never changed after construction. */
+    static final class Snapshot {
+
+        static final Snapshot NONE = new Snapshot(0L, 0, 0, new int[0]);
+
+        final long key;                                         // hash of the position analyzed
+        final int score;                                        // centipawns (or Search's mate scores) for white
+        final int depth;
+        final int[] pv;                                         // not to be modified
+
+        Snapshot(long key, int score, int depth, int[] pv) {
+            this.key = key;
+            this.score = score;
+            this.depth = depth;
+            this.pv = pv;
+        }
+
+        int bestMove() {
+            return pv.length > 0 ? pv[0] : Move.NONE;
+        }
+    }
+
+    private final Engine engine;
+    private final AtomicReference<Snapshot> latest = new AtomicReference<>(Snapshot.NONE);
+    private Search.Limits current;                              // the last search started; used by one thread (the EDT)
+
+    AnalysisService(int threads, int hashMegabytes) {
+        engine = new Engine(threads, hashMegabytes);
+    }
+
+    void setTablebase(Tablebase tablebase) {
+        engine.setTablebase(tablebase);
+    }
+
+    /** The latest iteration, possibly of an earlier position: compare its key. */
+    Snapshot snapshot() {
+        return latest.get();
+    }
+
+    /** Starts analyzing pos (copied), dropping the analysis of the position before. */
+    void analyze(Position pos) {
+        stop();
+        long key = pos.hash;
+        int sign = pos.sideToMove == Piece.WHITE ? 1 : -1;
+        Search.Limits limits = new Search.Limits();
+        limits.listener = result -> {
+            if (! limits.stopped) latest.set(new Snapshot(key, sign * result.score, result.depth, result.pv));
+        };
+        current = limits;
+        engine.thinkAsync(pos, limits);
+    }
+
+    /** Stops the running analysis, if any; the last snapshot stays. */
+    void stop() {
+        if (current != null) current.stop();
+        current = null;
+    }
+
+    void shutdown() {
+        stop();
+        engine.shutdown();
+    }
+}
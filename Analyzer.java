@@ -0,0 +1,270 @@
+package chess;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Offline analysis of a file of positions, one FEN (or EPD) per line:
+ *
+ *   java chess.Game analyze positions.fen results.txt [depth] [threads] [hash MB]
+ *
+ * Each worker thread owns a Search and its own transposition table and takes
+ * positions from a shared queue. Results are written in input order, one
+ * tab-separated line per position: the input line, best move, score as UCI
+ * writes it, depth and nodes (or the input line and "error: ..." for a line
+ * that isn't a position). Blank lines and lines starting with '#' are skipped.
+ *
+ * At most window positions are between the reader and the output file at any
+ * time: the reader waits for a permit before queueing a line, and a permit
+ * comes back only when that line's result has been written. Results that
+ * finish early wait in a ring of window slots, so memory stays the same
+ * however long the input is.
+ *
+ * The output file is its own checkpoint. It is flushed with every progress
+ * report, and a run on an existing output keeps its complete lines, drops a
+ * partly written last one and starts at the position after them.
+ */
+final class Analyzer {
+
+    static final int DEFAULT_WINDOW = 1024;
+
+    private static final long REPORT_NANOS = 10_000_000_000L;       // progress line and flush every 10 s
+
+    private final int threads;
+    private final int hashMegabytes;                                // per worker
+    private final int window;
+    private int depth = 10;
+    private long nodes = Long.MAX_VALUE;
+    private long millis = Long.MAX_VALUE;
+    private Tablebase tablebase;
+    private Network network;
+
+    // One run's state
+    private BlockingQueue<Job> queue;
+    private Semaphore permits;
+    private AtomicReferenceArray<String> done;                      // result lines by sequence % window
+    private BufferedWriter out;
+    private long written;                                           // next sequence number to write
+    private final LongAdder totalNodes = new LongAdder();
+    private final Histogram searchTime = new Histogram();           // nanoseconds per position
+    private volatile IOException writeError;
+
+    private static final class Job {
+        final long sequence;
+        final String line;
+
+        Job(long sequence, String line) {
+            this.sequence = sequence;
+            this.line = line;
+        }
+    }
+
+    Analyzer(int threads, int hashMegabytes, int window) {
+        this.threads = Math.max(1, threads);
+        this.hashMegabytes = Math.max(1, hashMegabytes);
+        this.window = Math.max(this.threads, window);
+    }
+
+    /** Search limits per position; Long.MAX_VALUE for no node or time limit. */
+    void setLimits(int depth, long nodes, long millis) {
+        this.depth = Math.max(1, Math.min(Search.MAX_PLY - 1, depth));
+        this.nodes = nodes;
+        this.millis = millis;
+    }
+
+    void setTablebase(Tablebase tablebase) {
+        this.tablebase = tablebase;
+    }
+
+    void setNetwork(Network network) {
+        this.network = network;
+    }
+
+    /**
+     * Analyzes every position of input not already in output.
+     *
+     * @return the number of positions analyzed in this run
+     */
+    long run(Path input, Path output, PrintStream log) throws IOException, InterruptedException {
+
+        long resumed = checkpoint(output);
+        if (resumed > 0) log.println("Resuming after " + resumed + " positions already in " + output);
+
+        queue = new ArrayBlockingQueue<>(window + threads);
+        permits = new Semaphore(window);
+        done = new AtomicReferenceArray<>(window);
+        written = resumed;
+        totalNodes.reset();
+        searchTime.reset();
+        writeError = null;
+
+        long start = System.nanoTime();
+        Thread[] workers = new Thread[threads];
+        try (BufferedReader in = Files.newBufferedReader(input, StandardCharsets.UTF_8);
+             BufferedWriter writer = Files.newBufferedWriter(output, StandardCharsets.UTF_8,
+                     StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            out = writer;
+            for (int i = 0; i < threads; i++) {
+                workers[i] = new Thread(this::work, "analyze-" + (i + 1));
+                workers[i].setDaemon(true);
+                workers[i].start();
+            }
+
+            long sequence = 0;
+            long lastReport = start;
+            String line;
+            while ((line = in.readLine()) != null && writeError == null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                if (sequence < resumed) {
+                    sequence++;
+                    continue;
+                }
+                permits.acquire();
+                queue.put(new Job(sequence++, line));
+
+                long now = System.nanoTime();
+                if (now - lastReport >= REPORT_NANOS) {
+                    lastReport = now;
+                    synchronized (this) {
+                        out.flush();
+                    }
+                    report(log, resumed, now - start, false);
+                }
+            }
+
+            for (int i = 0; i < threads; i++) queue.put(new Job(-1, null));      // one stop per worker
+            for (Thread worker : workers) worker.join();
+            synchronized (this) {
+                out.flush();
+            }
+        } finally {
+            for (Thread worker : workers) {
+                if (worker != null) worker.interrupt();
+            }
+        }
+        if (writeError != null) throw writeError;
+        report(log, resumed, System.nanoTime() - start, true);
+        return written - resumed;
+    }
+
+    /* One worker: its own search and table, until it takes a stop job. */
+    private void work() {
+        Search search = new Search(new TranspositionTable(hashMegabytes));
+        search.setTablebase(tablebase);
+        search.setNetwork(network);
+        Position pos = new Position();
+        try {
+            while (true) {
+                Job job = queue.take();
+                if (job.sequence < 0) return;
+                finish(job.sequence, analyze(search, pos, job.line));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private String analyze(Search search, Position pos, String line) {
+        try {
+            pos.setFen(fen(line));
+            if (Long.bitCount(pos.pieces[Piece.make(Piece.WHITE, Piece.KING)]) != 1
+                    || Long.bitCount(pos.pieces[Piece.make(Piece.BLACK, Piece.KING)]) != 1) {
+                throw new IllegalArgumentException("not one king per side");
+            }
+            Search.Limits limits = Search.Limits.depth(depth);
+            limits.nodes = nodes;
+            limits.timeMillis = millis;
+            long begin = System.nanoTime();
+            Search.Result result = search.search(pos, limits);
+            searchTime.record(System.nanoTime() - begin);
+            totalNodes.add(result.nodes);
+            return line + '\t' + Move.toString(result.bestMove) + '\t' + result.scoreString()
+                    + '\t' + result.depth + '\t' + result.nodes;
+        } catch (RuntimeException e) {                              // a malformed line, or no king to search for
+            return line + "\terror: " + e;
+        }
+    }
+
+    /** The FEN fields of an EPD or FEN line: EPD operations such as "bm Nf3; id x;" after the fourth field are left out. */
+    static String fen(String line) {
+        String[] fields = line.split("\\s+");
+        if (fields.length > 4 && ! fields[4].matches("\\d+")) {
+            return String.join(" ", fields[0], fields[1], fields[2], fields[3]);
+        }
+        return line;
+    }
+
+    /* Stores a result and writes out every result that is now next in line, returning their permits. */
+    private void finish(long sequence, String result) {
+        done.set((int) (sequence % window), result);
+        synchronized (this) {
+            String next;
+            while ((next = done.get((int) (written % window))) != null) {
+                done.set((int) (written % window), null);
+                try {
+                    out.write(next);
+                    out.newLine();
+                } catch (IOException e) {
+                    writeError = e;
+                }
+                written++;
+                permits.release();
+            }
+        }
+    }
+
+    private void report(PrintStream log, long resumed, long elapsed, boolean last) {
+        long positions;
+        synchronized (this) {
+            positions = written - resumed;
+        }
+        double seconds = Math.max(1, elapsed) / 1e9;
+        log.printf("%s%d positions\t%.1f s\t%.1f positions/s\t%.2f Mnodes/s\tsearch p50 %.1f ms p99 %.1f ms%n",
+                last ? "Done: " : "", positions, seconds, positions / seconds, totalNodes.sum() / seconds / 1e6,
+                searchTime.percentile(0.5) / 1e6, searchTime.percentile(0.99) / 1e6);
+    }
+
+    /*
+     * The number of complete lines in output, or 0 if it doesn't exist. A last
+     * line without its newline, left by a run that was killed mid-write, is cut off.
+     */
+    private static long checkpoint(Path output) throws IOException {
+        if (! Files.exists(output)) return 0;
+        long lines = 0;
+        long end = 0;                                               // just past the last newline
+        long offset = 0;
+        byte[] buf = new byte[1 << 16];
+        try (InputStream in = Files.newInputStream(output)) {
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                for (int i = 0; i < n; i++) {
+                    if (buf[i] == '\n') {
+                        lines++;
+                        end = offset + i + 1;
+                    }
+                }
+                offset += n;
+            }
+        }
+        if (end < offset) {
+            try (FileChannel channel = FileChannel.open(output, StandardOpenOption.WRITE)) {
+                channel.truncate(end);
+            }
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,686 @@
+package chess;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Command-line benchmarks, run without the Swing window:
+ *
+ *   java chess.Bench perft [-generator legal|squares|all] [-depth N] [-warmup N] [-iterations N]
+ *   java chess.Bench smp [-threads 1,2,4,8,16] [-depth N] [-hash MB]
+ *   java chess.Bench parallel [-threads 1,2,4,8,16] [-depth N] [-hash MB]
+ *   java chess.Bench sessions [-sessions 100,1000,10000] [-moves N] [-nodes N] [-threads N] [-hash MB]
+ *   java chess.Bench pgn -file games.pgn [-iterations N]
+ *   java chess.Bench book -file book.bin [-iterations N]
+ *   java chess.Bench tablebase -file tablebases/ [-depth N]
+ *   java chess.Bench eval [-file network.nnue] [-iterations N]
+ *   java chess.Bench journal [-sessions N] [-moves N] [-force ms] [-file directory]
+ *   java chess.Bench training [-sessions N] [-moves N] [-file directory]
+ *
+ * Every run prints one tab-separated line per measurement so results can be
+ * collected per commit and diffed. The process exits with status 1 if any
+ * perft count differs from the published reference; the squares generator's
+ * counts, which can't match past shallow depths, are shown as DIFF instead.
+ */
+public class Bench {
+
+    private int warmup = 2;
+    private int iterations = 3;
+    private int depth = Integer.MAX_VALUE;
+    private String generator = "legal";
+    private String threads = "1,2,4,8,16";
+    private int hash = 64;
+    private String sessions = "100,1000,10000";
+    private int moves = 20;
+    private long nodes = 1000;
+    private String file;
+    private long force = 10;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) {
+
+        Bench bench = new Bench();
+        String mode = (args.length > 0 && ! args[0].startsWith("-")) ? args[0] : "perft";
+
+        for (int i = 0; i < args.length - 1; i++) {
+            switch (args[i]) {
+                case "-warmup": bench.warmup = Integer.parseInt(args[++i]); break;
+                case "-iterations": bench.iterations = Integer.parseInt(args[++i]); break;
+                case "-depth": bench.depth = Integer.parseInt(args[++i]); break;
+                case "-generator": bench.generator = args[++i]; break;
+                case "-threads": bench.threads = args[++i]; break;
+                case "-hash": bench.hash = Integer.parseInt(args[++i]); break;
+                case "-sessions": bench.sessions = args[++i]; break;
+                case "-moves": bench.moves = Integer.parseInt(args[++i]); break;
+                case "-nodes": bench.nodes = Long.parseLong(args[++i]); break;
+                case "-file": bench.file = args[++i]; break;
+                case "-force": bench.force = Long.parseLong(args[++i]); break;
+                default: break;
+            }
+        }
+
+        boolean passed;
+        switch (mode) {
+            case "perft": passed = bench.perft(); break;
+            case "smp": passed = bench.smp(); break;
+            case "parallel": passed = bench.parallel(); break;
+            case "sessions": passed = bench.sessions(); break;
+            case "pgn": passed = bench.pgn(); break;
+            case "book": passed = bench.book(); break;
+            case "tablebase": passed = bench.tablebase(); break;
+            case "eval": passed = bench.eval(); break;
+            case "journal": passed = bench.journal(); break;
+            case "training": passed = bench.training(); break;
+            default:
+                System.err.println("Unknown benchmark: " + mode);
+                passed = false;
+        }
+        System.exit(passed ? 0 : 1);
+    }
+
+    private List<Perft> generators() {
+        List<Perft> list = new ArrayList<>();
+        if (generator.equals("legal") || generator.equals("all")) list.add(new Perft.Legal());
+        if (generator.equals("squares") || generator.equals("all")) list.add(new Perft.Squares());
+        if (list.isEmpty()) throw new IllegalArgumentException("Unknown generator: " + generator);
+        return list;
+    }
+
+    private boolean perft() {
+
+        boolean passed = true;
+        System.out.println("generator\tposition\tdepth\tnodes\texpected\tresult\tms\tMnps\talloc MB/s\tB/node\tgc");
+
+        for (Perft perft : generators()) {
+            for (Perft.TestPosition test : Perft.SUITE) {
+
+                Position root = Position.fromFen(test.fen);
+                int d = Math.min(depth, test.benchDepth);
+
+                for (int i = 0; i < warmup; i++) perft.count(root, d);
+
+                long gcBefore = gcCount();
+                long allocBefore = allocatedBytes();
+                long start = System.nanoTime();
+
+                long nodes = 0;
+                for (int i = 0; i < iterations; i++) nodes = perft.count(root, d);
+
+                long elapsed = System.nanoTime() - start;
+                long allocated = allocatedBytes() - allocBefore;
+                long gcs = gcCount() - gcBefore;
+
+                long expected = test.counts[d - 1];
+                boolean ok = nodes == expected;
+                if (perft.exact) passed &= ok;          // the squares baseline is reported, not checked
+
+                double seconds = elapsed / 1e9;
+                System.out.printf("%s\t%s\t%d\t%d\t%d\t%s\t%.1f\t%.2f\t%.2f\t%.3f\t%d%n",
+                        perft.name, test.name, d, nodes, expected, ok ? "PASS" : perft.exact ? "FAIL" : "DIFF",
+                        elapsed / 1e6 / iterations,
+                        nodes * (double) iterations / seconds / 1e6,
+                        allocated / seconds / (1 << 20),
+                        allocated / (double) (nodes * iterations),
+                        gcs);
+            }
+        }
+        return passed;
+    }
+
+    /**
+     * Lazy SMP scaling: time to reach a fixed depth, nodes/s and the table's hit
+     * rate at each thread count, with speedups relative to the first count. Every
+     * run starts from a fresh engine so no thread count benefits from an already
+     * filled table.
+     */
+    private boolean smp() {
+
+        int d = (depth == Integer.MAX_VALUE) ? 10 : depth;
+        String[] fens = new String[] {Perft.SUITE[1].fen, Perft.SUITE[5].fen, Position.START_FEN};
+
+        // Warm the JIT so the first thread count is not penalised
+        new Engine(1, hash).think(Position.fromFen(fens[0]), Search.Limits.depth(Math.min(d, 8)));
+
+        System.out.println("threads\tdepth\tms\tnodes\tMnps\tspeedup\tnps scaling\ttt hit %");
+        double baseMillis = 0;
+        double baseNps = 0;
+
+        for (String count : threads.split(",")) {
+            int n = Integer.parseInt(count.trim());
+            Engine engine = new Engine(n, hash);
+
+            long millis = 0;
+            long nodes = 0;
+            long ttProbes = 0;
+            long ttHits = 0;
+            for (String fen : fens) {
+                long start = System.nanoTime();
+                Search.Result result = engine.think(Position.fromFen(fen), Search.Limits.depth(d));
+                millis += (System.nanoTime() - start) / 1_000_000;
+                nodes += result.nodes;
+                ttProbes += result.ttProbes;
+                ttHits += result.ttHits;
+            }
+            engine.shutdown();
+
+            double nps = nodes * 1000.0 / Math.max(1, millis);
+            if (baseMillis == 0) {
+                baseMillis = millis;
+                baseNps = nps;
+            }
+            System.out.printf("%d\t%d\t%d\t%d\t%.2f\t%.2f\t%.2f\t%.1f%n", n, d, millis, nodes, nps / 1e6,
+                    baseMillis / Math.max(1, millis), nps / baseNps, 100.0 * ttHits / Math.max(1, ttProbes));
+        }
+        return true;
+    }
+
+    /**
+     * Fork-join perft scaling from the start position (depth 6 by default): time
+     * and nodes/s at each thread count, without and with the shared perft hash,
+     * with speedups relative to the first count without it.
+     */
+    private boolean parallel() {
+
+        int d = (depth == Integer.MAX_VALUE) ? 6 : Math.min(depth, Perft.SUITE[0].counts.length);
+        Position root = Position.fromFen(Perft.SUITE[0].fen);
+        long expected = Perft.SUITE[0].counts[d - 1];
+
+        Perft.Parallel warm = new Perft.Parallel(1, 0, 2);
+        warm.count(root, Math.min(d, 5));
+        warm.shutdown();
+
+        boolean passed = true;
+        System.out.println("threads	hash MB	depth	nodes	result	ms	Mnps	speedup");
+        double baseMillis = 0;
+        for (String count : threads.split(",")) {
+            int n = Integer.parseInt(count.trim());
+            for (int mb : new int[] {0, hash}) {
+                Perft.Parallel perft = new Perft.Parallel(n, mb, 2);
+                long start = System.nanoTime();
+                long nodes = perft.count(root, d);
+                double millis = Math.max(1, (System.nanoTime() - start) / 1e6);
+                perft.shutdown();
+
+                boolean ok = nodes == expected;
+                passed &= ok;
+                if (baseMillis == 0) baseMillis = millis;
+                System.out.printf("%d\t%d\t%d\t%d\t%s\t%.0f\t%.2f\t%.2f%n", n, mb, d, nodes, ok ? "PASS" : "FAIL",
+                        millis, nodes / millis / 1e3, baseMillis / millis);
+            }
+        }
+        return passed;
+    }
+
+    /**
+     * Session server load test: every session plays a random legal move, the
+     * engine replies within a node budget, and so on for a fixed number of
+     * moves. Reports moves per second over all sessions and the latency from
+     * a move being submitted to the engine's reply being played.
+     */
+    private boolean sessions() {
+
+        int engineThreads = threads.contains(",") ? Runtime.getRuntime().availableProcessors()
+                : Integer.parseInt(threads);
+        System.out.println("sessions\tengine threads\tmoves\tms\tmoves/s\tmean ms\tp50 ms\tp99 ms\tmax ms\theap MB");
+
+        for (String count : sessions.split(",")) {
+            int n = Integer.parseInt(count.trim());
+            Search.Limits limits = Search.Limits.nodes(nodes);
+            SessionManager manager = new SessionManager(engineThreads, hash, limits);
+            java.util.concurrent.CountDownLatch done = new java.util.concurrent.CountDownLatch(n);
+
+            // The simulated client answers every engine move at once with a random legal move
+            SessionManager.Listener client = (session, move) -> {
+                int[] legal = new int[MoveGenerator.MAX_MOVES];
+                int legalCount = MoveGenerator.generate(session.state.position(), legal);
+                if (legalCount == 0 || session.movesPlayed() >= 2 * moves) {
+                    manager.close(session);
+                    done.countDown();
+                } else if (session.state.sideToMove() != session.engineSide) {
+                    manager.submit(session, legal[java.util.concurrent.ThreadLocalRandom.current().nextInt(legalCount)]);
+                }
+            };
+
+            long start = System.nanoTime();
+            for (int i = 0; i < n; i++) manager.open(Position.START_FEN, Piece.WHITE, client);
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            long millis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+
+            Runtime runtime = Runtime.getRuntime();
+            Histogram latency = manager.latency();
+            System.out.printf("%d\t%d\t%d\t%d\t%.0f\t%.2f\t%.2f\t%.2f\t%.2f\t%d%n", n, engineThreads,
+                    latency.count(), millis, latency.count() * 1000.0 / millis, latency.mean() / 1e6,
+                    latency.percentile(0.50) / 1e6, latency.percentile(0.99) / 1e6, latency.percentile(1.0) / 1e6,
+                    (runtime.totalMemory() - runtime.freeMemory()) >> 20);
+            manager.shutdown();
+        }
+        return true;
+    }
+
+    /**
+     * PGN import: replays every game of a file and tallies the results, as a
+     * bulk import would. Reports games and moves per second and the bytes
+     * allocated per game, which should stay near zero however large the file.
+     */
+    private boolean pgn() {
+
+        if (file == null) {
+            System.err.println("pgn needs -file");
+            return false;
+        }
+        long[] results = new long[4];                   // 1-0, 0-1, draw, other
+        PgnReader.Visitor tally = new PgnReader.Visitor() {
+            @Override
+            public void endGame(Position pos, CharSequence result, boolean error) {
+                int index = result.length() == 7 ? 2 : result.length() != 3 ? 3 : result.charAt(0) == '1' ? 0 : 1;
+                results[index]++;
+            }
+        };
+
+        System.out.println("games\tmoves\terrors\tms\tgames/s\tMmoves/s\tB/game\t1-0\t0-1\tdraw\tother");
+        boolean passed = true;
+        for (int i = 0; i < Math.max(1, iterations); i++) {
+            java.util.Arrays.fill(results, 0);
+            long allocBefore = allocatedBytes();
+            long start = System.nanoTime();
+            try (PgnReader reader = new PgnReader(java.nio.file.Paths.get(file))) {
+                reader.read(tally);
+                long elapsed = Math.max(1, System.nanoTime() - start);
+                long allocated = allocatedBytes() - allocBefore;
+                System.out.printf("%d\t%d\t%d\t%.1f\t%.0f\t%.2f\t%.1f\t%d\t%d\t%d\t%d%n", reader.games(), reader.moves(),
+                        reader.errors(), elapsed / 1e6, reader.games() * 1e9 / elapsed, reader.moves() * 1e3 / elapsed,
+                        allocated / (double) Math.max(1, reader.games()), results[0], results[1], results[2], results[3]);
+                passed &= reader.errors() == 0;
+            } catch (java.io.IOException e) {
+                System.err.println("Can't read " + file + ": " + e.getMessage());
+                return false;
+            }
+        }
+        return passed;
+    }
+
+    /**
+     * Opening book probes: plays random book lines from the start position
+     * until each leaves the book, a million probes per iteration. Reports
+     * probes per second, the mean line length and bytes allocated per probe.
+     */
+    private boolean book() {
+
+        if (file == null) {
+            System.err.println("book needs -file");
+            return false;
+        }
+        final int probes = 1_000_000;
+        System.out.println("entries	probes	lines	mean plies	ms	Mprobes/s	B/probe");
+        try (OpeningBook book = OpeningBook.open(java.nio.file.Paths.get(file))) {
+            Position start = Position.fromFen(Position.START_FEN);
+            Position pos = new Position(512);
+            for (int i = 0; i < warmup + Math.max(1, iterations); i++) {
+                long lines = 0;
+                long plies = 0;
+                long allocBefore = allocatedBytes();
+                long begin = System.nanoTime();
+                int line = 0;
+                pos.copyFrom(start);
+                for (int n = 0; n < probes; n++) {
+                    int move = line < 256 ? book.probe(pos) : Move.NONE;      // a book can hold a repetition
+                    if (move == Move.NONE) {
+                        lines++;
+                        line = 0;
+                        pos.copyFrom(start);
+                    } else {
+                        pos.makeMove(move);
+                        plies++;
+                        line++;
+                    }
+                }
+                long elapsed = Math.max(1, System.nanoTime() - begin);
+                long allocated = allocatedBytes() - allocBefore;
+                if (i < warmup) continue;
+                System.out.printf("%d	%d	%d	%.1f	%.1f	%.2f	%.3f%n", book.size(), probes, lines,
+                        plies / (double) Math.max(1, lines), elapsed / 1e6, probes * 1e3 / elapsed,
+                        allocated / (double) probes);
+            }
+        } catch (java.io.IOException e) {
+            System.err.println("Can't read " + file + ": " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Endgames searched to a fixed depth with and without the tablebase: nodes,
+     * time and score of each. With the tables the root's children are scored
+     * exactly, so the node count should collapse to about one per legal move.
+     */
+    private boolean tablebase() {
+
+        if (file == null) {
+            System.err.println("tablebase needs -file");
+            return false;
+        }
+        int d = (depth == Integer.MAX_VALUE) ? 12 : depth;
+        String[] fens = {
+                "8/8/8/4k3/8/8/8/KR6 w - - 0 1",                   // KRvK, mate in 15
+                "8/8/8/8/3k4/8/3r4/K2Q4 w - - 0 1",               // KQvKR, mate in 10
+                "8/8/8/3k4/8/8/4P3/4K3 w - - 0 1",                // KPvK, drawn
+                "8/8/1k6/8/8/2N5/8/K1B5 w - - 0 1",              // KBNvK, mate in 30
+        };
+
+        Tablebase tablebase;
+        try {
+            tablebase = Tablebase.open(java.nio.file.Paths.get(file));
+        } catch (java.io.IOException e) {
+            System.err.println("Can't read " + file + ": " + e.getMessage());
+            return false;
+        }
+        System.out.println("tables: " + tablebase.size());
+        System.out.println("position	tablebase	depth	nodes	tbhits	ms	score	best");
+
+        boolean passed = true;
+        for (String fen : fens) {
+            int expected = tablebase.probe(Position.fromFen(fen));
+            for (boolean useTables : new boolean[] {false, true}) {
+                Search search = new Search(new TranspositionTable(hash));
+                if (useTables) search.setTablebase(tablebase);
+                long start = System.nanoTime();
+                Search.Result result = search.search(Position.fromFen(fen), Search.Limits.depth(d));
+                long elapsed = System.nanoTime() - start;
+                System.out.printf("%s	%s	%d	%d	%d	%.1f	%d	%s%n", fen, useTables ? "yes" : "no", result.depth,
+                        result.nodes, search.tablebaseHits(), elapsed / 1e6, result.score, Move.toString(result.bestMove));
+                if (useTables && expected != Tablebase.NONE) passed &= result.score == Tablebase.score(expected, 0);
+            }
+        }
+        return passed;
+    }
+
+    /**
+     * Evaluations per second after every legal move of a few thousand positions
+     * from random games: the tables summed incrementally by make/unmake, the
+     * same tables summed from scratch, and a network (the -file one, or a
+     * random one of 256 hidden units written to and mapped back from a temp
+     * file). Fails if an incremental score or accumulator ever differs from
+     * the one computed from scratch.
+     */
+    private boolean eval() {
+
+        Network network;
+        try {
+            if (file != null) {
+                network = Network.load(java.nio.file.Paths.get(file));
+            } else {
+                java.nio.file.Path temp = java.nio.file.Files.createTempFile("bench", ".nnue");
+                Network.random(256, 32, 1).write(temp);
+                network = Network.load(temp);
+                java.nio.file.Files.delete(temp);
+            }
+        } catch (java.io.IOException e) {
+            System.err.println("Can't read network: " + e.getMessage());
+            return false;
+        }
+
+        // Positions along random games, checked against the from-scratch values on the way
+        java.util.Random random = new java.util.Random(42);
+        List<Position> samples = new ArrayList<>();
+        Position pos = new Position(512);
+        Position netPos = new Position(512);
+        netPos.setNetwork(network);
+        int[] moves = new int[MoveGenerator.MAX_MOVES];
+        int[] played = new int[120];
+        boolean passed = true;
+        while (samples.size() < 4000) {
+            pos.setFen(Position.START_FEN);
+            netPos.setFen(Position.START_FEN);
+            int ply = 0;
+            for (; ply < played.length; ply++) {
+                int n = MoveGenerator.generate(pos, moves);
+                if (n == 0) break;
+                int move = moves[random.nextInt(n)];
+                played[ply] = move;
+                pos.makeMove(move);
+                netPos.makeMove(move);
+                passed &= Evaluation.evaluate(pos) == Evaluation.evaluateFromScratch(pos);
+                passed &= netPos.accumulator.matches(netPos);
+                if (ply % 4 == 0) {
+                    Position sample = new Position(512);
+                    sample.copyFrom(pos);
+                    samples.add(sample);
+                }
+            }
+            for (int i = 0; i < 8 && ply > 0; i++) {
+                pos.unmakeMove(played[--ply]);
+                netPos.unmakeMove(played[ply]);
+                passed &= Evaluation.evaluate(pos) == Evaluation.evaluateFromScratch(pos);
+                passed &= netPos.accumulator.matches(netPos);
+            }
+        }
+        if (! passed) System.err.println("incremental evaluation differs from scratch");
+
+        System.out.println("evaluator	positions	evals	ms	Mevals/s	B/eval");
+        String[] names = {"tables", "tables-scratch", "network"};
+        Position work = new Position(512);
+        for (int mode = 0; mode < names.length; mode++) {
+            work.setNetwork(mode == 2 ? network : null);
+            for (int i = 0; i < warmup + Math.max(1, iterations); i++) {
+                long evals = 0;
+                long sum = 0;
+                long allocBefore = allocatedBytes();
+                long begin = System.nanoTime();
+                for (Position sample : samples) {
+                    work.copyFrom(sample);
+                    int n = MoveGenerator.generate(work, moves);
+                    for (int m = 0; m < n; m++) {
+                        work.makeMove(moves[m]);
+                        sum += mode == 1 ? Evaluation.evaluateFromScratch(work) : Evaluation.evaluate(work);
+                        work.unmakeMove(moves[m]);
+                    }
+                    evals += n;
+                }
+                long elapsed = Math.max(1, System.nanoTime() - begin);
+                long allocated = allocatedBytes() - allocBefore;
+                if (i < warmup || sum == Long.MIN_VALUE) continue;
+                System.out.printf("%s	%d	%d	%.1f	%.2f	%.3f%n", names[mode], samples.size(), evals,
+                        elapsed / 1e6, evals * 1e3 / elapsed, allocated / (double) evals);
+            }
+        }
+        return passed;
+    }
+
+    /**
+     * Game journal: random games for a number of sessions are appended move by
+     * move, interleaved across sessions as a server would, then read back and
+     * replayed as after a crash. Reports append and replay rates, and fails if
+     * a replayed game doesn't end in the position it was played to.
+     */
+    private boolean journal() {
+
+        int n = Integer.parseInt(sessions.split(",")[0].trim());
+        int plies = moves * 10;
+        java.util.Random random = new java.util.Random(7);
+        short[][] games = new short[n][];
+        String[] finalFens = new String[n];
+        int[] legal = new int[MoveGenerator.MAX_MOVES];
+        long total = 0;
+        for (int g = 0; g < n; g++) {
+            Position pos = Position.fromFen(Position.START_FEN);
+            short[] game = new short[plies];
+            int length = 0;
+            while (length < plies) {
+                int count = MoveGenerator.generate(pos, legal);
+                if (count == 0) break;
+                game[length] = (short) legal[random.nextInt(count)];
+                pos.makeMove(game[length++] & 0xFFFF);
+            }
+            games[g] = java.util.Arrays.copyOf(game, length);
+            finalFens[g] = pos.toFen();
+            total += length;
+        }
+
+        java.nio.file.Path directory;
+        try {
+            directory = file != null ? java.nio.file.Paths.get(file) : java.nio.file.Files.createTempDirectory("journal");
+            System.out.println("sessions	moves	force ms	append ms	appends/s	recover ms	Mmoves/s replayed	files");
+
+            long start = System.nanoTime();
+            try (Journal journal = new Journal(directory, force, Journal.DEFAULT_COMPACT_AFTER)) {
+                for (int g = 0; g < n; g++) journal.open(g + 1, Piece.BLACK, Position.START_FEN);
+                for (int ply = 0; ply < plies; ply++) {
+                    for (int g = 0; g < n; g++) {
+                        if (ply < games[g].length) journal.append(g + 1, games[g][ply] & 0xFFFF);
+                    }
+                }
+                journal.sync();
+            }
+            long appendNanos = Math.max(1, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            List<Journal.Entry> entries = Journal.recover(directory);
+            GameState[] states = new GameState[entries.size()];
+            long replayed = 0;
+            for (int i = 0; i < states.length; i++) {
+                Journal.Entry entry = entries.get(i);
+                states[i] = new GameState(entry.fen);
+                for (short move : entry.moves) states[i].replay(move & 0xFFFF);
+                replayed += entry.moves.length;
+            }
+            long recoverNanos = Math.max(1, System.nanoTime() - start);
+
+            boolean passed = states.length == n;
+            for (int i = 0; i < states.length && passed; i++) {
+                passed = states[i].position().toFen().equals(finalFens[(int) entries.get(i).id - 1]);
+            }
+            System.out.printf("%d	%d	%d	%.1f	%.0f	%.1f	%.2f	%d%n", n, total, force, appendNanos / 1e6,
+                    total * 1e9 / appendNanos, recoverNanos / 1e6, replayed * 1e3 / recoverNanos, entries.size());
+            if (! passed) System.err.println("a recovered game differs from the one journaled");
+
+            if (file == null) {
+                try (java.nio.file.DirectoryStream<java.nio.file.Path> files = java.nio.file.Files.newDirectoryStream(directory)) {
+                    for (java.nio.file.Path f : files) java.nio.file.Files.delete(f);
+                }
+                java.nio.file.Files.delete(directory);
+            }
+            return passed;
+        } catch (java.io.IOException e) {
+            System.err.println("Journal failed: " + e.getMessage());
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Training data: the positions of random games for a number of sessions
+     * are written a game at a time through TrainingData.Writer, across several
+     * shards, then read back through the mapped Reader. Reports both rates, and
+     * fails if a record doesn't give back its position, score and result.
+     */
+    private boolean training() {
+
+        int n = Integer.parseInt(sessions.split(",")[0].trim());
+        int plies = moves * 2;
+        java.util.Random random = new java.util.Random(7);
+        List<String> fens = new ArrayList<>();
+        int[] scores = new int[n * plies];
+        int[] results = new int[n * plies];
+        List<java.nio.ByteBuffer> batches = new ArrayList<>();
+        int[] legal = new int[MoveGenerator.MAX_MOVES];
+        for (int g = 0; g < n; g++) {
+            Position pos = Position.fromFen(Position.START_FEN);
+            java.nio.ByteBuffer batch = java.nio.ByteBuffer.allocate(TrainingData.RECORD_BYTES * plies)
+                    .order(java.nio.ByteOrder.LITTLE_ENDIAN);
+            for (int ply = 0; ply < plies; ply++) {
+                int count = MoveGenerator.generate(pos, legal);
+                if (count == 0) break;
+                int i = fens.size();
+                scores[i] = random.nextInt(4001) - 2000;
+                results[i] = g % 3;                             // BLACK_WINS, DRAW or WHITE_WINS
+                TrainingData.encode(pos, scores[i], TrainingData.DRAW, batch);
+                fens.add(pos.toFen());
+                pos.makeMove(legal[random.nextInt(count)]);
+            }
+            for (int offset = 0; offset < batch.position(); offset += TrainingData.RECORD_BYTES) {
+                TrainingData.setResult(batch, offset, g % 3);
+            }
+            batch.flip();
+            batches.add(batch);
+        }
+        int total = fens.size();
+
+        java.nio.file.Path directory;
+        try {
+            directory = file != null ? java.nio.file.Paths.get(file) : java.nio.file.Files.createTempDirectory("training");
+            System.out.println("games\trecords\tshards\twrite ms\tMrecords/s written\tread ms\tMrecords/s read");
+
+            long start = System.nanoTime();
+            try (TrainingData.Writer writer = new TrainingData.Writer(directory, Math.max(1, total / 4))) {
+                for (java.nio.ByteBuffer batch : batches) writer.write(batch);
+            }
+            long writeNanos = Math.max(1, System.nanoTime() - start);
+
+            boolean passed;
+            long readNanos;
+            int shards = 0;
+            try (java.nio.file.DirectoryStream<java.nio.file.Path> files =
+                         java.nio.file.Files.newDirectoryStream(directory, "shard-*" + TrainingData.EXTENSION)) {
+                for (java.nio.file.Path f : files) shards++;
+            }
+            try (TrainingData.Reader reader = new TrainingData.Reader(directory)) {
+                long first = reader.size() - total;                 // records already in a given directory come first
+                int[] inputs = new int[32];
+                long sum = 0;
+                start = System.nanoTime();
+                for (long i = Math.max(0, first); i < reader.size(); i++) {    // as a trainer reads them
+                    sum += reader.inputs(i, inputs) + reader.score(i) + reader.result(i);
+                }
+                readNanos = Math.max(1, System.nanoTime() - start);
+                passed = first >= 0 && sum != Long.MIN_VALUE;
+
+                Position pos = new Position();
+                for (int i = 0; i < total && passed; i++) {
+                    reader.position(first + i, pos);
+                    passed = pos.toFen().equals(fens.get(i)) && reader.score(first + i) == scores[i]
+                            && reader.result(first + i) == results[i];
+                }
+            }
+            System.out.printf("%d\t%d\t%d\t%.1f\t%.2f\t%.1f\t%.2f%n", n, total, shards, writeNanos / 1e6,
+                    total * 1e3 / writeNanos, readNanos / 1e6, total * 1e3 / readNanos);
+            if (! passed) System.err.println("a record read back differs from the one written");
+
+            if (file == null) {
+                try (java.nio.file.DirectoryStream<java.nio.file.Path> files = java.nio.file.Files.newDirectoryStream(directory)) {
+                    for (java.nio.file.Path f : files) java.nio.file.Files.delete(f);
+                }
+                java.nio.file.Files.delete(directory);
+            }
+            return passed;
+        } catch (java.io.IOException e) {
+            System.err.println("Training data failed: " + e.getMessage());
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    static long allocatedBytes() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+}
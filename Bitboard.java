@@ -0,0 +1,204 @@
+package chess;
+
+/**
+ * Bitboard constants and precomputed attack tables.
+ *
+ * Squares are numbered 0 (a1) to 63 (h8), i.e. square = (row - 1) * 8 + (col - 1)
+ * in the row/col convention used by Game. Sliding attacks use "fancy" magic
+ * bitboards: the relevant blockers are multiplied by a per-square magic number
+ * and the top bits of the product index a shared attack table, so a rook,
+ * bishop or queen lookup costs a mask, a multiply and a shift. The magic
+ * numbers were found once by a seeded random search and are checked for
+ * destructive collisions while the tables are filled.
+ */
+final class Bitboard {
+
+    static final long FILE_A = 0x0101010101010101L;
+    static final long FILE_B = FILE_A << 1;
+    static final long FILE_G = FILE_A << 6;
+    static final long FILE_H = FILE_A << 7;
+
+    static final long RANK_1 = 0xFFL;
+    static final long RANK_2 = RANK_1 << 8;
+    static final long RANK_3 = RANK_1 << 16;
+    static final long RANK_6 = RANK_1 << 40;
+    static final long RANK_7 = RANK_1 << 48;
+    static final long RANK_8 = RANK_1 << 56;
+
+    static final long[] KNIGHT_ATTACKS = new long[64];
+    static final long[] KING_ATTACKS = new long[64];
+    static final long[][] PAWN_ATTACKS = new long[2][64];       // indexed [color][square]
+
+    static final long[][] BETWEEN = new long[64][64];           // squares strictly between two aligned squares
+    static final long[][] LINE = new long[64][64];              // the whole line through two aligned squares, or 0
+
+    private static final int[][] ROOK_DIRECTIONS = {{1, 0}, {-1, 0}, {0, 1}, {0, -1}};
+    private static final int[][] BISHOP_DIRECTIONS = {{1, 1}, {1, -1}, {-1, 1}, {-1, -1}};
+
+    private static final long[] ROOK_MASKS = new long[64];
+    private static final long[] ROOK_MAGICS = new long[] {
+            0x1080004008801020L, 0x0840092002C03000L, 0x1900200010400900L, 0x0880100008000480L,
+            0x4200100420080200L, 0x8100020100080400L, 0x0200040110886200L, 0x0200008040220411L,
+            0x0404800084400220L, 0x0000401000402000L, 0x0086001081220440L, 0x0408800800100280L,
+            0x000A001201040820L, 0x8848800200840080L, 0x4001000100040200L, 0x0442000102105084L,
+            0x9080010020804100L, 0x0040404000201009L, 0x0000808010002009L, 0x2200090021D00100L,
+            0x0008008008040080L, 0x0004004002010040L, 0x0011040008015042L, 0x00000A0001768104L,
+            0x0000800080204009L, 0x2010004140002001L, 0x9800200280100080L, 0x1000100080080080L,
+            0x0442000A00049020L, 0x2100040080020080L, 0x0800120400900148L, 0x0010040A00128541L,
+            0x2800804000800030L, 0x1010002000400041L, 0x4000200011004100L, 0x0610008410800800L,
+            0x0400802402800800L, 0xC100020080800400L, 0x0002000802000401L, 0x0182085882000401L,
+            0x0220204000808000L, 0x2860100040024022L, 0x0001002004110040L, 0x99101042000A0020L,
+            0x0004080004008080L, 0x0010040002008080L, 0x2012004881020004L, 0x8300842444820011L,
+            0x0088403882010200L, 0x0820400080210100L, 0x0110910040A00300L, 0x0801100280080480L,
+            0x0242009008200600L, 0x1002000489500200L, 0x0040800200010080L, 0x0091800041000080L,
+            0x0000209300488001L, 0x04C1002414824001L, 0x020020000B001041L, 0x7000100004200901L,
+            0x8002002004100802L, 0x30010002084C0007L, 0x0888221800813004L, 0x4000002840840112L
+    };
+    private static final int[] ROOK_SHIFTS = new int[64];
+    private static final int[] ROOK_OFFSETS = new int[64];
+    private static final long[] ROOK_TABLE = new long[0x19000];     // 102400 entries for all squares
+
+    private static final long[] BISHOP_MASKS = new long[64];
+    private static final long[] BISHOP_MAGICS = new long[] {
+            0xA010041108003100L, 0x006082020A002900L, 0x6810010619200000L, 0x08281A0520000408L,
+            0x0001104001000400L, 0x0018901008048400L, 0x00040A0210245280L, 0x000200210808A402L,
+            0x9140048410821200L, 0x0800091010820041L, 0x20504804832202C0L, 0x0100091401081000L,
+            0x8021011140000012L, 0x0810020804450400L, 0x208B0542109008A2L, 0x0080084A08040204L,
+            0x0040E2A80811244CL, 0x2505022008008108L, 0x0430220100420040L, 0x010A040420220040L,
+            0x1105000290400000L, 0x0093001200822120L, 0x4000A62048043004L, 0x280120048A015004L,
+            0x006090002A020814L, 0x44042000240800D0L, 0x01102800040A4400L, 0x1004080080220040L,
+            0x0001001011004024L, 0x0010044000805040L, 0x0914041200820100L, 0x0004821012821480L,
+            0x0024040500C05021L, 0x0088611002080200L, 0x0116080A00040020L, 0x4000020080080080L,
+            0x2450450140840040L, 0x0000880201484100L, 0x0222020404020092L, 0x8081110600002E00L,
+            0x2842101105000801L, 0x1100809008001025L, 0x00020202221C0400L, 0x0422014022009020L,
+            0x0210046102100C00L, 0xC004008082029102L, 0x00AA461801101200L, 0x0404080080201108L,
+            0x020542108C205002L, 0x0410544804100100L, 0x0040910841100000L, 0x0400200042021100L,
+            0x00004204850400C0L, 0x0200100410A42102L, 0x1040020801210102L, 0x0805040410420000L,
+            0x2884804130100200L, 0x800C262201242000L, 0x1058000194108800L, 0x0014221054420204L,
+            0x0104000012A02200L, 0x0200881003300100L, 0x0140400202840100L, 0x0402020801010201L
+    };
+    private static final int[] BISHOP_SHIFTS = new int[64];
+    private static final int[] BISHOP_OFFSETS = new int[64];
+    private static final long[] BISHOP_TABLE = new long[0x1480];    // 5248 entries for all squares
+
+    static {
+        for (int sq = 0; sq < 64; sq++) {
+            KNIGHT_ATTACKS[sq] = leaperAttacks(sq, new int[][] {
+                    {1, 2}, {2, 1}, {2, -1}, {1, -2}, {-1, -2}, {-2, -1}, {-2, 1}, {-1, 2}});
+            KING_ATTACKS[sq] = leaperAttacks(sq, new int[][] {
+                    {1, 0}, {1, 1}, {0, 1}, {-1, 1}, {-1, 0}, {-1, -1}, {0, -1}, {1, -1}});
+            PAWN_ATTACKS[Piece.WHITE][sq] = leaperAttacks(sq, new int[][] {{1, -1}, {1, 1}});
+            PAWN_ATTACKS[Piece.BLACK][sq] = leaperAttacks(sq, new int[][] {{-1, -1}, {-1, 1}});
+        }
+        initMagics(ROOK_DIRECTIONS, ROOK_MASKS, ROOK_MAGICS, ROOK_SHIFTS, ROOK_OFFSETS, ROOK_TABLE);
+        initMagics(BISHOP_DIRECTIONS, BISHOP_MASKS, BISHOP_MAGICS, BISHOP_SHIFTS, BISHOP_OFFSETS, BISHOP_TABLE);
+
+        for (int a = 0; a < 64; a++) {
+            for (int b = 0; b < 64; b++) {
+                long ab = (1L << a) | (1L << b);
+                if (a != b && (rookAttacks(a, 0L) & (1L << b)) != 0) {
+                    BETWEEN[a][b] = rookAttacks(a, 1L << b) & rookAttacks(b, 1L << a);
+                    LINE[a][b] = (rookAttacks(a, 0L) & rookAttacks(b, 0L)) | ab;
+                } else if (a != b && (bishopAttacks(a, 0L) & (1L << b)) != 0) {
+                    BETWEEN[a][b] = bishopAttacks(a, 1L << b) & bishopAttacks(b, 1L << a);
+                    LINE[a][b] = (bishopAttacks(a, 0L) & bishopAttacks(b, 0L)) | ab;
+                }
+            }
+        }
+    }
+
+    private Bitboard() {}
+
+    static long rookAttacks(int sq, long occupied) {
+        return ROOK_TABLE[ROOK_OFFSETS[sq] + (int) (((occupied & ROOK_MASKS[sq]) * ROOK_MAGICS[sq]) >>> ROOK_SHIFTS[sq])];
+    }
+
+    static long bishopAttacks(int sq, long occupied) {
+        return BISHOP_TABLE[BISHOP_OFFSETS[sq]
+                + (int) (((occupied & BISHOP_MASKS[sq]) * BISHOP_MAGICS[sq]) >>> BISHOP_SHIFTS[sq])];
+    }
+
+    static long queenAttacks(int sq, long occupied) {
+        return rookAttacks(sq, occupied) | bishopAttacks(sq, occupied);
+    }
+
+    static int row(int sq) {
+        return sq >>> 3;
+    }
+
+    static int col(int sq) {
+        return sq & 7;
+    }
+
+    private static long leaperAttacks(int sq, int[][] offsets) {
+        long attacks = 0L;
+        for (int[] offset : offsets) {
+            int r = row(sq) + offset[0];
+            int c = col(sq) + offset[1];
+            if (r >= 0 && r < 8 && c >= 0 && c < 8) attacks |= 1L << (r * 8 + c);
+        }
+        return attacks;
+    }
+
+    /* Walks each ray until it leaves the board or hits a blocker; only used to fill the tables. */
+    private static long slidingAttacks(int sq, long occupied, int[][] directions) {
+        long attacks = 0L;
+        for (int[] dir : directions) {
+            int r = row(sq) + dir[0];
+            int c = col(sq) + dir[1];
+            while (r >= 0 && r < 8 && c >= 0 && c < 8) {
+                long b = 1L << (r * 8 + c);
+                attacks |= b;
+                if ((occupied & b) != 0) break;
+                r += dir[0];
+                c += dir[1];
+            }
+        }
+        return attacks;
+    }
+
+    /* Squares whose occupancy can change the attack set: the rays without their final edge square. */
+    private static long relevantMask(int sq, int[][] directions) {
+        long mask = 0L;
+        for (int[] dir : directions) {
+            int r = row(sq) + dir[0];
+            int c = col(sq) + dir[1];
+            while (r + dir[0] >= 0 && r + dir[0] < 8 && c + dir[1] >= 0 && c + dir[1] < 8) {
+                mask |= 1L << (r * 8 + c);
+                r += dir[0];
+                c += dir[1];
+            }
+        }
+        return mask;
+    }
+
+    private static void initMagics(int[][] directions, long[] masks, long[] magics, int[] shifts,
+                                   int[] offsets, long[] table) {
+        int offset = 0;
+
+        for (int sq = 0; sq < 64; sq++) {
+            long mask = relevantMask(sq, directions);
+            int bits = Long.bitCount(mask);
+            boolean[] filled = new boolean[1 << bits];
+
+            masks[sq] = mask;
+            shifts[sq] = 64 - bits;
+            offsets[sq] = offset;
+
+            // Enumerate every subset of the mask (Carry-Rippler trick)
+            long occ = 0L;
+            do {
+                int idx = (int) ((occ * magics[sq]) >>> shifts[sq]);
+                long attacks = slidingAttacks(sq, occ, directions);
+                if (filled[idx] && table[offset + idx] != attacks) {
+                    throw new IllegalStateException("Bad magic number for square " + sq);
+                }
+                filled[idx] = true;
+                table[offset + idx] = attacks;
+                occ = (occ - mask) & mask;
+            } while (occ != 0);
+
+            offset += filled.length;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package chess;
+
+/**
+ * A chess clock for both sides, with a Fischer increment and a simple (US)
+ * delay: each turn the first delay of thinking is free, and increment is
+ * added after every move made in time. A side whose time runs out has lost
+ * and its clock stays at zero.
+ *
+ * The clock is driven by turn(), called with the side to move whenever the
+ * game changes, and may be read from any thread.
+ */
+final class Clock {
+
+    private final long baseMillis;
+    private final long incrementMillis;
+    private final long delayMillis;
+
+    private final long[] remaining = new long[2];                   // milliseconds, not counting the running turn
+    private int running = Piece.NONE;                               // side whose clock runs, or NONE when stopped
+    private long turnStart;                                         // nanoTime the running turn started
+    private int flagged = Piece.NONE;
+
+    Clock(long baseMillis, long incrementMillis, long delayMillis) {
+        this.baseMillis = baseMillis;
+        this.incrementMillis = incrementMillis;
+        this.delayMillis = delayMillis;
+        reset();
+    }
+
+    /**
+     * A time control such as "5+3" (5 minutes, 3 seconds increment), "3d2"
+     * (3 minutes, 2 seconds delay) or "10"; minutes may have a fraction.
+     */
+    static Clock parse(String control) {
+        String[] parts = control.trim().split("(?=[+d])");
+        long base = Math.round(Double.parseDouble(parts[0]) * 60_000);
+        long increment = 0, delay = 0;
+        for (int i = 1; i < parts.length; i++) {
+            long millis = Math.round(Double.parseDouble(parts[i].substring(1)) * 1000);
+            if (parts[i].charAt(0) == '+') increment = millis;
+            else delay = millis;
+        }
+        return new Clock(base, increment, delay);
+    }
+
+    synchronized void reset() {
+        remaining[Piece.WHITE] = remaining[Piece.BLACK] = baseMillis;
+        running = Piece.NONE;
+        flagged = Piece.NONE;
+    }
+
+    /**
+     * Makes side's clock the running one. If the other side's was running, its
+     * turn is charged (less the delay) and the increment added. Calling it again
+     * for the side already running does nothing.
+     */
+    synchronized void turn(int side) {
+        if (flagged != Piece.NONE || side == running) return;
+        long now = System.nanoTime();
+        if (running != Piece.NONE) {
+            remaining[running] -= charged(now);
+            if (remaining[running] <= 0) {
+                flag(running);
+                return;
+            }
+            remaining[running] += incrementMillis;
+        }
+        running = side;
+        turnStart = now;
+    }
+
+    /** Stops both clocks, charging the running turn without an increment. */
+    synchronized void stop() {
+        if (running == Piece.NONE) return;
+        remaining[running] = Math.max(0, remaining[running] - charged(System.nanoTime()));
+        running = Piece.NONE;
+    }
+
+    /** Milliseconds side has left, counting the running turn; 0 once flagged. */
+    synchronized long remaining(int side) {
+        if (side != running) return remaining[side];
+        long left = remaining[side] - charged(System.nanoTime());
+        if (left <= 0 && flagged == Piece.NONE) flag(side);
+        return Math.max(0, left);
+    }
+
+    /** The side that ran out of time, or Piece.NONE. */
+    synchronized int flagged() {
+        if (running != Piece.NONE) remaining(running);
+        return flagged;
+    }
+
+    synchronized int running() {
+        return running;
+    }
+
+    long increment() {
+        return incrementMillis;
+    }
+
+    long delay() {
+        return delayMillis;
+    }
+
+    private long charged(long now) {
+        return Math.max(0, (now - turnStart) / 1_000_000 - delayMillis);
+    }
+
+    private void flag(int side) {
+        remaining[side] = 0;
+        flagged = side;
+        running = Piece.NONE;
+    }
+
+    /** m:ss, or s.t (with tenths) under ten seconds. */
+    static String format(long millis) {
+        if (millis < 10_000) return millis / 1000 + "." + millis / 100 % 10;
+        long seconds = (millis + 999) / 1000;
+        return seconds / 60 + (seconds % 60 < 10 ? ":0" : ":") + seconds % 60;
+    }
+}
@@ -0,0 +1,185 @@
+package chess;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The computer player: a pool of search threads sharing one transposition
+ * table (Lazy SMP).
+ *
+ * The thread calling think() runs the main search and owns the clock. Helper
+ * threads run the same iterative deepening on the same root without limits
+ * and are stopped as soon as the main search returns; they speed the main
+ * thread up through the entries they leave in the shared table.
+ *
+ * With an opening book set, a position found in the book is answered from it
+ * without searching; with a tablebase set, every thread scores the endings
+ * it covers from it.
+ */
+final class Engine {
+
+    private TranspositionTable tt;
+    private Search[] searches;
+    private ExecutorService pool;                                   // helper threads
+    private final ExecutorService mainThread = Executors.newSingleThreadExecutor(task -> {
+        Thread t = new Thread(task, "search-main");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private volatile OpeningBook book;                              // null for none
+    private Tablebase tablebase;                                    // null for none
+    private Network network;                                        // null for Evaluation's tables
+    private volatile Search.Limits mainLimits;
+    private volatile Search.Limits helperLimits;
+
+    Engine() {
+        this(1, 16);
+    }
+
+    Engine(int threads, int hashMegabytes) {
+        tt = new TranspositionTable(hashMegabytes);
+        setThreads(threads);
+    }
+
+    synchronized void setThreads(int threads) {
+        threads = Math.max(1, threads);
+        if (pool != null) pool.shutdownNow();
+
+        searches = new Search[threads];
+        for (int i = 0; i < threads; i++) {
+            searches[i] = new Search(tt, i);
+            searches[i].setTablebase(tablebase);
+            searches[i].setNetwork(network);
+        }
+
+        AtomicInteger count = new AtomicInteger();
+        pool = Executors.newFixedThreadPool(Math.max(1, threads - 1), task -> {
+            Thread t = new Thread(task, "search-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    synchronized void setHash(int megabytes) {
+        if (tt.megabytes() == megabytes) return;
+        tt = new TranspositionTable(megabytes);
+        setThreads(searches.length);
+    }
+
+    int threads() {
+        return searches.length;
+    }
+
+    /** The book to play from before searching, or null to always search. The engine doesn't close it. */
+    void setBook(OpeningBook book) {
+        this.book = book;
+    }
+
+    OpeningBook book() {
+        return book;
+    }
+
+    /** Endgame tables for every search thread, or null; waits for a running search to finish. */
+    synchronized void setTablebase(Tablebase tablebase) {
+        this.tablebase = tablebase;
+        for (Search search : searches) search.setTablebase(tablebase);
+    }
+
+    /** The evaluation network for every search thread, or null; waits for a running search to finish. */
+    synchronized void setNetwork(Network network) {
+        this.network = network;
+        for (Search search : searches) search.setNetwork(network);
+    }
+
+    /** Tablebase probes that ended a branch in the running search, over all threads. */
+    long tablebaseHits() {
+        long hits = 0;
+        for (Search search : searches) hits += search.tablebaseHits();
+        return hits;
+    }
+
+    TranspositionTable table() {
+        return tt;
+    }
+
+    /** Nodes visited by all threads in the running search, for progress reports. */
+    long nodes() {
+        long nodes = 0;
+        for (Search search : searches) nodes += search.nodes();
+        return nodes;
+    }
+
+    /**
+     * Searches root within limits and returns the deepest result found by any
+     * thread, with the node and table counts summed over all threads.
+     */
+    synchronized Search.Result think(Position root, Search.Limits limits) {
+
+        OpeningBook book = this.book;
+        int bookMove = book != null ? book.probe(root) : Move.NONE;
+        if (bookMove != Move.NONE) return new Search.Result(bookMove, 0, 0, 0, 1, new int[] {bookMove});
+
+        Search.Limits helpers = new Search.Limits();
+        helpers.depth = limits.depth;
+        mainLimits = limits;
+        helperLimits = helpers;
+
+        List<Future<Search.Result>> futures = new ArrayList<>();
+        for (int i = 1; i < searches.length; i++) {
+            Search helper = searches[i];
+            futures.add(pool.submit(() -> helper.search(root, helpers)));
+        }
+
+        Search.Result best = searches[0].search(root, limits);
+        helpers.stop();
+
+        long nodes = best.nodes;
+        long ttProbes = best.ttProbes;
+        long ttHits = best.ttHits;
+        for (Future<Search.Result> future : futures) {
+            try {
+                Search.Result result = future.get();
+                nodes += result.nodes;
+                ttProbes += result.ttProbes;
+                ttHits += result.ttHits;
+                if (result.depth > best.depth && result.bestMove != Move.NONE && Math.abs(result.score) < Search.MATE) {
+                    best = result;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Search thread failed", e.getCause());
+            }
+        }
+        return new Search.Result(best.bestMove, best.score, best.depth, nodes,
+                Math.max(best.millis, 1), best.pv, ttProbes, ttHits);
+    }
+
+    /** Runs think() on the engine's own main thread, for callers such as the Swing window that must not block. */
+    CompletableFuture<Search.Result> thinkAsync(Position root, Search.Limits limits) {
+        Position copy = new Position();
+        copy.copyFrom(root);
+        return CompletableFuture.supplyAsync(() -> think(copy, limits), mainThread);
+    }
+
+    /** Ends the running search, if any; think() then returns its best result so far. */
+    void stop() {
+        Search.Limits limits = mainLimits;
+        if (limits != null) limits.stop();
+        limits = helperLimits;
+        if (limits != null) limits.stop();
+    }
+
+    void shutdown() {
+        stop();
+        pool.shutdownNow();
+        mainThread.shutdownNow();
+    }
+}
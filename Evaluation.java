@@ -0,0 +1,146 @@
+package chess;
+
+/**
+ * Static evaluation in centipawns from the point of view of the side to move.
+ *
+ * Material and piece-square tables come in a middlegame and an endgame
+ * version, blended by how much non-pawn material is left (the game phase).
+ * Position keeps both sums and the phase up to date in put() and remove(),
+ * so evaluating costs a multiply and a divide rather than a pass over the
+ * board. When a Network is attached to the position its output is used
+ * instead.
+ */
+final class Evaluation {
+
+    static final int[] VALUES = new int[] {100, 320, 330, 500, 900, 0};     // indexed by piece type, for move ordering
+
+    static final int MAX_PHASE = 24;                                        // all minor and major pieces on the board
+
+    // Material, by piece type
+    private static final int[] MG_VALUES = {82, 337, 365, 477, 1025, 0};
+    private static final int[] EG_VALUES = {94, 281, 297, 512, 936, 0};
+    private static final int[] PHASE_WEIGHTS = {0, 1, 1, 2, 4, 0};
+
+    // Piece-square bonuses for white as seen from white's side: a8 first, h1 last
+    private static final int[][] MG_TABLES = {
+        {   0,   0,   0,   0,   0,   0,   0,   0,                           // pawn
+           50,  50,  50,  50,  50,  50,  50,  50,
+           10,  10,  20,  30,  30,  20,  10,  10,
+            5,   5,  10,  25,  25,  10,   5,   5,
+            0,   0,   0,  20,  20,   0,   0,   0,
+            5,  -5, -10,   0,   0, -10,  -5,   5,
+            5,  10,  10, -20, -20,  10,  10,   5,
+            0,   0,   0,   0,   0,   0,   0,   0 },
+        { -50, -40, -30, -30, -30, -30, -40, -50,                           // knight
+          -40, -20,   0,   0,   0,   0, -20, -40,
+          -30,   0,  10,  15,  15,  10,   0, -30,
+          -30,   5,  15,  20,  20,  15,   5, -30,
+          -30,   0,  15,  20,  20,  15,   0, -30,
+          -30,   5,  10,  15,  15,  10,   5, -30,
+          -40, -20,   0,   5,   5,   0, -20, -40,
+          -50, -40, -30, -30, -30, -30, -40, -50 },
+        { -20, -10, -10, -10, -10, -10, -10, -20,                           // bishop
+          -10,   0,   0,   0,   0,   0,   0, -10,
+          -10,   0,   5,  10,  10,   5,   0, -10,
+          -10,   5,   5,  10,  10,   5,   5, -10,
+          -10,   0,  10,  10,  10,  10,   0, -10,
+          -10,  10,  10,  10,  10,  10,  10, -10,
+          -10,   5,   0,   0,   0,   0,   5, -10,
+          -20, -10, -10, -10, -10, -10, -10, -20 },
+        {   0,   0,   0,   0,   0,   0,   0,   0,                           // rook
+            5,  10,  10,  10,  10,  10,  10,   5,
+           -5,   0,   0,   0,   0,   0,   0,  -5,
+           -5,   0,   0,   0,   0,   0,   0,  -5,
+           -5,   0,   0,   0,   0,   0,   0,  -5,
+           -5,   0,   0,   0,   0,   0,   0,  -5,
+           -5,   0,   0,   0,   0,   0,   0,  -5,
+            0,   0,   0,   5,   5,   0,   0,   0 },
+        { -20, -10, -10,  -5,  -5, -10, -10, -20,                           // queen
+          -10,   0,   0,   0,   0,   0,   0, -10,
+          -10,   0,   5,   5,   5,   5,   0, -10,
+           -5,   0,   5,   5,   5,   5,   0,  -5,
+            0,   0,   5,   5,   5,   5,   0,  -5,
+          -10,   5,   5,   5,   5,   5,   0, -10,
+          -10,   0,   5,   0,   0,   0,   0, -10,
+          -20, -10, -10,  -5,  -5, -10, -10, -20 },
+        { -30, -40, -40, -50, -50, -40, -40, -30,                           // king: stay castled
+          -30, -40, -40, -50, -50, -40, -40, -30,
+          -30, -40, -40, -50, -50, -40, -40, -30,
+          -30, -40, -40, -50, -50, -40, -40, -30,
+          -20, -30, -30, -40, -40, -30, -30, -20,
+          -10, -20, -20, -20, -20, -20, -20, -10,
+           20,  20,   0,   0,   0,   0,  20,  20,
+           20,  30,  10,   0,   0,  10,  30,  20 },
+    };
+
+    private static final int[][] EG_TABLES = {
+        {   0,   0,   0,   0,   0,   0,   0,   0,                           // pawn: passers run
+           80,  80,  80,  80,  80,  80,  80,  80,
+           50,  50,  50,  50,  50,  50,  50,  50,
+           30,  30,  30,  30,  30,  30,  30,  30,
+           15,  15,  15,  15,  15,  15,  15,  15,
+            5,   5,   5,   5,   5,   5,   5,   5,
+            0,   0,   0,   0,   0,   0,   0,   0,
+            0,   0,   0,   0,   0,   0,   0,   0 },
+        MG_TABLES[Piece.KNIGHT],
+        MG_TABLES[Piece.BISHOP],
+        MG_TABLES[Piece.ROOK],
+        MG_TABLES[Piece.QUEEN],
+        { -50, -40, -30, -20, -20, -30, -40, -50,                           // king: come to the centre
+          -30, -20, -10,   0,   0, -10, -20, -30,
+          -30, -10,  20,  30,  30,  20, -10, -30,
+          -30, -10,  30,  40,  40,  30, -10, -30,
+          -30, -10,  30,  40,  40,  30, -10, -30,
+          -30, -10,  20,  30,  30,  20, -10, -30,
+          -30, -30,   0,   0,   0,   0, -30, -30,
+          -50, -30, -30, -30, -30, -30, -30, -50 },
+    };
+
+    // [piece code][square]: material plus square bonus, negative for black, as Position adds them up
+    static final int[][] MG = new int[12][64];
+    static final int[][] EG = new int[12][64];
+    static final int[] PHASE = new int[12];
+
+    static {
+        for (int type = Piece.PAWN; type <= Piece.KING; type++) {
+            for (int sq = 0; sq < 64; sq++) {
+                MG[Piece.make(Piece.WHITE, type)][sq] = MG_VALUES[type] + MG_TABLES[type][sq ^ 56];
+                EG[Piece.make(Piece.WHITE, type)][sq] = EG_VALUES[type] + EG_TABLES[type][sq ^ 56];
+                MG[Piece.make(Piece.BLACK, type)][sq] = -(MG_VALUES[type] + MG_TABLES[type][sq]);
+                EG[Piece.make(Piece.BLACK, type)][sq] = -(EG_VALUES[type] + EG_TABLES[type][sq]);
+            }
+            PHASE[Piece.make(Piece.WHITE, type)] = PHASE_WEIGHTS[type];
+            PHASE[Piece.make(Piece.BLACK, type)] = PHASE_WEIGHTS[type];
+        }
+    }
+
+    private Evaluation() {}
+
+    static int evaluate(Position pos) {
+        if (pos.accumulator != null) return pos.accumulator.evaluate(pos.sideToMove);
+        int phase = Math.min(pos.phase, MAX_PHASE);                 // more than the start after promotions
+        int score = (pos.mgScore * phase + pos.egScore * (MAX_PHASE - phase)) / MAX_PHASE;
+        return pos.sideToMove == Piece.WHITE ? score : -score;
+    }
+
+    /** The same as evaluate() without a network, summed over the board; for checking the incremental sums. */
+    static int evaluateFromScratch(Position pos) {
+        int mg = 0, eg = 0, phase = 0;
+        for (int sq = 0; sq < 64; sq++) {
+            int piece = pos.pieceAt(sq);
+            if (piece == Piece.NONE) continue;
+            mg += MG[piece][sq];
+            eg += EG[piece][sq];
+            phase += PHASE[piece];
+        }
+        phase = Math.min(phase, MAX_PHASE);
+        int score = (mg * phase + eg * (MAX_PHASE - phase)) / MAX_PHASE;
+        return pos.sideToMove == Piece.WHITE ? score : -score;
+    }
+
+    /** Whether the side to move has anything besides pawns and king, i.e. zugzwang is unlikely. */
+    static boolean hasNonPawnMaterial(Position pos) {
+        int base = Piece.make(pos.sideToMove, Piece.PAWN);
+        return (pos.colors[pos.sideToMove] & ~pos.pieces[base + Piece.PAWN] & ~pos.pieces[base + Piece.KING]) != 0;
+    }
+}
@@ -1,11 +1,11 @@
 package chess;
 
-import java.io.File;
-import java.util.Arrays;
-import java.util.Objects;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import javax.imageio.ImageIO;
+import java.util.Arrays;
 import java.awt.image.BufferedImage;
 import java.awt.event.*;
 import javax.swing.*;
@@ -17,7 +17,7 @@ import java.awt.*;
  * Note: Rows increase from bottom to top, and Columns from left to right
  * */
 
-public class Game extends JFrame implements Runnable {
+public class Game extends JFrame {
 
     private static final int IFW = JComponent.WHEN_IN_FOCUSED_WINDOW;
 
@@ -41,17 +41,42 @@ public class Game extends JFrame implements Runnable {
 
     private int numbStartPieces = 32;
 
-    private int sleepTime = 100;
+    private int computerSide = Piece.BLACK;                                 // the "opponent" pieces are played by the engine
+    private long thinkTime = 1000;                                          // milliseconds per computer move when there is no clock
+    private Clock clock;                                                    // null for untimed play
+    private final Rectangle clockArea = new Rectangle();                    // right of the board, repainted as the clocks run
+    private Timer clockTimer;
 
     private String game_title = "Chess";
 
     private Color backgroundColor = new Color(65, 65, 45);
     private Color selectionColor = new Color(0, 241, 247);
     private Color availableColor = new Color(50, 247, 0);
+    private Color checkColor = new Color(247, 30, 0);
+    private Color bestMoveColor = new Color(0, 150, 255, 170);
+    private Color replyColor = new Color(255, 140, 0, 130);
     private Color blackSquare = new Color(0x312F14);
     private Color whiteSquare = new Color(0xF6FAC9);
 
-    private Thread gameThread;
+    private Engine engine;                                                  // search thread pool, created by start()
+    private int engineThreads = Runtime.getRuntime().availableProcessors();
+    private int hashSize = 64;                                              // transposition table size in MB
+    private boolean thinking = false;
+    private Tablebase tablebase;                                            // opened by start(), shared with the analysis
+
+    private AnalysisService analysis;                                       // live analysis overlay, created on first use
+    private boolean analyzing = false;                                      // toggled with Ctrl+A
+    private Timer analysisTimer;                                            // looks for a new snapshot once per display frame
+    private AnalysisService.Snapshot shownAnalysis = AnalysisService.Snapshot.NONE;
+    private final Rectangle evalBar = new Rectangle();
+    private final Rectangle overlayArea = new Rectangle();                  // the board and the eval bar with its label
+    private boolean ponder = true;                                          // think on the human's time about the expected reply
+    private boolean pondering = false;                                      // the running search is a ponder search
+    private Search.Limits searchLimits;                                     // the running search's
+    private long searchKey;                                                 // hash of the position it searches
+    private Search.Result ponderResult;                                     // a ponder search that finished before the human moved
+    private String bookFile = "book.bin";                                   // opening book, used when the file exists
+    private String tablebaseDirectory = "tablebases";                       // endgame tables, see TablebaseGenerator
 
     private DrawPane canvas;
     private Container window;
@@ -60,78 +85,206 @@ public class Game extends JFrame implements Runnable {
     private ArrayList<ChessSquare> chessSquares = new ArrayList<>();
     private ChessPiece[] chessPieces = new ChessPiece[numbStartPieces];
     private ArrayList<ChessPiece> takenPieces = new ArrayList<>();
-    private ArrayList<ChessSquare> availableSquares = new ArrayList<>();        // list of pointers to available squares
+
+    private GameState state = new GameState();                                  // the game itself; squares and pieces mirror it
+    private final GameState.Listener stateListener = changed -> {
+        if (clock != null) {
+            if (changed.isCheckmate() || changed.isStalemate()) clock.stop();
+            else clock.turn(changed.sideToMove());
+            canvas.repaint(clockArea);
+        }
+        syncPieces();
+        repaintChanged();
+        if (analyzing) {
+            analysis.analyze(changed.position());
+            canvas.repaint(overlayArea);                                    // the old position's arrows go
+        }
+        if (changed.sideToMove() == computerSide) computerMove();
+    };
+
+    private byte[] shownPieces = new byte[64];                                  // what each square showed when last repainted
+    private boolean[] shownOutlines = new boolean[64];
+    private final Rectangle dirty = new Rectangle();
 
     private ChessSquare firstClicked;                                           // first square selected (origin)
     private ChessSquare secondClicked;                                          // second square selected (destination)
 
     private class DrawPane extends JPanel {
 
-        /* This method is called implicitly. */
-        protected void paintComponent(Graphics g) {
+        private BufferedImage board;                    // squares, border and labels, redrawn only on resize
+        private BufferedImage[] sprites;                // piece images scaled for the screen's pixel density
+        private int spriteSquare;                       // square width in device pixels the sprites were scaled for
+        private final Rectangle clip = new Rectangle();
+        private final BasicStroke bestMoveStroke = new BasicStroke(8, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
+        private final BasicStroke replyStroke = new BasicStroke(5, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
+        private final Polygon tip = new Polygon();                // an arrow's head, refilled for each arrow
+        private Font clockFont;                                   // derived with the layout, not on every tick
 
-            LEFTBUFFER = (canvas.getSize().width / 2) - (BOARDWIDTH / 2);
-            TOPBUFFER = (canvas.getSize().height / 2) - (BOARDWIDTH / 2);
+        /* This method is called implicitly. Only the cached board, the pieces and outlines inside the clip are drawn. */
+        protected void paintComponent(Graphics g) {
 
-            g.setColor(backgroundColor);
-            g.fillRect(LEFTBUFFER - BOARDBUFFER, TOPBUFFER - BOARDBUFFER,
-                    BOARDWIDTH + (2 * BOARDBUFFER), BOARDHEIGHT + (2 * BOARDBUFFER));
+            Metrics.Paint event = Metrics.ENABLED ? new Metrics.Paint() : null;
+            long start = 0;
+            if (event != null) {
+                event.begin();
+                start = System.nanoTime();
+            }
 
-            // Draw the chess squares
-            int w_position, h_position;
-            for (int j = 0; j < COLS; j++) {
-                for (int i = 0; i < ROWS; i++) {
-                    if (i % 2 == 0) {
-                        if (j % 2 == 0) {
-                            g.setColor(whiteSquare);
-                        } else {
-                            g.setColor(blackSquare);
-                        }
+            if (board == null || board.getWidth() != getWidth() || board.getHeight() != getHeight()) layoutBoard();
 
-                    } else {
-                        if (j % 2 == 0) {
-                            g.setColor(blackSquare);
-                        } else {
-                            g.setColor(whiteSquare);
-                        }
-                    }
+            clip.setBounds(0, 0, getWidth(), getHeight());          // left as is when there is no clip
+            g.getClipBounds(clip);
+            g.drawImage(board, 0, 0, null);
 
-                    w_position = (j * SQUAREWIDTH) + LEFTBUFFER;
-                    h_position = (i * SQUAREWIDTH) + TOPBUFFER;
+            // Draw chess pieces
+            for (int i = 0; i < chessPieces.length; i++) {
+                ChessPiece piece = chessPieces[i];
+                if (piece == null || piece.row <= 0 || ! clip.intersects(piece.posx, piece.posy, SQUAREWIDTH, SQUAREWIDTH)) continue;
+                BufferedImage image = sprites[piece.sprite];
+                if (image != null) {
+                    g.drawImage(image, piece.posx, piece.posy,
+                            image.getWidth() * SQUAREWIDTH / spriteSquare, image.getHeight() * SQUAREWIDTH / spriteSquare, null);
+                }
 
-                    g.fillRect(w_position, h_position, SQUAREWIDTH, SQUAREWIDTH);
+                // Outline a king that is in check
+                if (piece instanceof King && ((King) piece).isInCheck()) {
+                    g.setColor(checkColor);
+                    g.drawRect(LEFTBUFFER + SQUAREWIDTH * (piece.col - 1), TOPBUFFER + SQUAREWIDTH * (ROWS - piece.row),
+                            SQUAREWIDTH, SQUAREWIDTH);
                 }
             }
 
-            // Draw chess pieces
-            if (Arrays.stream(chessPieces).noneMatch(Objects::isNull)) {
-                for (ChessPiece piece: chessPieces) {
-                    piece.updatePosition(piece.row, piece.col);
-                    g.drawImage(piece.image, piece.posx, piece.posy, null);
+            if (clock != null && clip.intersects(clockArea)) drawClocks(g);
+            if (analyzing && clip.intersects(overlayArea)) drawAnalysis(g);
+
+            // Draw selection boxes around selected squares
+            for (int i = 0; i < chessSquares.size(); i++) {
+                ChessSquare sq = chessSquares.get(i);
+                if (! (sq.selected || sq.available) || ! clip.intersects(sq.posx, sq.posy, SQUAREWIDTH + 1, SQUAREWIDTH + 1)) continue;
+                g.setColor(sq.selected ? selectionColor : availableColor);
+                g.drawRect(sq.posx, sq.posy, SQUAREWIDTH, SQUAREWIDTH);
+
+                /*  Displays row/col coordinate for every square
+                g.setColor(Color.CYAN);
+                g.drawString(sq.row + ", " + sq.col, sq.posx, sq.posy); */
+            }
+
+            if (event != null) {
+                Metrics.FRAME_TIME.record(System.nanoTime() - start);
+                event.end();
+                if (event.shouldCommit()) {
+                    event.width = clip.width;
+                    event.height = clip.height;
+                    event.full = clip.width >= getWidth() && clip.height >= getHeight();
+                    event.commit();
                 }
             }
+        }
 
-            // Draw selection boxes around selected squares
-            if (! chessSquares.isEmpty()) {
-                for (ChessSquare sq: chessSquares) {
-                    sq.updateWindowPosition();
-                    if (sq.selected){
-                        int[] xpoints = new int[] {sq.posx, sq.posx, sq.posx + SQUAREWIDTH, sq.posx + SQUAREWIDTH, sq.posx};
-                        int[] ypoints = new int[] {sq.posy, sq.posy + SQUAREWIDTH, sq.posy + SQUAREWIDTH, sq.posy, sq.posy};
-
-                        g.setColor(selectionColor);
-                        g.drawPolyline(xpoints, ypoints, 5);
-                    } else if (sq.available) {
-                        int[] xpoints = new int[] {sq.posx, sq.posx, sq.posx + SQUAREWIDTH, sq.posx + SQUAREWIDTH, sq.posx};
-                        int[] ypoints = new int[] {sq.posy, sq.posy + SQUAREWIDTH, sq.posy + SQUAREWIDTH, sq.posy, sq.posy};
-
-                        g.setColor(availableColor);
-                        g.drawPolyline(xpoints, ypoints, 5);
-                    }
+        /* Each side's time, the computer's level with the top of the board; the running clock in white, a flagged one in red. */
+        private void drawClocks(Graphics g) {
+            g.setFont(clockFont);
+            int flagged = clock.flagged();
+            int running = clock.running();
+            for (int side = Piece.WHITE; side <= Piece.BLACK; side++) {
+                int y = (side == computerSide) ? clockArea.y + 20 : clockArea.y + clockArea.height - 6;
+                g.setColor(side == flagged ? checkColor : side == running ? Color.WHITE : Color.GRAY);
+                g.drawString(Clock.format(clock.remaining(side)), clockArea.x, y);
+            }
+        }
+
+        /*
+         * The latest analysis of the position shown, read without locking: arrows
+         * for the best move and the expected reply, and a bar of white's expected
+         * score beside the board. A snapshot of an earlier position draws nothing.
+         */
+        private void drawAnalysis(Graphics g) {
+            AnalysisService.Snapshot snapshot = analysis.snapshot();
+            if (snapshot.key != state.position().hash || snapshot.pv.length == 0) return;
+
+            Graphics2D g2 = (Graphics2D) g;
+            Stroke stroke = g2.getStroke();
+            Object antialias = g2.getRenderingHint(RenderingHints.KEY_ANTIALIASING);
+            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            if (snapshot.pv.length > 1) drawArrow(g2, snapshot.pv[1], replyColor, replyStroke);
+            drawArrow(g2, snapshot.pv[0], bestMoveColor, bestMoveStroke);
+            g2.setStroke(stroke);
+
+            boolean mate = Math.abs(snapshot.score) >= Search.MATE - Search.MAX_PLY;
+            double share = mate ? (snapshot.score > 0 ? 1 : 0) : 1 / (1 + Math.pow(10, -snapshot.score / 400.0));
+            int white = (int) Math.round(evalBar.height * share);
+            g2.setColor(blackSquare);
+            g2.fillRect(evalBar.x, evalBar.y, evalBar.width, evalBar.height - white);
+            g2.setColor(whiteSquare);
+            g2.fillRect(evalBar.x, evalBar.y + evalBar.height - white, evalBar.width, white);
+
+            int cp = Math.abs(snapshot.score);
+            String label = mate ? "#" + (snapshot.score > 0 ? "" : "-") + (Search.MATE - cp + 1) / 2
+                    : (snapshot.score < 0 ? "-" : "+") + cp / 100 + (cp % 100 < 10 ? ".0" : ".") + cp % 100;
+            g2.setColor(Color.WHITE);
+            g2.drawString(label, evalBar.x + evalBar.width / 2 - g2.getFontMetrics().stringWidth(label) / 2,
+                    evalBar.y + evalBar.height + 16);
+            if (antialias != null) g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, antialias);
+        }
 
-                    /*  Displays row/col coordinate for every square
-                    g.setColor(Color.CYAN);
-                    g.drawString(sq.row + ", " + sq.col, sq.posx, sq.posy); */
+        /* An arrow from the center of move's origin square to near the center of its target. */
+        private void drawArrow(Graphics2D g, int move, Color color, BasicStroke stroke) {
+            int from = Move.from(move);
+            int to = Move.to(move);
+            double x1 = LEFTBUFFER + SQUAREWIDTH * (from % 8 + 0.5);
+            double y1 = TOPBUFFER + SQUAREWIDTH * (7 - from / 8 + 0.5);
+            double x2 = LEFTBUFFER + SQUAREWIDTH * (to % 8 + 0.5);
+            double y2 = TOPBUFFER + SQUAREWIDTH * (7 - to / 8 + 0.5);
+            double angle = Math.atan2(y2 - y1, x2 - x1);
+            double head = SQUAREWIDTH / 3.0;
+
+            g.setColor(color);
+            g.setStroke(stroke);
+            g.drawLine((int) x1, (int) y1, (int) (x2 - Math.cos(angle) * head), (int) (y2 - Math.sin(angle) * head));
+            tip.reset();
+            tip.addPoint((int) x2, (int) y2);
+            tip.addPoint((int) (x2 - Math.cos(angle - 0.45) * head), (int) (y2 - Math.sin(angle - 0.45) * head));
+            tip.addPoint((int) (x2 - Math.cos(angle + 0.45) * head), (int) (y2 - Math.sin(angle + 0.45) * head));
+            g.fillPolygon(tip);
+        }
+
+        /* Centers the board in the panel, moves every square and piece with it and redraws the cached board. */
+        private void layoutBoard() {
+
+            LEFTBUFFER = (getWidth() / 2) - (BOARDWIDTH / 2);
+            TOPBUFFER = (getHeight() / 2) - (BOARDHEIGHT / 2);
+            clockArea.setBounds(LEFTBUFFER + BOARDWIDTH + BOARDBUFFER + 8, TOPBUFFER, 80, BOARDHEIGHT);
+            evalBar.setBounds(LEFTBUFFER - BOARDBUFFER - 44, TOPBUFFER, 14, BOARDHEIGHT);
+            clockFont = getFont().deriveFont(Font.BOLD, 18f);
+            overlayArea.setBounds(evalBar.x - 20, TOPBUFFER, LEFTBUFFER + BOARDWIDTH - evalBar.x + 20, BOARDHEIGHT + 22);
+
+            chessSquares.forEach(ChessSquare::updateWindowPosition);
+            for (ChessPiece piece : chessPieces) {
+                if (piece != null && piece.row > 0) piece.updatePosition(piece.row, piece.col);
+            }
+
+            GraphicsConfiguration config = getGraphicsConfiguration();
+            double scale = (config != null) ? config.getDefaultTransform().getScaleX() : 1.0;
+            spriteSquare = (int) Math.round(SQUAREWIDTH * scale);
+            sprites = SpriteAtlas.get().forSquare(spriteSquare);
+
+            int w = Math.max(1, getWidth());
+            int h = Math.max(1, getHeight());
+            board = (config != null) ? config.createCompatibleImage(w, h) : new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+
+            Graphics2D g = board.createGraphics();
+            g.setColor(getBackground());
+            g.fillRect(0, 0, w, h);
+
+            g.setColor(backgroundColor);
+            g.fillRect(LEFTBUFFER - BOARDBUFFER, TOPBUFFER - BOARDBUFFER,
+                    BOARDWIDTH + (2 * BOARDBUFFER), BOARDHEIGHT + (2 * BOARDBUFFER));
+
+            // Draw the chess squares
+            for (int j = 0; j < COLS; j++) {
+                for (int i = 0; i < ROWS; i++) {
+                    g.setColor((i + j) % 2 == 0 ? whiteSquare : blackSquare);
+                    g.fillRect((j * SQUAREWIDTH) + LEFTBUFFER, (i * SQUAREWIDTH) + TOPBUFFER, SQUAREWIDTH, SQUAREWIDTH);
                 }
             }
 
@@ -142,6 +295,30 @@ public class Game extends JFrame implements Runnable {
                 g.drawString(columnNames[i], LEFTBUFFER + (int)(SQUAREWIDTH * (i + 0.5)), TOPBUFFER + (int)(SQUAREWIDTH * (COLS + 0.6)));
                 g.drawString(String.valueOf(ROWS - i), LEFTBUFFER - (SQUAREWIDTH / 2), TOPBUFFER + (SQUAREWIDTH * i) + 3 * SQUAREWIDTH / 4);
             }
+            g.dispose();
+        }
+    }
+
+    /**
+     * Asks Swing to repaint only the squares whose piece or outline changed
+     * since the last call, instead of the whole board.
+     */
+    private void repaintChanged() {
+        Position pos = state.position();
+        int king = pos.kingSquare(pos.sideToMove);
+        boolean check = pos.inCheck();
+
+        for (int i = 0; i < chessSquares.size(); i++) {
+            ChessSquare sq = chessSquares.get(i);
+            int index = sq.index();
+            byte piece = (byte) pos.pieceAt(index);
+            boolean outlined = sq.selected || sq.available || (check && index == king);
+            if (piece == shownPieces[index] && outlined == shownOutlines[index]) continue;
+
+            shownPieces[index] = piece;
+            shownOutlines[index] = outlined;
+            dirty.setBounds(sq.posx, sq.posy, SQUAREWIDTH + 1, SQUAREWIDTH + 1);
+            canvas.repaint(dirty);
         }
     }
 
@@ -196,150 +373,26 @@ public class Game extends JFrame implements Runnable {
             this.occupant = null;
         }
 
-        private ArrayList<ChessSquare> getAvailableMoves(ChessPiece piece) {
-
-            if (! availableSquares.isEmpty()) availableSquares.clear();
-
-            int index = chessSquares.indexOf(this);//this.getIndex(chessSquares);
-
-            switch (piece.name) {
-
-                case "pawn": {
-
-                    int rowIncrement =  (piece.side.equals("player")) ? 1 : -1;
-
-                    chessSquares.forEach(sq -> {
-
-                        if (sq.occupant == null) {      // empty squares pawn can move to
-
-                            if(sq.col == this.col && sq.row == this.row + rowIncrement) {
-                                availableSquares.add(sq);
-                            }
-
-                            else if (piece.inInitialPosition()) {
-                                if (sq.col == this.col && sq.row == this.row + (2 * rowIncrement)) {
-                                    availableSquares.add(sq);
-                                }
-                            }
-
-                        } else {            // squares that pawn can take a piece on
-
-                            if (Math.abs(sq.col - this.col) == 1 && (sq.row == this.row + rowIncrement)
-                                    && !(sq.occupant.side.equals(this.occupant.side))) {
-                                availableSquares.add(sq);
-                            }
-                        }
-
-                    }); break;
-                }
-
-                case "knight": {
-
-                    chessSquares.forEach(sq -> {
-
-                        int colDiff = Math.abs(sq.col - this.col);
-                        int rowDiff = Math.abs(sq.row - this.row);
-
-                        if (sq.occupant == null || !(sq.occupant.side.equals(this.occupant.side))) {        // if square is empty or enemy piece
-                            if (colDiff != rowDiff && (1 <= colDiff && colDiff <= 2) && (1 <= rowDiff && rowDiff <= 2)) {
-                                // if ! (WOULD PUT KING IN CHECK () )
-                                availableSquares.add(sq);
-                            }
-                        }
-
-                    }); break;
-                }
-
-                case "bishop": {
-
-                    int maxDist = 8;
-                    // Do this below?
-
-                    chessSquares.forEach(sq -> {
-
-                        int colDiff = Math.abs(sq.col - this.col);
-                        int rowDiff = Math.abs(sq.row - this.row);
-
-                        if (sq.occupant == null || !(sq.occupant.side.equals(this.occupant.side))) {        // if square is empty or enemy piece
-                            if (colDiff == rowDiff) {
-                                // if ! (WOULD PUT KING IN CHECK () )
-                                availableSquares.add(sq);
-                            }
-                        }
-                    }); break;
-                    // availableSquares.forEach(sq ->
-                    // if sq is blocked, remove);
-                }
-
-                case "rook": {
-                    int maxDist = 8;
-                    // Do this below?
-
-                    chessSquares.forEach(sq -> {
-
-                        int colDiff = Math.abs(sq.col - this.col);
-                        int rowDiff = Math.abs(sq.row - this.row);
-
-                        if (sq.occupant == null || !(sq.occupant.side.equals(this.occupant.side))) {        // if square is empty or enemy piece
-                            if ((colDiff > 0 && rowDiff == 0) || (rowDiff > 0 && colDiff == 0)){
-                                // if ! (WOULD PUT KING IN CHECK () )
-                                availableSquares.add(sq);
-                            }
-                        }
-                    }); break;
-                    // availableSquares.forEach(sq ->
-                    // if sq is blocked, remove);
-                }
-
-                case "queen": {
-                    int maxDist = 8;
-                    // Do this below?
-
-                    chessSquares.forEach(sq -> {
-
-                        int colDiff = Math.abs(sq.col - this.col);
-                        int rowDiff = Math.abs(sq.row - this.row);
-
-                        if (sq.occupant == null || !(sq.occupant.side.equals(this.occupant.side))) {        // if square is empty or enemy piece
-                            if (colDiff == rowDiff) {
-                                // if ! (WOULD PUT KING IN CHECK () )
-                                availableSquares.add(sq);
-
-                            } else if ((colDiff > 0 && rowDiff == 0) || (rowDiff > 0 && colDiff == 0)) {
-                                // if ! (WOULD PUT KING IN CHECK () )
-                                availableSquares.add(sq);
-                            }
-                        }
-                    }); break;
-                    // availableSquares.forEach(sq ->
-                    // if sq is blocked, remove);;
-                }
-                case "king": {
-
-                    chessSquares.forEach(sq -> {
-
-                        int colDiff = Math.abs(sq.col - this.col);
-                        int rowDiff = Math.abs(sq.row - this.row);
-
-                        if (sq.occupant == null || !(sq.occupant.side.equals(this.occupant.side))) {        // if square is empty or enemy piece
-                            if ((colDiff == 1 && rowDiff <= 1) || (rowDiff == 1 && colDiff <= 1)) {
-                                // if ! (WOULD PUT KING IN CHECK () )
-                                availableSquares.add(sq);
-                            }
-                        }
-                    }); break;
+        private int index() {
+            return (this.row - 1) * 8 + (this.col - 1);                 // same order as chessSquares
+        }
 
-                }
+        /* Marks the squares the occupant may move to; the game state holds the same pieces as the squares. */
+        private void showAvailableMoves() {
+            long targets = state.legalTargets(this.index());
+            while (targets != 0) {
+                chessSquares.get(Long.numberOfTrailingZeros(targets)).available = true;
+                targets &= targets - 1;
             }
+        }
 
-            return availableSquares;
+        private boolean canMoveTo(ChessSquare sq) {
+            return state.isLegalTarget(this.index(), sq.index());
         }
     }
 
     class ChessPiece {
 
-        private String pathToImages = "/home/alex/Documents/coding/java/games/src/chess_pieces/";
-
         private int[] initPos;                  // initial position
 
         int posx;
@@ -351,7 +404,7 @@ public class Game extends JFrame implements Runnable {
         String name;
         String side;
 
-        BufferedImage image = null;
+        int sprite;                             // index into SpriteAtlas, -1 once taken
 
         private boolean inInitialPosition(){
             return initPos[0] == this.row && initPos[1] == this.col;
@@ -367,25 +420,19 @@ public class Game extends JFrame implements Runnable {
         private void removeFromBoard() {
             this.row = -1;
             this.col = -1;
-            this.image = null;
+            this.sprite = -1;
 
         }
 
-        private void loadImage(String filename) {
-            try {
-                this.image = ImageIO.read(new File(pathToImages + filename));
-            } catch (IOException e) {
-                System.out.println("Invalid file path to image: " + pathToImages + filename);
-                e.printStackTrace();
-            }
+        int code() {
+            return Piece.make(side.equals("player") ? Piece.WHITE : Piece.BLACK, Piece.typeOf(name));
         }
 
-
-        private ChessPiece(int r, int c, String n, String imagepath, String playerOrOpponent) {
+        private ChessPiece(int r, int c, String n, int spriteIndex, String playerOrOpponent) {
             name = n;
             side = playerOrOpponent;
             updatePosition(r, c);
-            loadImage(imagepath);
+            sprite = spriteIndex;
             initPos = new int[] {r, c};         // Keep track of initial position
         }
     }
@@ -393,12 +440,12 @@ public class Game extends JFrame implements Runnable {
     private class King extends ChessPiece {
 
         private boolean isInCheck() {
-            /* do things here */
-            return false;
+            int color = Piece.color(code());
+            return row > 0 && state.position().isAttacked((row - 1) * 8 + (col - 1), color ^ 1);
         }
 
-        private King(int r, int c, String n, String imagepath, String playerOrOpponent) {
-            super(r, c, n, imagepath, playerOrOpponent);
+        private King(int r, int c, String n, int spriteIndex, String playerOrOpponent) {
+            super(r, c, n, spriteIndex, playerOrOpponent);
         }
 
     }
@@ -412,8 +459,6 @@ public class Game extends JFrame implements Runnable {
 
         while (ROWS*COLS >= i++) {
 
-            System.out.println(columnNames[col-1] + col);
-
             chessSquares.add(new ChessSquare(row, col, columnNames[col-1] + col));
 
             if (col < 8) col ++;
@@ -432,7 +477,7 @@ public class Game extends JFrame implements Runnable {
 
         int idx = 0;
         String side = "player";
-        String color = "white";
+        int color = Piece.WHITE;
 
         for (int j = 0; j < 2; j++) {
 
@@ -443,21 +488,21 @@ public class Game extends JFrame implements Runnable {
                 case "opponent": row = 8;
             }
 
-            chessPieces[idx++] = new ChessPiece(row, col++, "rook", "rook" + color + ".PNG", side);
+            chessPieces[idx++] = new ChessPiece(row, col++, "rook", Piece.make(color, Piece.ROOK), side);
 
-            chessPieces[idx++] = new ChessPiece(row, col++, "knight", "knightleft" + color + ".PNG", side);
+            chessPieces[idx++] = new ChessPiece(row, col++, "knight", Piece.make(color, Piece.KNIGHT), side);
 
-            chessPieces[idx++] = new ChessPiece(row, col++, "bishop", "bishop" + color + ".PNG", side);
+            chessPieces[idx++] = new ChessPiece(row, col++, "bishop", Piece.make(color, Piece.BISHOP), side);
 
-            chessPieces[idx++] = new ChessPiece(row, col++, "queen", "queen" + color + ".PNG", side);
+            chessPieces[idx++] = new ChessPiece(row, col++, "queen", Piece.make(color, Piece.QUEEN), side);
 
-            chessPieces[idx++] = new King(row, col++, "king", "king" + color + ".PNG", side);
+            chessPieces[idx++] = new King(row, col++, "king", Piece.make(color, Piece.KING), side);
 
-            chessPieces[idx++] = new ChessPiece(row, col++, "bishop", "bishop" + color + ".PNG", side);
+            chessPieces[idx++] = new ChessPiece(row, col++, "bishop", Piece.make(color, Piece.BISHOP), side);
 
-            chessPieces[idx++] = new ChessPiece(row, col++, "knight", "knightright" + color + ".PNG", side);
+            chessPieces[idx++] = new ChessPiece(row, col++, "knight", SpriteAtlas.KNIGHT_RIGHT + color, side);
 
-            chessPieces[idx++] = new ChessPiece(row, col, "rook", "rook" + color + ".PNG", side);
+            chessPieces[idx++] = new ChessPiece(row, col, "rook", Piece.make(color, Piece.ROOK), side);
 
             col = 1;
 
@@ -467,12 +512,12 @@ public class Game extends JFrame implements Runnable {
             }
 
             for (int k = 0; k < 8; k++) {
-                chessPieces[idx++] = new ChessPiece(row, col, "pawn", "pawn" + color  + ".PNG", side);
+                chessPieces[idx++] = new ChessPiece(row, col, "pawn", Piece.make(color, Piece.PAWN), side);
                 col++;
             }
 
             side = "opponent";
-            color = "black";
+            color = Piece.BLACK;
 
         }
 
@@ -485,6 +530,60 @@ public class Game extends JFrame implements Runnable {
         }
     }
 
+    /**
+     * Brings the squares and pieces back in line with the game state after it
+     * changes. Pieces that did not move keep their square, moved pieces are
+     * matched by type and side, and a pawn object is reused for a promoted piece.
+     */
+    private void syncPieces() {
+
+        Position pos = state.position();
+        boolean[] placed = new boolean[chessPieces.length];
+
+        chessSquares.forEach(ChessSquare::removeOccupant);
+
+        for (int i = 0; i < chessPieces.length; i++) {
+            ChessPiece piece = chessPieces[i];
+            if (piece.row > 0 && pos.pieceAt((piece.row - 1) * 8 + (piece.col - 1)) == piece.code()) {
+                chessSquares.get((piece.row - 1) * 8 + (piece.col - 1)).updateOccupant(piece);
+                placed[i] = true;
+            }
+        }
+
+        // First pass matches exact pieces, the second lets promotions take any spare piece of their side
+        for (int pass = 0; pass < 2; pass++) {
+            for (ChessSquare sq : chessSquares) {
+                int code = pos.pieceAt(sq.index());
+                if (code == Piece.NONE || sq.occupant != null) continue;
+
+                int match = -1;
+                for (int i = 0; i < chessPieces.length && match < 0; i++) {
+                    if (placed[i]) continue;
+                    if (chessPieces[i].code() == code
+                            || (pass == 1 && Piece.color(chessPieces[i].code()) == Piece.color(code))) match = i;
+                }
+                if (match < 0) continue;
+
+                ChessPiece piece = chessPieces[match];
+                if (piece.code() != code || piece.sprite < 0) {
+                    piece.name = Piece.NAMES[Piece.type(code)];
+                    piece.sprite = code;
+                }
+                piece.updatePosition(sq.row, sq.col);
+                sq.updateOccupant(piece);
+                placed[match] = true;
+            }
+        }
+
+        takenPieces.clear();
+        for (int i = 0; i < chessPieces.length; i++) {
+            if (! placed[i]) {
+                chessPieces[i].removeFromBoard();
+                takenPieces.add(chessPieces[i]);
+            }
+        }
+    }
+
     private void getClicked(int x, int y) {
 
         /* TODO: If a piece is double selected, have it show (blue) lines to all available squares it can move to!!*/
@@ -492,16 +591,15 @@ public class Game extends JFrame implements Runnable {
             // If click coordinates correspond to a square
             if (sq.posx <= x && x <= sq.posx + SQUAREWIDTH
                 && sq.posy <= y && y <= sq.posy + SQUAREWIDTH){
-                System.out.println("Selected square at " + sq.row + " " + sq.col);
+                if (Metrics.ENABLED) Metrics.CLICKS.increment();
                 sq.selected = true;
 
-                // if (sq.occupant != null) sq.getAvailableMoves(sq.occupant);
 
                 if (firstClicked == null) {
                     firstClicked = sq;
 
                     if (firstClicked.occupant != null) {
-                        firstClicked.getAvailableMoves(firstClicked.occupant).forEach(square -> square.available = true);
+                        firstClicked.showAvailableMoves();
                     }
 
                 } else if (secondClicked == null) {
@@ -519,12 +617,117 @@ public class Game extends JFrame implements Runnable {
                     firstClicked = secondClicked;
                     secondClicked = sq;
                 }
-                canvas.repaint();
+                repaintChanged();
                 break;
             }
         }
     }
 
+    /**
+     * Searches for the computer's reply on the engine's threads, so the window
+     * stays responsive, and plays it on the event dispatch thread. A reply that
+     * arrives after the position changed (undo, redo) is dropped.
+     *
+     * After each reply the engine ponders the position after the human's
+     * expected answer, the second move of its principal variation. If the
+     * human plays it, that search simply goes on with its clock limits (or its
+     * finished result is played at once); any other move stops it.
+     */
+    private void computerMove() {
+
+        if (engine == null || timeUp()) return;
+        long key = state.position().hash;
+
+        if (thinking) {
+            if (pondering && key == searchKey) {                    // ponder hit
+                pondering = false;
+                searchLimits.ponderHit();
+            } else if (pondering) {
+                engine.stop();                                      // ponder miss: searched() starts over
+            }
+            return;
+        }
+        Search.Result pondered = ponderResult;
+        ponderResult = null;
+        if (pondered != null && key == searchKey) {
+            play(pondered);
+            return;
+        }
+        search(state.position(), key, false);
+    }
+
+    /* Starts a search of root, whose hash is key, on the clock if there is one. */
+    private void search(Position root, long key, boolean ponder) {
+        Search.Limits limits = (clock == null) ? Search.Limits.time(thinkTime)
+                : Search.Limits.clock(clock.remaining(computerSide), clock.increment(), clock.delay(), 0);
+        limits.pondering = ponder;
+        thinking = true;
+        pondering = ponder;
+        searchLimits = limits;
+        searchKey = key;
+        engine.thinkAsync(root, limits).thenAccept(result -> SwingUtilities.invokeLater(() -> searched(result, limits)));
+    }
+
+    /* A search ended: plays its move if the position is still the one searched, else keeps or drops it. */
+    private void searched(Search.Result result, Search.Limits limits) {
+        thinking = false;
+        if (pondering) {                                            // the human hasn't played the expected move (yet)
+            pondering = false;
+            if (! limits.stopped) ponderResult = result;            // it ended early, at a mate or the depth limit
+        } else if (state.position().hash == searchKey && ! timeUp()) {
+            play(result);
+            return;
+        }
+        if (state.sideToMove() == computerSide) computerMove();
+    }
+
+    /* Plays the computer's move, then ponders the reply it expects. */
+    private void play(Search.Result result) {
+        state.play(result.bestMove);                                // listener updates squares and repaints
+        if (! ponder || result.pv.length < 2 || ! state.isLegal(result.pv[1]) || timeUp()) return;
+        Position next = new Position();
+        next.copyFrom(state.position());
+        next.makeMove(result.pv[1]);
+        search(next, next.hash, true);
+    }
+
+    /* Whether a side has run out of time; the game is then over. */
+    private boolean timeUp() {
+        return clock != null && clock.flagged() != Piece.NONE;
+    }
+
+    private class HistoryAction extends AbstractAction {
+
+        /**
+         * Action for Ctrl+Z / Ctrl+Y: takes back or replays the last move pair,
+         * or only the computer's move if it is still thinking about it.
+         */
+
+        private final boolean redo;
+
+        private HistoryAction(boolean redo) {
+            this.redo = redo;
+        }
+
+        @Override
+        public void actionPerformed(ActionEvent actionEvent) {
+
+            if (redo ? ! state.canRedo() : ! state.canUndo()) return;
+
+            int plies = (state.sideToMove() == computerSide) ? 1 : 2;
+            if (thinking) engine.stop();            // its reply is dropped once the position changes
+
+            if (firstClicked != null) firstClicked.selected = false;
+            if (secondClicked != null) secondClicked.selected = false;
+            firstClicked = null;
+            secondClicked = null;
+            chessSquares.forEach(square -> square.available = false);
+
+            if (redo) state.redo(plies);            // listener updates squares and repaints
+            else state.undo(plies);
+        }
+    }
+
     private class MoveAction extends AbstractAction {
 
         /**
@@ -546,40 +749,30 @@ public class Game extends JFrame implements Runnable {
 
         private void checkSquares() {           // Check selection status of squares
 
-            if (firstClicked == null || secondClicked == null || firstClicked.occupant == null) {
+            if (firstClicked == null || secondClicked == null || firstClicked.occupant == null
+                    || state.sideToMove() == computerSide || timeUp()) {
                 this.MOVEACTION = DONOTHING;
-                System.out.println("Checking two squares: false");
                 return;
             }
 
-            System.out.println("\nFirst clicked is square at row " + firstClicked.row + " col " + firstClicked.col
-                    + "\nFirst clicked occupant is at row " + firstClicked.occupant.row + " col " + firstClicked.occupant.col
-                    + ", and is a " + firstClicked.occupant.name);
-            System.out.println("\nSecond clicked is square at row " + secondClicked.row + " col " + secondClicked.col);
-            if (secondClicked.occupant != null) {
-                    System.out.println("\nSecond clicked occupant is at row " + secondClicked.occupant.row + " col " + secondClicked.occupant.col
-                    + ", and is a " + secondClicked.occupant.name);
-            }
-
             if (secondClicked.occupant == null) {
 
                 this.MOVEACTION = MOVETOEMPTY;
 
-            } else {
-
-                switch (secondClicked.occupant.side) {
+                if (firstClicked.occupant.name.equals("pawn") && firstClicked.col != secondClicked.col) {
+                    this.MOVEACTION = ENPASSANT;
+                }
 
-                    case "opponent": this.MOVEACTION = TAKEPIECE; break;
+            } else if (! secondClicked.occupant.side.equals(firstClicked.occupant.side)) {
 
-                    case "player": this.MOVEACTION = DONOTHING;
+                this.MOVEACTION = TAKEPIECE;
 
-                        if (firstClicked.occupant.name.equals("king") && secondClicked.occupant.name.equals("rook")) {
-                            this.MOVEACTION = DOCASTLE;
-                        }
+            } else {
 
-                        break;
+                this.MOVEACTION = DONOTHING;
 
-                    default: this.MOVEACTION = DONOTHING;
+                if (firstClicked.occupant.name.equals("king") && secondClicked.occupant.name.equals("rook")) {
+                    this.MOVEACTION = DOCASTLE;
                 }
             }
         }
@@ -588,20 +781,12 @@ public class Game extends JFrame implements Runnable {
 
             assert sq1.occupant != null;
 
-            if (sq1.getAvailableMoves(sq1.occupant).contains(sq2))
-                System.out.println("That is a valid move");
-            else {
-                System.out.println("That is not a valid move");
-                return;
-            }
-
+            boolean valid = sq1.canMoveTo(sq2);
+            record("move", sq1, sq2, valid);
+            if (! valid) return;
 
-            System.out.println("Moving " + sq1.occupant.name + " from " + sq1.toString() + " to " + sq2.toString());
-            secondClicked.updateOccupant(firstClicked.occupant);
-            firstClicked.removeOccupant();
-            secondClicked.occupant.updatePosition(secondClicked.row, secondClicked.col);
+            state.play(state.findMove(sq1.index(), sq2.index()));        // listener updates squares and repaints
 
-            canvas.repaint();
             clearSelected();        // This must be called AFTER canvas.repaint
         }
 
@@ -610,29 +795,16 @@ public class Game extends JFrame implements Runnable {
             try {
                 assert (!(sq1.occupant.side.equals(sq2.occupant.side)));
             } catch (AssertionError e) {
-                System.out.println("Couldn't take piece");
+                record("capture", sq1, sq2, false);
                 return;
             }
 
-            if (sq1.getAvailableMoves(sq1.occupant).contains(sq2))
-                System.out.println("That is a valid move");
-            else {
-                System.out.println("That is not a valid move");
-                return;
-            }
-
-            System.out.println("Taking " + sq2.occupant.side + " "+ sq2.occupant.name + " with "
-            + sq1.occupant.side + " " + sq1.occupant.name);
+            boolean valid = sq1.canMoveTo(sq2);
+            record("capture", sq1, sq2, valid);
+            if (! valid) return;
 
-            takenPieces.add(sq2.occupant);
-            sq2.occupant.removeFromBoard();
-            sq2.removeOccupant();
+            state.play(state.findMove(sq1.index(), sq2.index()));        // listener updates squares and repaints
 
-            sq2.updateOccupant(sq1.occupant);
-            sq1.removeOccupant();
-            sq2.occupant.updatePosition(sq2.row, sq2.col);
-
-            canvas.repaint();
             clearSelected();        // This must be called AFTER canvas.repaint
 
         }
@@ -642,7 +814,42 @@ public class Game extends JFrame implements Runnable {
                 assert (sq1.occupant.name.equals("king") && (sq2.occupant.name.equals("rook")));
             } catch (AssertionError ignored) {}
 
-            // Check that squares in between king and rook are empty
+            // The king moves two squares towards the rook; the move generator has already
+            // checked the squares in between are empty and not attacked
+            int to = sq1.index() + (sq2.col > sq1.col ? 2 : -2);
+            int move = state.findMove(sq1.index(), to);
+            record("castle", sq1, sq2, move != Move.NONE);
+            if (move == Move.NONE) return;
+
+            state.play(move);                                           // listener updates squares and repaints
+
+            clearSelected();
+        }
+
+        private void doEnPassant(ChessSquare sq1, ChessSquare sq2) {
+
+            int move = state.findMove(sq1.index(), sq2.index());
+            boolean valid = Move.flags(move) == Move.EN_PASSANT;
+            record("en passant", sq1, sq2, valid);
+            if (! valid) return;
+
+            state.play(move);                                           // listener updates squares and repaints
+
+            clearSelected();
+        }
+
+        /* Counts a move entered on the board and, with metrics on, records it for Flight Recorder. */
+        private void record(String action, ChessSquare sq1, ChessSquare sq2, boolean accepted) {
+            if (! Metrics.ENABLED) return;
+            (accepted ? Metrics.MOVES_ACCEPTED : Metrics.MOVES_REJECTED).increment();
+            Metrics.MoveInput event = new Metrics.MoveInput();
+            if (event.shouldCommit()) {
+                event.action = action;
+                event.from = sq1.toString();
+                event.to = sq2.toString();
+                event.accepted = accepted;
+                event.commit();
+            }
         }
 
         private void clearSelected() {
@@ -651,7 +858,7 @@ public class Game extends JFrame implements Runnable {
             if (secondClicked != null) secondClicked.selected = false;
             firstClicked = null;
             secondClicked = null;
-            canvas.repaint();
+            repaintChanged();
         }
 
         @Override
@@ -667,7 +874,9 @@ public class Game extends JFrame implements Runnable {
 
                 case TAKEPIECE: takePiece(firstClicked, secondClicked); break;
 
-                case DOCASTLE: // castle() ; break;
+                case DOCASTLE: doCastle(firstClicked, secondClicked); break;
+
+                case ENPASSANT: doEnPassant(firstClicked, secondClicked); break;
 
                 default: break;
             }
@@ -676,9 +885,167 @@ public class Game extends JFrame implements Runnable {
         }
     }
 
-    private Game() {
+    private class AnalysisAction extends AbstractAction {
+
+        /**
+         * Action for Ctrl+A: turns the live analysis overlay on or off. It runs
+         * on its own engine; the display checks for a new snapshot once per
+         * frame, so however often iterations finish, it repaints at most at
+         * the screen's refresh rate.
+         */
+
+        @Override
+        public void actionPerformed(ActionEvent actionEvent) {
+            analyzing = ! analyzing;
+            if (analyzing) {
+                if (analysis == null) {
+                    analysis = new AnalysisService(Math.max(1, engineThreads / 2), hashSize);
+                    analysis.setTablebase(tablebase);
+                    analysisTimer = new Timer(frameMillis(), e -> tickAnalysis());
+                }
+                analysis.analyze(state.position());
+                analysisTimer.start();
+            } else {
+                analysis.stop();
+                analysisTimer.stop();
+            }
+            canvas.repaint(overlayArea);
+        }
+    }
+
+    /* Repaints the overlay if a new snapshot was published since the last frame. */
+    private void tickAnalysis() {
+        AnalysisService.Snapshot latest = analysis.snapshot();
+        if (latest == shownAnalysis) return;
+        shownAnalysis = latest;
+        canvas.repaint(overlayArea);
+    }
+
+    /* Milliseconds per frame of the screen the window is on, or of a 60 Hz screen if unknown. */
+    private int frameMillis() {
+        GraphicsConfiguration config = getGraphicsConfiguration();
+        int rate = (config != null) ? config.getDevice().getDisplayMode().getRefreshRate() : DisplayMode.REFRESH_RATE_UNKNOWN;
+        return 1000 / (rate > 0 ? rate : 60);
+    }
+
+    private class FileAction extends AbstractAction {
 
+        /**
+         * Action for Ctrl+S / Ctrl+O: saves the game as PGN, or opens the first
+         * game of a PGN file or the position in a FEN file (*.fen).
+         */
+
+        private final boolean save;
+
+        private FileAction(boolean save) {
+            this.save = save;
+        }
+
+        @Override
+        public void actionPerformed(ActionEvent actionEvent) {
+
+            JFileChooser chooser = new JFileChooser();
+            int answer = save ? chooser.showSaveDialog(Game.this) : chooser.showOpenDialog(Game.this);
+            if (answer != JFileChooser.APPROVE_OPTION) return;
+            Path path = chooser.getSelectedFile().toPath();
+
+            try {
+                if (save) {
+                    try (java.io.Writer out = Files.newBufferedWriter(path)) {
+                        java.util.Map<String, String> tags = new java.util.HashMap<>();
+                        tags.put("Event", game_title);
+                        tags.put(computerSide == Piece.BLACK ? "Black" : "White", "Computer");
+                        Pgn.write(state, tags, out);
+                    }
+                } else if (path.toString().toLowerCase().endsWith(".fen")) {
+                    setState(new GameState(Files.readAllLines(path).get(0)));
+                } else {
+                    setState(readFirstGame(path));
+                }
+            } catch (IOException | RuntimeException e) {
+                JOptionPane.showMessageDialog(Game.this, "Could not " + (save ? "save to " : "open ") + path
+                        + ":\n" + e.getMessage());
+            }
+        }
+
+        /* The first game of a PGN file, played out move by move; a move the game rejects is reported, not skipped. */
+        private GameState readFirstGame(Path path) throws IOException {
+            String[] fen = {Position.START_FEN};
+            GameState[] game = {null};
+            int[] games = {0};
+
+            try (PgnReader reader = new PgnReader(path)) {
+                reader.read(new PgnReader.Visitor() {
+                    @Override
+                    public void tag(CharSequence name, CharSequence value) {
+                        if (games[0] == 0 && name.toString().equals("FEN")) fen[0] = value.toString();
+                    }
+
+                    @Override
+                    public boolean move(Position pos, int move) {
+                        if (games[0] > 0) return false;
+                        if (game[0] == null) game[0] = new GameState(fen[0]);
+                        if (! game[0].play(move)) {
+                            throw new IllegalArgumentException("illegal move " + Move.toString(move)
+                                    + " after " + game[0].moveCount() + " plies");
+                        }
+                        return true;
+                    }
+
+                    @Override
+                    public void endGame(Position pos, CharSequence result, boolean error) {
+                        if (games[0]++ == 0 && game[0] == null) game[0] = new GameState(fen[0]);
+                    }
+                });
+            }
+            if (games[0] == 0) throw new IOException("no game found");
+            return game[0];
+        }
+    }
+
+    /* Swaps in another game, e.g. one loaded from a file, and redraws the whole board. */
+    private void setState(GameState next) {
+        if (thinking) engine.stop();                                // its reply is dropped once the position changes
+        ponderResult = null;
+        state.removeListener(stateListener);
+        state = next;
+        state.addListener(stateListener);
+
+        if (firstClicked != null) firstClicked.selected = false;
+        if (secondClicked != null) secondClicked.selected = false;
+        firstClicked = null;
+        secondClicked = null;
+        chessSquares.forEach(square -> square.available = false);
+
+        syncPieces();
+        for (int i = 0; i < 64; i++) shownPieces[i] = (byte) state.position().pieceAt(i);
+        if (analyzing) analysis.analyze(state.position());
+        if (clock != null) {
+            clock.reset();
+            clock.turn(state.sideToMove());
+            clockTimer.start();
+        }
+        canvas.repaint();
+        if (state.sideToMove() == computerSide) computerMove();
+    }
+
+    /* The clock's display, repainted ten times a second; at a flag the engine stops and the game is over. */
+    private void tickClock() {
+        canvas.repaint(clockArea);
+        if (! timeUp()) return;
+        clockTimer.stop();
+        if (thinking) engine.stop();
+    }
+
+    private Game(Clock clock) {
+
+        this.clock = clock;
+
+        SpriteAtlas.get();                      // decode the piece images now, in parallel, rather than on first paint
         constructBoard();
+        for (int i = 0; i < 64; i++) shownPieces[i] = (byte) state.position().pieceAt(i);
+
+        state.addListener(stateListener);
 
         window = getContentPane();
 
@@ -714,6 +1081,23 @@ public class Game extends JFrame implements Runnable {
 
         canvas.getActionMap().put("Enter", new MoveAction());
 
+        canvas.getInputMap(IFW).put(KeyStroke.getKeyStroke("control Z"), "Undo");
+        canvas.getInputMap(IFW).put(KeyStroke.getKeyStroke("control Y"), "Redo");
+
+        canvas.getActionMap().put("Undo", new HistoryAction(false));
+        canvas.getActionMap().put("Redo", new HistoryAction(true));
+
+        canvas.getInputMap(IFW).put(KeyStroke.getKeyStroke("control S"), "Save");
+        canvas.getInputMap(IFW).put(KeyStroke.getKeyStroke("control O"), "Open");
+
+        canvas.getActionMap().put("Save", new FileAction(true));
+        canvas.getActionMap().put("Open", new FileAction(false));
+
+        canvas.getInputMap(IFW).put(KeyStroke.getKeyStroke("control A"), "Analysis");
+        canvas.getActionMap().put("Analysis", new AnalysisAction());
+
+        if (clock != null) clockTimer = new Timer(100, e -> tickClock());
+
         setVisible(true);
 
     }
@@ -721,24 +1105,103 @@ public class Game extends JFrame implements Runnable {
 /* TODO: provide parameters to start a custom configuration of game, EG the N queens problem, etc */
 
     synchronized private void start() {
-        if (gameThread == null || ! gameThread.isAlive()) {
-            gameThread = new Thread(this);
-            gameThread.start();
+        if (engine == null) {
+            engine = new Engine(engineThreads, hashSize);
+            if (Files.isReadable(Paths.get(bookFile))) {
+                try {
+                    engine.setBook(OpeningBook.open(Paths.get(bookFile)));
+                } catch (IOException e) {
+                    System.out.println("Could not open the opening book " + bookFile + ": " + e.getMessage());
+                }
+            }
+            try {
+                tablebase = Tablebase.open(Paths.get(tablebaseDirectory));
+                engine.setTablebase(tablebase);
+            } catch (IOException e) {
+                System.out.println("Could not open the tablebases in " + tablebaseDirectory + ": " + e.getMessage());
+            }
+        }
+        if (clock != null) {
+            clock.turn(state.sideToMove());
+            clockTimer.start();
         }
-        else
-            notify();
-    }
-
-    public void run() {
-        // run method for thread repeatedly calls repaint on canvas and adds short delay to iterations
         canvas.repaint();
-        try { Thread.sleep(sleepTime); } // wait a bit before starting
-        catch (InterruptedException ignored) {}
+        if (state.sideToMove() == computerSide) computerMove();
     }
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0 && args[0].equals("uci")) {        // engine only, for GUIs and tournament managers
+            new Uci(System.in, System.out).run();
+            System.exit(0);
+        }
+        if (args.length > 0 && args[0].equals("tablebase")) {   // tablebase [directory] [threads]
+            Path directory = Paths.get(args.length > 1 ? args[1] : "tablebases");
+            int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+            TablebaseGenerator.generate(directory, threads, System.out);
+            System.exit(0);
+        }
+        if (args.length >= 3 && args[0].equals("book")) {       // book games.pgn book.bin [plies] [min games]
+            int plies = args.length > 3 ? Integer.parseInt(args[3]) : 24;
+            int minGames = args.length > 4 ? Integer.parseInt(args[4]) : 2;
+            long entries = OpeningBook.build(Paths.get(args[1]), Paths.get(args[2]), plies, minGames);
+            System.out.println("Wrote " + entries + " entries to " + args[2]);
+            System.exit(0);
+        }
+        if (args.length >= 3 && args[0].equals("analyze")) {    // analyze in.fen out.txt [depth] [threads] [hash MB]
+            int threads = args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+            Analyzer analyzer = new Analyzer(threads, args.length > 5 ? Integer.parseInt(args[5]) : 16,
+                    Analyzer.DEFAULT_WINDOW);
+            analyzer.setLimits(args.length > 3 ? Integer.parseInt(args[3]) : 10, Long.MAX_VALUE, Long.MAX_VALUE);
+            analyzer.setTablebase(Tablebase.open(Paths.get("tablebases")));
+            try {
+                analyzer.run(Paths.get(args[1]), Paths.get(args[2]), System.out);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            System.exit(0);
+        }
+        if (args.length > 0 && args[0].equals("tournament")) {  // tournament [-openings file] [-games N] ..., see Tournament
+            try {
+                Tournament.fromArgs(args).run(System.out);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            System.exit(0);
+        }
+        if (args.length > 0 && args[0].equals("selfplay")) {    // selfplay [directory] [-games N] ..., see SelfPlay
+            try {
+                SelfPlay.fromArgs(args).run(System.out);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            System.exit(0);
+        }
+        if (args.length >= 2 && (args[0].equals("perft") || args[0].equals("divide"))) {   // perft|divide depth [threads] [hash MB] [fen]
+            int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+            Perft.Parallel perft = new Perft.Parallel(threads, args.length > 3 ? Integer.parseInt(args[3]) : 0, 2);
+            Position root = Position.fromFen(args.length > 4 ? String.join(" ", Arrays.copyOfRange(args, 4, args.length)) : Position.START_FEN);
+            int depth = Integer.parseInt(args[1]);
+            long start = System.nanoTime();
+            long nodes = 0;
+            if (args[0].equals("divide") && depth > 1) {
+                int[] moves = new int[MoveGenerator.MAX_MOVES];
+                long[] counts = new long[MoveGenerator.MAX_MOVES];
+                int n = perft.divide(root, depth, moves, counts);
+                for (int i = 0; i < n; i++) {
+                    System.out.println(Move.toString(moves[i]) + ": " + counts[i]);
+                    nodes += counts[i];
+                }
+                System.out.println();
+            } else {
+                nodes = perft.count(root, depth);
+            }
+            double millis = Math.max(1, (System.nanoTime() - start) / 1e6);
+            System.out.println("Nodes searched: " + nodes);
+            System.out.printf("%.0f ms, %.2f Mnps, %d threads%n", millis, nodes / millis / 1e3, perft.threads());
+            System.exit(0);
+        }
         System.out.println("Starting chess game");
-        Game chess = new Game();
+        Game chess = new Game(args.length > 0 ? Clock.parse(args[0]) : null);   // [time control], e.g. 5+3 or 3d2
         chess.start();
         chess.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
     }
@@ -0,0 +1,230 @@
+package chess;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A game in progress, without any display: the current position, the moves
+ * played so far and the pieces captured along the way.
+ *
+ * Moves only enter through play(), which accepts nothing but legal moves for
+ * the side to move, and leave through undo(); undone moves are kept for
+ * redo() until a different move is played. Views such as Game's DrawPane
+ * register a Listener and redraw from position() whenever the state changes.
+ *
+ * The legal moves of the current position are generated once, into a buffer
+ * the state owns, the first time they are asked for after a change, along
+ * with a table of each square's legal targets; a GameState is only used from
+ * one thread at a time, so nothing is shared and checking a move the user
+ * entered is a lookup.
+ */
+final class GameState {
+
+    interface Listener {
+        void stateChanged(GameState state);
+    }
+
+    private final Position position;
+    private final String startFen;
+
+    private short[] moves = new short[16];              // packed moves played, grown on demand
+    private byte[] captured = new byte[4];              // piece codes taken, in capture order
+    private int moveCount;
+    private int redoLimit;                              // moves[moveCount..redoLimit) were undone and may be redone
+    private int capturedCount;
+
+    private ArrayList<Listener> listeners;              // created on first use, most games have none
+
+    private final int[] legal = new int[MoveGenerator.MAX_MOVES];
+    private final long[] targets = new long[64];        // [from square] bitboard of legal to squares
+    private int legalCount = -1;                        // -1 until generated for the current position
+
+    GameState() {
+        this(Position.START_FEN);
+    }
+
+    GameState(String fen) {
+        position = Position.fromFen(fen);
+        startFen = position.toFen();
+    }
+
+    /** The live position; observers must treat it as read-only. */
+    Position position() {
+        return position;
+    }
+
+    /** The position the game started from, as FEN. */
+    String startFen() {
+        return startFen;
+    }
+
+    int sideToMove() {
+        return position.sideToMove;
+    }
+
+    int moveCount() {
+        return moveCount;
+    }
+
+    int moveAt(int index) {
+        return moves[index] & 0xFFFF;
+    }
+
+    int capturedCount() {
+        return capturedCount;
+    }
+
+    int capturedAt(int index) {
+        return captured[index];
+    }
+
+    void addListener(Listener listener) {
+        if (listeners == null) listeners = new ArrayList<>(1);
+        listeners.add(listener);
+    }
+
+    void removeListener(Listener listener) {
+        if (listeners != null) listeners.remove(listener);
+    }
+
+    /** Bitboard of squares the piece on from may legally move to. */
+    long legalTargets(int from) {
+        generateLegal();
+        return targets[from];
+    }
+
+    /** Whether the piece on from has a legal move to to. */
+    boolean isLegalTarget(int from, int to) {
+        generateLegal();
+        return (targets[from] & (1L << to)) != 0;
+    }
+
+    private void generateLegal() {
+        if (legalCount >= 0) return;
+        Arrays.fill(targets, 0L);
+        legalCount = MoveGenerator.generate(position, legal);
+        for (int i = 0; i < legalCount; i++) targets[Move.from(legal[i])] |= 1L << Move.to(legal[i]);
+    }
+
+    /**
+     * The legal move from one square to another, or Move.NONE. Pawns reaching
+     * the last row are promoted to a queen.
+     */
+    int findMove(int from, int to) {
+        if (! isLegalTarget(from, to)) return Move.NONE;
+        for (int i = 0; i < legalCount; i++) {
+            int move = legal[i];
+            if (Move.from(move) == from && Move.to(move) == to
+                    && (! Move.isPromotion(move) || Move.promotionType(move) == Piece.QUEEN)) {
+                return move;
+            }
+        }
+        return Move.NONE;
+    }
+
+    /** Plays a move if it is legal in the current position; returns whether it was played. */
+    boolean play(int move) {
+
+        if (move == Move.NONE || ! isLegal(move)) return false;
+        apply(move);
+        fireStateChanged();
+        return true;
+    }
+
+    /**
+     * Plays a move known to be legal, such as one read back from a Journal,
+     * without generating moves to check it and without telling listeners.
+     */
+    void replay(int move) {
+        apply(move);
+    }
+
+    private void apply(int move) {
+        int victim = Piece.NONE;
+        if (Move.flags(move) == Move.EN_PASSANT) victim = Piece.make(position.sideToMove ^ 1, Piece.PAWN);
+        else if (Move.isCapture(move)) victim = position.pieceAt(Move.to(move));
+
+        position.makeMove(move);
+        legalCount = -1;
+
+        if (moveCount == moves.length) moves = Arrays.copyOf(moves, moveCount * 2);
+        redoLimit = (moveCount < redoLimit && moves[moveCount] == (short) move) ? redoLimit : moveCount + 1;
+        moves[moveCount++] = (short) move;
+
+        if (victim != Piece.NONE) {
+            if (capturedCount == captured.length) captured = Arrays.copyOf(captured, capturedCount * 2);
+            captured[capturedCount++] = (byte) victim;
+        }
+    }
+
+    boolean canUndo() {
+        return moveCount > 0;
+    }
+
+    boolean canRedo() {
+        return moveCount < redoLimit;
+    }
+
+    /** Takes back up to plies moves, notifying listeners once; returns how many were taken back. */
+    int undo(int plies) {
+        int n = 0;
+        while (n < plies && moveCount > 0) {
+            int move = moves[--moveCount] & 0xFFFF;
+            position.unmakeMove(move);
+            if (Move.isCapture(move)) capturedCount--;
+            n++;
+        }
+        legalCount = -1;
+        if (n > 0) fireStateChanged();
+        return n;
+    }
+
+    /** Replays up to plies undone moves, notifying listeners once; returns how many were replayed. */
+    int redo(int plies) {
+        int n = 0;
+        while (n < plies && moveCount < redoLimit) {
+            int move = moves[moveCount] & 0xFFFF;
+            if (Move.isCapture(move)) {
+                int victim = Move.flags(move) == Move.EN_PASSANT
+                        ? Piece.make(position.sideToMove ^ 1, Piece.PAWN) : position.pieceAt(Move.to(move));
+                captured[capturedCount++] = (byte) victim;
+            }
+            position.makeMove(move);
+            moveCount++;
+            n++;
+        }
+        legalCount = -1;
+        if (n > 0) fireStateChanged();
+        return n;
+    }
+
+    boolean isLegal(int move) {
+        if (! isLegalTarget(Move.from(move), Move.to(move))) return false;
+        for (int i = 0; i < legalCount; i++) {
+            if (legal[i] == move) return true;
+        }
+        return false;
+    }
+
+    boolean isCheck() {
+        return position.inCheck();
+    }
+
+    boolean isCheckmate() {
+        return position.inCheck() && ! hasLegalMove();
+    }
+
+    boolean isStalemate() {
+        return ! position.inCheck() && ! hasLegalMove();
+    }
+
+    private boolean hasLegalMove() {
+        generateLegal();
+        return legalCount > 0;
+    }
+
+    private void fireStateChanged() {
+        if (listeners == null) return;
+        for (Listener listener : listeners) listener.stateChanged(this);
+    }
+}
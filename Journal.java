@@ -0,0 +1,405 @@
+package chess;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Append-only files of the moves of games in progress, one per game, so that
+ * SessionManager can rebuild its games after a crash.
+ *
+ * A file "<id>.journal" starts with a header (magic "CJN1", the engine's
+ * side, and the start position as a length-prefixed FEN) followed by the
+ * moves, each its 16-bit Move word, big-endian. A game's file is deleted
+ * when the game is closed; whatever files are left at startup are games
+ * that were in progress.
+ *
+ * open(), append() and close() only queue the request. One writer thread
+ * takes everything queued since its last pass, groups it by game and writes
+ * each game's moves with one write() (group commit). With a force interval
+ * of 0 every pass is forced to disk before sync() returns; a longer interval
+ * forces at most that often, and a negative one leaves it to the OS.
+ *
+ * Once a file holds compactAfter moves the writer replays them and rewrites
+ * the file as a header with the current position as its FEN, so files stay
+ * small and recovery replays few moves. Repetitions of positions before the
+ * snapshot are forgotten.
+ */
+final class Journal implements AutoCloseable {
+
+    static final String EXTENSION = ".journal";
+    static final int DEFAULT_COMPACT_AFTER = 256;
+
+    private static final int MAGIC = 0x434A4E31;                        // "CJN1"
+    private static final int MAX_OPEN_FILES = 1024;
+
+    // Queued requests: id << 20 | kind << 16 | move
+    private static final int MOVE = 0;
+    private static final int OPEN = 1;
+    private static final int CLOSE = 2;
+
+    /** A game read back by recover(). */
+    static final class Entry {
+
+        final long id;
+        final int engineSide;
+        final String fen;
+        final short[] moves;
+
+        Entry(long id, int engineSide, String fen, short[] moves) {
+            this.id = id;
+            this.engineSide = engineSide;
+            this.fen = fen;
+            this.moves = moves;
+        }
+    }
+
+    private final Path directory;
+    private final long forceNanos;                                      // negative for never
+    private final int compactAfter;
+
+    // Filled by any thread under lock, swapped with the writer's pair for every pass
+    private final Object lock = new Object();
+    private long[] pending = new long[1024];
+    private List<String> pendingFens = new ArrayList<>();              // for OPEN requests, in order
+    private int pendingCount;
+    private long queued;                                                // requests queued / written, for sync()
+    private long written;
+    private boolean closing;
+    private IOException failure;
+
+    // Writer thread only
+    private long[] batch = new long[1024];
+    private List<String> batchFens = new ArrayList<>();
+    private final Map<Long, FileChannel> channels = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, FileChannel> eldest) {
+            if (size() <= MAX_OPEN_FILES) return false;
+            closeQuietly(eldest.getKey(), eldest.getValue());
+            return true;
+        }
+    };
+    private final Map<Long, int[]> moveCounts = new HashMap<>();       // moves in each file since its header
+    private final Set<Long> unforced = new HashSet<>();
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.BIG_ENDIAN);
+    private long lastForce = System.nanoTime();
+
+    private final Thread writer;
+
+    /**
+     * @param forceMillis  how often to force written moves to disk: 0 for every
+     *                     write, negative for never
+     * @param compactAfter moves after which a file is rewritten as a snapshot
+     */
+    Journal(Path directory, long forceMillis, int compactAfter) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.forceNanos = forceMillis < 0 ? -1 : forceMillis * 1_000_000L;
+        this.compactAfter = Math.max(1, compactAfter);
+        writer = new Thread(this::run, "journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /** Starts the file of a new game. */
+    void open(long id, int engineSide, String fen) {
+        enqueue((id << 20) | (OPEN << 16) | (engineSide & 0xFFFF), fen);
+    }
+
+    void append(long id, int move) {
+        enqueue((id << 20) | (MOVE << 16) | (move & 0xFFFF), null);
+    }
+
+    /** Deletes the file of a finished game. */
+    void close(long id) {
+        enqueue((id << 20) | (CLOSE << 16), null);
+    }
+
+    private void enqueue(long request, String fen) {
+        synchronized (lock) {
+            if (closing) throw new IllegalStateException("journal is closed");
+            if (pendingCount == pending.length) pending = Arrays.copyOf(pending, pendingCount * 2);
+            pending[pendingCount++] = request;
+            if (fen != null) pendingFens.add(fen);
+            queued++;
+            if (pendingCount == 1) lock.notifyAll();
+        }
+    }
+
+    /** Waits until everything queued so far is written, and forced if the force interval is 0. */
+    void sync() throws IOException, InterruptedException {
+        synchronized (lock) {
+            long target = queued;
+            while (written < target && failure == null) lock.wait();
+            if (failure != null) throw failure;
+        }
+    }
+
+    /** Writes what is queued, forces every file and stops the writer. Files are kept for recover(). */
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            closing = true;
+            lock.notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (lock) {
+            if (failure != null) throw failure;
+        }
+    }
+
+    private void run() {
+        while (true) {
+            int count;
+            synchronized (lock) {
+                try {
+                    while (pendingCount == 0 && ! closing) {
+                        if (unforced.isEmpty() || forceNanos < 0) {
+                            lock.wait();
+                        } else {
+                            long wait = forceNanos - (System.nanoTime() - lastForce);
+                            if (wait <= 0) break;
+                            lock.wait(Math.max(1, wait / 1_000_000L));
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long[] requests = pending;
+                pending = batch;
+                batch = requests;
+                List<String> fens = pendingFens;
+                pendingFens = batchFens;
+                batchFens = fens;
+                count = pendingCount;
+                pendingCount = 0;
+                if (count == 0 && closing) break;
+            }
+
+            IOException error = null;
+            try {
+                write(count);
+                boolean due = forceNanos >= 0 && System.nanoTime() - lastForce >= forceNanos;
+                if (due) force();
+            } catch (IOException e) {
+                error = e;
+            }
+            batchFens.clear();
+            synchronized (lock) {
+                written += count;
+                if (error != null && failure == null) failure = error;
+                lock.notifyAll();
+            }
+        }
+
+        // Closing: everything is written, so force it and let go of the files
+        try {
+            force();
+        } catch (IOException e) {
+            synchronized (lock) {
+                if (failure == null) failure = e;
+            }
+        }
+        for (Iterator<Map.Entry<Long, FileChannel>> it = channels.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Long, FileChannel> entry = it.next();
+            closeQuietly(entry.getKey(), entry.getValue());
+            it.remove();
+        }
+    }
+
+    /*
+     * Writes batch[0..count), each game's requests in order. A bucket sort by game
+     * keeps the order within a game and puts all of its moves next to each other.
+     */
+    private void write(int count) throws IOException {
+        Map<Long, Integer> groups = new HashMap<>();
+        int[] groupOf = new int[count];
+        int[] sizes = new int[count + 1];
+        for (int i = 0; i < count; i++) {
+            long id = batch[i] >>> 20;
+            Integer group = groups.get(id);
+            if (group == null) {
+                group = groups.size();
+                groups.put(id, group);
+            }
+            groupOf[i] = group;
+            sizes[group + 1]++;
+        }
+        int[] fenIndex = new int[count];
+        for (int i = 0, f = 0; i < count; i++) {
+            if ((int) (batch[i] >>> 16 & 0xF) == OPEN) fenIndex[i] = f++;
+        }
+        for (int g = 0; g < groups.size(); g++) sizes[g + 1] += sizes[g];
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) order[sizes[groupOf[i]]++] = i;
+
+        for (int k = 0; k < count; k++) {
+            int i = order[k];
+            long request = batch[i];
+            long id = request >>> 20;
+            int kind = (int) (request >>> 16 & 0xF);
+            int value = (int) (request & 0xFFFF);
+            if (kind == MOVE) {
+                if (buffer.remaining() < 2) flushMoves(id);
+                buffer.putShort((short) value);
+                boolean last = k + 1 == count || batch[order[k + 1]] >>> 20 != id;
+                if (last) flushMoves(id);
+            } else if (kind == OPEN) {
+                create(id, (short) value, batchFens.get(fenIndex[i]));
+            } else {
+                FileChannel channel = channels.remove(id);
+                if (channel != null) channel.close();
+                moveCounts.remove(id);
+                unforced.remove(id);
+                Files.deleteIfExists(file(id));
+            }
+        }
+    }
+
+    private void flushMoves(long id) throws IOException {
+        buffer.flip();
+        int moves = buffer.remaining() / 2;
+        FileChannel channel = channel(id);
+        while (buffer.hasRemaining()) channel.write(buffer);
+        buffer.clear();
+        unforced.add(id);
+
+        int[] count = moveCounts.get(id);
+        count[0] += moves;
+        if (count[0] >= compactAfter) compact(id);
+    }
+
+    /* Writes a header-only file for id, replacing any old one. */
+    private void create(long id, int engineSide, String fen) throws IOException {
+        FileChannel old = channels.remove(id);
+        if (old != null) old.close();
+        Path file = file(id);
+        Path part = directory.resolve(id + EXTENSION + ".part");
+        try (FileChannel out = FileChannel.open(part, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = header(engineSide, fen);
+            while (header.hasRemaining()) out.write(header);
+            if (forceNanos >= 0) out.force(true);
+        }
+        Files.move(part, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        moveCounts.put(id, new int[1]);
+        unforced.remove(id);
+    }
+
+    /* Replays id's file and rewrites it as a snapshot of its last position. */
+    private void compact(long id) throws IOException {
+        FileChannel channel = channels.remove(id);
+        if (channel != null) channel.close();
+        Entry entry = read(id, file(id));
+        if (entry == null) return;
+        Position pos = Position.fromFen(entry.fen);
+        for (short move : entry.moves) pos.makeMove(move & 0xFFFF);
+        create(id, entry.engineSide, pos.toFen());
+    }
+
+    private FileChannel channel(long id) throws IOException {
+        FileChannel channel = channels.get(id);
+        if (channel == null) {
+            channel = FileChannel.open(file(id), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            channels.put(id, channel);
+            if (! moveCounts.containsKey(id)) {
+                Entry entry = read(id, file(id));
+                moveCounts.put(id, new int[] {entry == null ? 0 : entry.moves.length});
+            }
+        }
+        return channel;
+    }
+
+    private void force() throws IOException {
+        for (Long id : unforced) {
+            FileChannel channel = channels.get(id);
+            if (channel != null) channel.force(false);
+        }
+        unforced.clear();
+        lastForce = System.nanoTime();
+    }
+
+    /* Closing a channel evicted from the cache: its moves must not wait for the next force. */
+    private void closeQuietly(long id, FileChannel channel) {
+        try {
+            if (forceNanos >= 0 && unforced.remove(id)) channel.force(false);
+            channel.close();
+        } catch (IOException ignored) {
+            // the moves were written; at worst the OS flushes them later
+        }
+    }
+
+    private Path file(long id) {
+        return directory.resolve(id + EXTENSION);
+    }
+
+    private static ByteBuffer header(int engineSide, String fen) {
+        byte[] bytes = fen.getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer header = ByteBuffer.allocate(4 + 1 + 2 + bytes.length).order(ByteOrder.BIG_ENDIAN);
+        header.putInt(MAGIC).put((byte) engineSide).putShort((short) bytes.length).put(bytes);
+        header.flip();
+        return header;
+    }
+
+    /**
+     * Every game with a file in directory, oldest id first. A move cut in half by
+     * a crash is dropped from its file; files that can't be read are left alone.
+     */
+    static List<Entry> recover(Path directory) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        if (! Files.isDirectory(directory)) return entries;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + EXTENSION)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                long id;
+                try {
+                    id = Long.parseLong(name.substring(0, name.length() - EXTENSION.length()));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                Entry entry = read(id, file);
+                if (entry != null) entries.add(entry);
+            }
+        }
+        entries.sort((a, b) -> Long.compare(a.id, b.id));
+        return entries;
+    }
+
+    /* The header and moves of one file, or null if it isn't a journal. */
+    private static Entry read(long id, Path file) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file)).order(ByteOrder.BIG_ENDIAN);
+        if (data.remaining() < 7 || data.getInt() != MAGIC) return null;
+        int engineSide = data.get();
+        int length = data.getShort() & 0xFFFF;
+        if (data.remaining() < length) return null;
+        byte[] fen = new byte[length];
+        data.get(fen);
+        if (data.remaining() % 2 != 0) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(data.limit() - 1);
+            }
+        }
+        short[] moves = new short[data.remaining() / 2];
+        data.asShortBuffer().get(moves);
+        return new Entry(id, engineSide, new String(fen, StandardCharsets.US_ASCII), moves);
+    }
+}
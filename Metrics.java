@@ -0,0 +1,175 @@
+package chess;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Counters, histograms and Flight Recorder events for the engine and the
+ * window, off unless the JVM is started with -Dchess.metrics=true.
+ *
+ * ENABLED is a constant, so with metrics off the JIT drops every guarded
+ * block and instrumented code runs as if it weren't. Hot loops never record
+ * directly: Search keeps plain per-thread counts and publishes them once per
+ * iteration, as counters, histograms and one JFR event each for the
+ * iteration, its move generation and its table probes.
+ *
+ * Metrics are registered by name. Monitoring reads them through visit(), or
+ * as text() lines of "name value", e.g. from the UCI "metrics" command.
+ * JFR events are recorded with the usual -XX:StartFlightRecording, under
+ * the "Chess" category.
+ */
+final class Metrics {
+
+    static final boolean ENABLED = Boolean.getBoolean("chess.metrics");
+
+    /** A running total, safe to add to from any thread. */
+    static final class Counter {
+
+        private final LongAdder sum = new LongAdder();
+
+        void add(long n) {
+            sum.add(n);
+        }
+
+        void increment() {
+            sum.increment();
+        }
+
+        long get() {
+            return sum.sum();
+        }
+    }
+
+    /** Called once per registered metric, in name order. */
+    interface Visitor {
+        void counter(String name, long value);
+
+        void histogram(String name, Histogram histogram);
+    }
+
+    private static final Map<String, Counter> COUNTERS = new ConcurrentSkipListMap<>();
+    private static final Map<String, Histogram> HISTOGRAMS = new ConcurrentSkipListMap<>();
+
+    // Search, summed over all threads
+    static final Counter NODES = counter("search.nodes");
+    static final Counter ITERATIONS = counter("search.iterations");
+    static final Counter CUTOFFS = counter("search.cutoffs");
+    static final Counter FIRST_MOVE_CUTOFFS = counter("search.cutoffs.first_move");
+    static final Counter TT_PROBES = counter("tt.probes");
+    static final Counter TT_HITS = counter("tt.hits");
+    static final Counter GENERATIONS = counter("movegen.calls");
+    static final Counter GENERATED = counter("movegen.moves");
+    static final Histogram NPS = histogram("search.nps");                           // per iteration
+    static final Histogram BRANCHING = histogram("search.branching_x100");          // nodes(depth) / nodes(depth - 1)
+
+    // Window
+    static final Counter CLICKS = counter("gui.clicks");
+    static final Counter MOVES_ACCEPTED = counter("gui.moves.accepted");
+    static final Counter MOVES_REJECTED = counter("gui.moves.rejected");
+    static final Histogram FRAME_TIME = histogram("gui.frame_nanos");
+
+    private Metrics() {}
+
+    static Counter counter(String name) {
+        return COUNTERS.computeIfAbsent(name, key -> new Counter());
+    }
+
+    static Histogram histogram(String name) {
+        return HISTOGRAMS.computeIfAbsent(name, key -> new Histogram());
+    }
+
+    static void visit(Visitor visitor) {
+        COUNTERS.forEach((name, counter) -> visitor.counter(name, counter.get()));
+        HISTOGRAMS.forEach(visitor::histogram);
+    }
+
+    /** Every metric as "name value" lines; a histogram gives its count, mean, p50 and p99. */
+    static String text() {
+        StringBuilder sb = new StringBuilder();
+        visit(new Visitor() {
+            @Override
+            public void counter(String name, long value) {
+                sb.append(name).append(' ').append(value).append('\n');
+            }
+
+            @Override
+            public void histogram(String name, Histogram h) {
+                sb.append(name).append(".count ").append(h.count()).append('\n');
+                sb.append(name).append(".mean ").append(Math.round(h.mean())).append('\n');
+                sb.append(name).append(".p50 ").append(h.percentile(0.5)).append('\n');
+                sb.append(name).append(".p99 ").append(h.percentile(0.99)).append('\n');
+            }
+        });
+        return sb.toString();
+    }
+
+    @Name("chess.SearchIteration")
+    @Label("Search Iteration")
+    @Category({"Chess", "Search"})
+    @Description("One iteration of iterative deepening on one search thread")
+    @StackTrace(false)
+    static final class SearchIteration extends Event {
+        @Label("Thread") int thread;
+        @Label("Depth") int depth;
+        @Label("Score") int score;
+        @Label("Nodes") long nodes;
+        @Label("Nodes per Second") long nps;
+        @Label("Branching Factor") double branching;
+        @Label("Cutoff Rate") @Description("Share of beta cutoffs made by the first move searched") double firstMoveCutoffRate;
+    }
+
+    @Name("chess.MoveGeneration")
+    @Label("Move Generation")
+    @Category({"Chess", "Search"})
+    @Description("Legal move generation during one search iteration")
+    @StackTrace(false)
+    static final class MoveGeneration extends Event {
+        @Label("Thread") int thread;
+        @Label("Depth") int depth;
+        @Label("Calls") long calls;
+        @Label("Moves") long moves;
+    }
+
+    @Name("chess.TableProbes")
+    @Label("Transposition Table Probes")
+    @Category({"Chess", "Search"})
+    @Description("Transposition table probes during one search iteration")
+    @StackTrace(false)
+    static final class TableProbes extends Event {
+        @Label("Thread") int thread;
+        @Label("Depth") int depth;
+        @Label("Probes") long probes;
+        @Label("Hits") long hits;
+        @Label("Hit Rate") double hitRate;
+    }
+
+    @Name("chess.Paint")
+    @Label("Board Paint")
+    @Category({"Chess", "GUI"})
+    @StackTrace(false)
+    static final class Paint extends Event {
+        @Label("Clip Width") int width;
+        @Label("Clip Height") int height;
+        @Label("Full Board") boolean full;
+    }
+
+    @Name("chess.MoveInput")
+    @Label("Move Input")
+    @Category({"Chess", "GUI"})
+    @Description("A move entered on the board, and whether it was legal")
+    @StackTrace(false)
+    static final class MoveInput extends Event {
+        @Label("Action") String action;
+        @Label("From") String from;
+        @Label("To") String to;
+        @Label("Accepted") boolean accepted;
+    }
+}
@@ -0,0 +1,71 @@
+package chess;
+
+/**
+ * Moves packed into the low 16 bits of an int: from square (6 bits), to square
+ * (6 bits) and a 4-bit flag. Bit 2 of the flag marks captures and bit 3 marks
+ * promotions, whose low two bits hold the promoted type (knight..queen).
+ */
+final class Move {
+
+    static final int NONE = 0;                          // a1a1 can never be a real move
+
+    static final int QUIET = 0;
+    static final int DOUBLE_PUSH = 1;
+    static final int KING_CASTLE = 2;
+    static final int QUEEN_CASTLE = 3;
+    static final int CAPTURE = 4;
+    static final int EN_PASSANT = 5;
+    static final int PROMOTION = 8;                     // + (type - KNIGHT), or with CAPTURE for capture-promotions
+
+    private Move() {}
+
+    static int make(int from, int to, int flags) {
+        return from | (to << 6) | (flags << 12);
+    }
+
+    static int from(int move) {
+        return move & 0x3F;
+    }
+
+    static int to(int move) {
+        return (move >>> 6) & 0x3F;
+    }
+
+    static int flags(int move) {
+        return (move >>> 12) & 0xF;
+    }
+
+    static boolean isCapture(int move) {
+        return (move & (CAPTURE << 12)) != 0;
+    }
+
+    static boolean isPromotion(int move) {
+        return (move & (PROMOTION << 12)) != 0;
+    }
+
+    static int promotionType(int move) {
+        return ((move >>> 12) & 3) + Piece.KNIGHT;
+    }
+
+    static String squareName(int sq) {
+        return "" + (char) ('a' + Bitboard.col(sq)) + (char) ('1' + Bitboard.row(sq));
+    }
+
+    /** The legal move in pos written as by toString(), or NONE if there is none. */
+    static int parse(Position pos, String text) {
+        int[] moves = new int[MoveGenerator.MAX_MOVES];
+        int n = MoveGenerator.generate(pos, moves);
+        for (int i = 0; i < n; i++) {
+            if (toString(moves[i]).equals(text)) return moves[i];
+        }
+        return NONE;
+    }
+
+    /** Long algebraic notation, e.g. "e2e4" or "e7e8q". */
+    static String toString(int move) {
+        if (move == NONE) return "0000";
+        String s = squareName(from(move)) + squareName(to(move));
+        if (isPromotion(move)) s += "nbrq".charAt(promotionType(move) - Piece.KNIGHT);
+        return s;
+    }
+}
@@ -0,0 +1,257 @@
+package chess;
+
+/**
+ * Bitboard move generation for the side to move.
+ *
+ * Moves are written into a caller-supplied int array (see Move for the packing)
+ * and the number of moves is returned, so nothing is allocated per call.
+ * Only legal moves are generated: the pieces giving check and the pieces pinned
+ * to the king are found once per position, and every target set is cut down
+ * with them before any move is written, so no move is tried and taken back.
+ */
+final class MoveGenerator {
+
+    static final int MAX_MOVES = 256;                   // no legal chess position has more than 218 moves
+
+    private MoveGenerator() {}
+
+    /** All legal moves. */
+    static int generate(Position pos, int[] moves) {
+        return generate(pos, moves, false);
+    }
+
+    /** Legal captures and queen promotions, for the quiescence search; under-promotions are left out. */
+    static int generateCaptures(Position pos, int[] moves) {
+        return generate(pos, moves, true);
+    }
+
+    private static int generate(Position pos, int[] moves, boolean capturesOnly) {
+
+        int us = pos.sideToMove;
+        int them = us ^ 1;
+        long own = pos.colors[us];
+        long enemy = pos.colors[them];
+        long occupied = pos.occupied;
+        int king = pos.kingSquare(us);
+
+        long checkers = attackersTo(pos, king, them, occupied);
+        long pinned = pinned(pos, king, us);
+
+        // King moves, tested against the board with the king lifted so it can't hide behind itself
+        int n = 0;
+        long kingTargets = Bitboard.KING_ATTACKS[king] & ~own & (capturesOnly ? enemy : ~0L);
+        long withoutKing = occupied ^ (1L << king);
+        while (kingTargets != 0) {
+            int to = Long.numberOfTrailingZeros(kingTargets);
+            kingTargets &= kingTargets - 1;
+            if (attackersTo(pos, to, them, withoutKing) == 0) {
+                moves[n++] = Move.make(king, to, (enemy & (1L << to)) != 0 ? Move.CAPTURE : Move.QUIET);
+            }
+        }
+        if (Long.bitCount(checkers) > 1) return n;          // double check: only the king can move
+
+        // In check, other pieces must capture the checker or block the line to it
+        long evasion = ~0L;
+        if (checkers != 0) {
+            int checker = Long.numberOfTrailingZeros(checkers);
+            evasion = checkers | Bitboard.BETWEEN[king][checker];
+        }
+
+        n = generatePawnMoves(pos, moves, n, king, pinned, evasion, capturesOnly);
+
+        long targetMask = ~own & evasion & (capturesOnly ? enemy : ~0L);
+        for (int type = Piece.KNIGHT; type <= Piece.QUEEN; type++) {
+            long bb = pos.pieces[Piece.make(us, type)];
+            if (type == Piece.KNIGHT) bb &= ~pinned;            // a pinned knight can never move
+            while (bb != 0) {
+                int from = Long.numberOfTrailingZeros(bb);
+                bb &= bb - 1;
+
+                long targets;
+                switch (type) {
+                    case Piece.KNIGHT: targets = Bitboard.KNIGHT_ATTACKS[from]; break;
+                    case Piece.BISHOP: targets = Bitboard.bishopAttacks(from, occupied); break;
+                    case Piece.ROOK:   targets = Bitboard.rookAttacks(from, occupied); break;
+                    default:           targets = Bitboard.queenAttacks(from, occupied);
+                }
+                targets &= targetMask;
+                if ((pinned & (1L << from)) != 0) targets &= Bitboard.LINE[king][from];
+
+                while (targets != 0) {
+                    int to = Long.numberOfTrailingZeros(targets);
+                    targets &= targets - 1;
+                    moves[n++] = Move.make(from, to, (enemy & (1L << to)) != 0 ? Move.CAPTURE : Move.QUIET);
+                }
+            }
+        }
+
+        if (checkers != 0 || capturesOnly) return n;
+        return generateCastling(pos, moves, n);
+    }
+
+    /* Pieces of color byColor attacking sq, with the board occupancy given. */
+    private static long attackersTo(Position pos, int sq, int byColor, long occupied) {
+        int base = Piece.make(byColor, Piece.PAWN);
+        long queens = pos.pieces[base + Piece.QUEEN];
+        return (Bitboard.PAWN_ATTACKS[byColor ^ 1][sq] & pos.pieces[base + Piece.PAWN])
+                | (Bitboard.KNIGHT_ATTACKS[sq] & pos.pieces[base + Piece.KNIGHT])
+                | (Bitboard.KING_ATTACKS[sq] & pos.pieces[base + Piece.KING])
+                | (Bitboard.bishopAttacks(sq, occupied) & (pos.pieces[base + Piece.BISHOP] | queens))
+                | (Bitboard.rookAttacks(sq, occupied) & (pos.pieces[base + Piece.ROOK] | queens));
+    }
+
+    /* Pieces of color us that are the only blocker between their king and an enemy slider. */
+    private static long pinned(Position pos, int king, int us) {
+        int base = Piece.make(us ^ 1, Piece.PAWN);
+        long queens = pos.pieces[base + Piece.QUEEN];
+        long enemy = pos.colors[us ^ 1];
+
+        // Sliders that would attack the king through any number of our own pieces
+        long snipers = (Bitboard.rookAttacks(king, enemy) & (pos.pieces[base + Piece.ROOK] | queens))
+                | (Bitboard.bishopAttacks(king, enemy) & (pos.pieces[base + Piece.BISHOP] | queens));
+
+        long pinned = 0L;
+        while (snipers != 0) {
+            int sniper = Long.numberOfTrailingZeros(snipers);
+            snipers &= snipers - 1;
+            long blockers = Bitboard.BETWEEN[king][sniper] & pos.occupied;
+            if (Long.bitCount(blockers) == 1) pinned |= blockers & pos.colors[us];
+        }
+        return pinned;
+    }
+
+    private static int generatePawnMoves(Position pos, int[] moves, int n, int king, long pinned,
+                                         long evasion, boolean capturesOnly) {
+
+        int us = pos.sideToMove;
+        long pawns = pos.pieces[Piece.make(us, Piece.PAWN)];
+        long enemy = pos.colors[us ^ 1] & evasion;
+        long empty = ~pos.occupied;
+        long lastRank = (us == Piece.WHITE) ? Bitboard.RANK_8 : Bitboard.RANK_1;
+
+        // Pinned pawns are rare; they are generated one by one below, along their pin line
+        long free = pawns & ~pinned;
+        n = addPawnSet(moves, n, free, us, empty, enemy, evasion, ~0L, lastRank, capturesOnly);
+
+        long bb = pawns & pinned;
+        while (bb != 0) {
+            int from = Long.numberOfTrailingZeros(bb);
+            bb &= bb - 1;
+            n = addPawnSet(moves, n, 1L << from, us, empty, enemy, evasion,
+                    Bitboard.LINE[king][from], lastRank, capturesOnly);
+        }
+
+        if (pos.epSquare >= 0) {
+            long attackers = Bitboard.PAWN_ATTACKS[us ^ 1][pos.epSquare] & pawns;
+            while (attackers != 0) {
+                int from = Long.numberOfTrailingZeros(attackers);
+                attackers &= attackers - 1;
+                int move = Move.make(from, pos.epSquare, Move.EN_PASSANT);
+                // Two pawns leave the rank at once, which the pin test can't see; check it directly
+                if (isLegalEnPassant(pos, move, king)) moves[n++] = move;
+            }
+        }
+        return n;
+    }
+
+    /* Pawn moves for the given pawns, with every destination restricted to allowed. */
+    private static int addPawnSet(int[] moves, int n, long pawns, int us, long empty,
+                                  long enemy, long evasion, long allowed, long lastRank, boolean capturesOnly) {
+
+        long single, twoSteps, capturesLeft, capturesRight;
+        int up;
+
+        if (us == Piece.WHITE) {
+            up = 8;
+            single = (pawns << 8) & empty;
+            twoSteps = ((single & Bitboard.RANK_3) << 8) & empty;
+            capturesLeft = ((pawns & ~Bitboard.FILE_A) << 7) & enemy;
+            capturesRight = ((pawns & ~Bitboard.FILE_H) << 9) & enemy;
+        } else {
+            up = -8;
+            single = (pawns >>> 8) & empty;
+            twoSteps = ((single & Bitboard.RANK_6) >>> 8) & empty;
+            capturesLeft = ((pawns & ~Bitboard.FILE_A) >>> 9) & enemy;
+            capturesRight = ((pawns & ~Bitboard.FILE_H) >>> 7) & enemy;
+        }
+        single &= evasion & allowed;
+        twoSteps &= evasion & allowed;
+        capturesLeft &= allowed;
+        capturesRight &= allowed;
+
+        n = addPawnMoves(moves, n, capturesLeft, up - 1, Move.CAPTURE, capturesOnly);
+        n = addPawnMoves(moves, n, capturesRight, up + 1, Move.CAPTURE, capturesOnly);
+        if (capturesOnly) return addPawnMoves(moves, n, single & lastRank, up, Move.QUIET, true);
+
+        n = addPawnMoves(moves, n, single, up, Move.QUIET, false);
+        while (twoSteps != 0) {
+            int to = Long.numberOfTrailingZeros(twoSteps);
+            twoSteps &= twoSteps - 1;
+            moves[n++] = Move.make(to - 2 * up, to, Move.DOUBLE_PUSH);
+        }
+        return n;
+    }
+
+    /*
+     * Adds one move per target, expanding arrivals on the last row into the four
+     * promotions, or only the queen promotion when queenOnly is set.
+     */
+    private static int addPawnMoves(int[] moves, int n, long targets, int offset, int flags, boolean queenOnly) {
+        while (targets != 0) {
+            int to = Long.numberOfTrailingZeros(targets);
+            targets &= targets - 1;
+            int from = to - offset;
+            if (to >= 56 || to < 8) {
+                int last = queenOnly ? Piece.QUEEN : Piece.KNIGHT;
+                for (int type = Piece.QUEEN; type >= last; type--) {
+                    moves[n++] = Move.make(from, to, flags | Move.PROMOTION | (type - Piece.KNIGHT));
+                }
+            } else {
+                moves[n++] = Move.make(from, to, flags);
+            }
+        }
+        return n;
+    }
+
+    private static int generateCastling(Position pos, int[] moves, int n) {
+
+        int us = pos.sideToMove;
+        int them = us ^ 1;
+        int rights = (us == Piece.WHITE) ? pos.castling : pos.castling >>> 2;
+        if ((rights & 3) == 0) return n;
+
+        int king = (us == Piece.WHITE) ? 4 : 60;                 // only called when not in check
+
+        if ((rights & Position.WHITE_KINGSIDE) != 0
+                && (pos.occupied & (0x60L << (king - 4))) == 0
+                && ! pos.isAttacked(king + 1, them) && ! pos.isAttacked(king + 2, them)) {
+            moves[n++] = Move.make(king, king + 2, Move.KING_CASTLE);
+        }
+        if ((rights & Position.WHITE_QUEENSIDE) != 0
+                && (pos.occupied & (0x0EL << (king - 4))) == 0
+                && ! pos.isAttacked(king - 1, them) && ! pos.isAttacked(king - 2, them)) {
+            moves[n++] = Move.make(king, king - 2, Move.QUEEN_CASTLE);
+        }
+        return n;
+    }
+
+    /*
+     * Whether an en passant capture keeps the king safe, tested on the board as
+     * it would be after the capture without modifying the position.
+     */
+    private static boolean isLegalEnPassant(Position pos, int move, int king) {
+
+        int us = pos.sideToMove;
+        int to = Move.to(move);
+        long captured = 1L << (us == Piece.WHITE ? to - 8 : to + 8);
+        long occupied = (pos.occupied & ~(1L << Move.from(move)) & ~captured) | (1L << to);
+
+        int base = Piece.make(us ^ 1, Piece.PAWN);
+        long queens = pos.pieces[base + Piece.QUEEN];
+
+        return (Bitboard.PAWN_ATTACKS[us][king] & pos.pieces[base + Piece.PAWN] & ~captured) == 0
+                && (Bitboard.KNIGHT_ATTACKS[king] & pos.pieces[base + Piece.KNIGHT]) == 0
+                && (Bitboard.bishopAttacks(king, occupied) & (pos.pieces[base + Piece.BISHOP] | queens)) == 0
+                && (Bitboard.rookAttacks(king, occupied) & (pos.pieces[base + Piece.ROOK] | queens)) == 0;
+    }
+}
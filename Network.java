@@ -0,0 +1,217 @@
+package chess;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+/**
+ * A small NNUE-style evaluation network, an alternative to the tables in
+ * Evaluation.
+ *
+ * The inputs are the 768 (piece, square) pairs, seen once from each side's
+ * point of view: black's view mirrors the board and swaps the colors. The
+ * first layer's sums for both views (the accumulator) live in the Position
+ * and are updated as pieces are put and removed, so a move costs a few
+ * column additions instead of a full layer. Evaluating clips the side to
+ * move's sums and the other side's to 0..127 and runs two small dense layers
+ * in integer arithmetic.
+ *
+ * The weights are quantized: 16-bit first layer, 8-bit dense layers, 32-bit
+ * biases. The file is little-endian:
+ *
+ *   int magic ("NNU1"), int hidden, int layer2
+ *   short[768 * hidden] input weights (input-major), short[hidden] input biases
+ *   byte[layer2 * 2 * hidden] weights, int[layer2] biases
+ *   byte[layer2] output weights, int output bias
+ *
+ * and is memory-mapped to load. The inner loops are plain loops over
+ * primitive arrays, which HotSpot compiles to SIMD instructions where it can.
+ */
+final class Network {
+
+    static final int INPUTS = 768;
+    static final int MAGIC = 0x31554E4E;                        // "NNU1"
+
+    private static final int CLIP = 127;                        // first-layer outputs, 1.0 = 127
+    private static final int WEIGHT_SHIFT = 6;                  // dense weights, 1.0 = 64
+    private static final int OUTPUT_SCALE = 100;                // network output 1.0 = 100 centipawns
+
+    final int hidden;
+    final int layer2;
+    private final short[] inputWeights;
+    private final short[] inputBiases;
+    private final byte[] hiddenWeights;
+    private final int[] hiddenBiases;
+    private final byte[] outputWeights;
+    private final int outputBias;
+
+    private Network(int hidden, int layer2, short[] inputWeights, short[] inputBiases, byte[] hiddenWeights,
+                    int[] hiddenBiases, byte[] outputWeights, int outputBias) {
+        this.hidden = hidden;
+        this.layer2 = layer2;
+        this.inputWeights = inputWeights;
+        this.inputBiases = inputBiases;
+        this.hiddenWeights = hiddenWeights;
+        this.hiddenBiases = hiddenBiases;
+        this.outputWeights = outputWeights;
+        this.outputBias = outputBias;
+    }
+
+    static Network load(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            ByteBuffer buf = map.order(ByteOrder.LITTLE_ENDIAN);
+            if (buf.remaining() < 12 || buf.getInt() != MAGIC) throw new IOException(path + " is not a network file");
+            int hidden = buf.getInt();
+            int layer2 = buf.getInt();
+            if (hidden <= 0 || hidden > 4096 || layer2 <= 0 || layer2 > 256
+                    || buf.remaining() != fileSize(hidden, layer2) - 12) {
+                throw new IOException(path + ": bad layer sizes or length");
+            }
+
+            short[] inputWeights = new short[INPUTS * hidden];
+            short[] inputBiases = new short[hidden];
+            byte[] hiddenWeights = new byte[layer2 * 2 * hidden];
+            int[] hiddenBiases = new int[layer2];
+            byte[] outputWeights = new byte[layer2];
+
+            buf.asShortBuffer().get(inputWeights);
+            buf.position(buf.position() + 2 * inputWeights.length);
+            buf.asShortBuffer().get(inputBiases);
+            buf.position(buf.position() + 2 * inputBiases.length);
+            buf.get(hiddenWeights);
+            buf.asIntBuffer().get(hiddenBiases);
+            buf.position(buf.position() + 4 * hiddenBiases.length);
+            buf.get(outputWeights);
+            int outputBias = buf.getInt();
+            return new Network(hidden, layer2, inputWeights, inputBiases, hiddenWeights, hiddenBiases,
+                    outputWeights, outputBias);
+        }
+    }
+
+    static long fileSize(int hidden, int layer2) {
+        return 12 + 2L * INPUTS * hidden + 2L * hidden + (long) layer2 * 2 * hidden + 4L * layer2 + layer2 + 4;
+    }
+
+    void write(Path path) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate((int) fileSize(hidden, layer2)).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(MAGIC).putInt(hidden).putInt(layer2);
+        for (short w : inputWeights) buf.putShort(w);
+        for (short b : inputBiases) buf.putShort(b);
+        buf.put(hiddenWeights);
+        for (int b : hiddenBiases) buf.putInt(b);
+        buf.put(outputWeights).putInt(outputBias);
+        buf.flip();
+        try (FileChannel out = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buf.hasRemaining()) out.write(buf);
+        }
+    }
+
+    /** Untrained weights of the right shape, for benchmarks and tests of the file format. */
+    static Network random(int hidden, int layer2, long seed) {
+        Random random = new Random(seed);
+        short[] inputWeights = new short[INPUTS * hidden];
+        short[] inputBiases = new short[hidden];
+        byte[] hiddenWeights = new byte[layer2 * 2 * hidden];
+        int[] hiddenBiases = new int[layer2];
+        byte[] outputWeights = new byte[layer2];
+        for (int i = 0; i < inputWeights.length; i++) inputWeights[i] = (short) (random.nextInt(33) - 16);
+        for (int i = 0; i < inputBiases.length; i++) inputBiases[i] = (short) random.nextInt(64);
+        random.nextBytes(hiddenWeights);
+        for (int i = 0; i < hiddenBiases.length; i++) hiddenBiases[i] = random.nextInt(1 << 12) - (1 << 11);
+        random.nextBytes(outputWeights);
+        return new Network(hidden, layer2, inputWeights, inputBiases, hiddenWeights, hiddenBiases,
+                outputWeights, random.nextInt(1 << 10));
+    }
+
+    Accumulator newAccumulator() {
+        return new Accumulator();
+    }
+
+    /* Input index of piece on sq as seen by perspective. */
+    private static int input(int perspective, int piece, int sq) {
+        if (perspective == Piece.BLACK) {
+            piece = Piece.make(Piece.color(piece) ^ 1, Piece.type(piece));
+            sq ^= 56;
+        }
+        return piece * 64 + sq;
+    }
+
+    /** First-layer sums for one position, and scratch space for evaluating it; used by one thread. */
+    final class Accumulator {
+
+        private final short[][] sums = new short[2][hidden];       // [perspective][neuron]
+        private final byte[] inputs = new byte[2 * hidden];          // clipped sums, side to move first
+        private final int[] layer = new int[layer2];
+
+        void reset() {
+            System.arraycopy(inputBiases, 0, sums[0], 0, hidden);
+            System.arraycopy(inputBiases, 0, sums[1], 0, hidden);
+        }
+
+        /** Recomputes the sums for every piece of pos. */
+        void refresh(Position pos) {
+            reset();
+            long occupied = pos.occupied;
+            while (occupied != 0) {
+                int sq = Long.numberOfTrailingZeros(occupied);
+                occupied &= occupied - 1;
+                add(pos.pieceAt(sq), sq);
+            }
+        }
+
+        void add(int piece, int sq) {
+            addColumn(sums[Piece.WHITE], input(Piece.WHITE, piece, sq) * hidden, true);
+            addColumn(sums[Piece.BLACK], input(Piece.BLACK, piece, sq) * hidden, true);
+        }
+
+        void remove(int piece, int sq) {
+            addColumn(sums[Piece.WHITE], input(Piece.WHITE, piece, sq) * hidden, false);
+            addColumn(sums[Piece.BLACK], input(Piece.BLACK, piece, sq) * hidden, false);
+        }
+
+        private void addColumn(short[] sum, int offset, boolean add) {
+            short[] weights = inputWeights;
+            if (add) {
+                for (int i = 0; i < hidden; i++) sum[i] += weights[offset + i];
+            } else {
+                for (int i = 0; i < hidden; i++) sum[i] -= weights[offset + i];
+            }
+        }
+
+        /** The network's score in centipawns for the side to move. */
+        int evaluate(int sideToMove) {
+            clip(sums[sideToMove], 0);
+            clip(sums[sideToMove ^ 1], hidden);
+
+            int output = outputBias;
+            int width = 2 * hidden;
+            for (int j = 0; j < layer2; j++) {
+                int sum = hiddenBiases[j];
+                int row = j * width;
+                for (int i = 0; i < width; i++) sum += inputs[i] * hiddenWeights[row + i];
+                layer[j] = Math.max(0, Math.min(CLIP, sum >> WEIGHT_SHIFT));
+                output += layer[j] * outputWeights[j];
+            }
+            return output * OUTPUT_SCALE / (CLIP << WEIGHT_SHIFT);
+        }
+
+        private void clip(short[] sum, int offset) {
+            for (int i = 0; i < hidden; i++) inputs[offset + i] = (byte) Math.max(0, Math.min(CLIP, sum[i]));
+        }
+
+        /** Whether the sums equal those of a fresh refresh(pos); for checking the incremental updates. */
+        boolean matches(Position pos) {
+            short[] white = sums[Piece.WHITE].clone();
+            short[] black = sums[Piece.BLACK].clone();
+            refresh(pos);
+            return java.util.Arrays.equals(white, sums[Piece.WHITE]) && java.util.Arrays.equals(black, sums[Piece.BLACK]);
+        }
+    }
+}
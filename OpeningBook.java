@@ -0,0 +1,307 @@
+package chess;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Opening moves read from a memory-mapped book file.
+ *
+ * The file uses the Polyglot layout: 16-byte big-endian entries of position
+ * key (8 bytes), move (2), weight (2) and learn (4), sorted by key, so all the
+ * moves of a position are next to each other and found by binary search. The
+ * keys are this program's own Zobrist hashes rather than Polyglot's, so books
+ * must be made with build() below; the moves are encoded as in Polyglot.
+ *
+ * The file is mapped read-only and never copied to the heap: one OpeningBook
+ * can be shared by any number of threads, and other processes mapping the same
+ * file share its pages in the OS cache. A probe allocates nothing.
+ */
+final class OpeningBook implements AutoCloseable {
+
+    static final int ENTRY_SIZE = 16;
+
+    private static final int CHUNK_ENTRIES = 1 << 26;               // 1 GB per mapping
+    private static final ThreadLocal<int[]> MOVES = ThreadLocal.withInitial(() -> new int[MoveGenerator.MAX_MOVES]);
+
+    private final FileChannel channel;
+    private final MappedByteBuffer[] chunks;
+    private final long entries;
+
+    private OpeningBook(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        long size = channel.size();
+        if (size % ENTRY_SIZE != 0) {
+            channel.close();
+            throw new IOException(path + " is not a book: size " + size + " is not a multiple of " + ENTRY_SIZE);
+        }
+        entries = size / ENTRY_SIZE;
+        chunks = new MappedByteBuffer[(int) ((entries + CHUNK_ENTRIES - 1) / CHUNK_ENTRIES)];
+        for (int i = 0; i < chunks.length; i++) {
+            long first = (long) i * CHUNK_ENTRIES;
+            long count = Math.min(CHUNK_ENTRIES, entries - first);
+            chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, first * ENTRY_SIZE, count * ENTRY_SIZE);
+        }
+    }
+
+    static OpeningBook open(Path path) throws IOException {
+        return new OpeningBook(path);
+    }
+
+    long size() {
+        return entries;
+    }
+
+    /**
+     * A book move for pos, chosen at random in proportion to the weights of the
+     * position's entries, or Move.NONE if the position is not in the book.
+     * Entries of weight 0, and any whose move is not legal here, are never played.
+     */
+    int probe(Position pos) {
+        long first = find(pos.hash);
+        if (first < 0) return Move.NONE;
+
+        int[] moves = MOVES.get();
+        int n = MoveGenerator.generate(pos, moves);
+
+        long total = 0;
+        long last = first;
+        for (long i = first; i < entries && key(i) == pos.hash; i++) {
+            if (legalMove(pos, moves, n, polyglotMove(i)) != Move.NONE) total += weight(i);
+            last = i;
+        }
+        if (total == 0) return Move.NONE;
+
+        long pick = ThreadLocalRandom.current().nextLong(total);
+        for (long i = first; i <= last; i++) {
+            int move = legalMove(pos, moves, n, polyglotMove(i));
+            if (move == Move.NONE) continue;
+            pick -= weight(i);
+            if (pick < 0) return move;
+        }
+        return Move.NONE;
+    }
+
+    /* Index of the first entry with this key, or -1. Keys compare as unsigned numbers. */
+    private long find(long key) {
+        long lo = 0, hi = entries;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (Long.compareUnsigned(key(mid), key) < 0) lo = mid + 1;
+            else hi = mid;
+        }
+        return (lo < entries && key(lo) == key) ? lo : -1;
+    }
+
+    private long key(long index) {
+        return chunks[(int) (index / CHUNK_ENTRIES)].getLong((int) (index % CHUNK_ENTRIES) * ENTRY_SIZE);
+    }
+
+    private int polyglotMove(long index) {
+        return chunks[(int) (index / CHUNK_ENTRIES)].getShort((int) (index % CHUNK_ENTRIES) * ENTRY_SIZE + 8) & 0xFFFF;
+    }
+
+    private int weight(long index) {
+        return chunks[(int) (index / CHUNK_ENTRIES)].getShort((int) (index % CHUNK_ENTRIES) * ENTRY_SIZE + 10) & 0xFFFF;
+    }
+
+    /* The legal move among moves[0..n) that encodes as polyglot, or NONE. */
+    private static int legalMove(Position pos, int[] moves, int n, int polyglot) {
+        for (int i = 0; i < n; i++) {
+            if (toPolyglot(moves[i]) == polyglot) return moves[i];
+        }
+        return Move.NONE;
+    }
+
+    /**
+     * Polyglot's move encoding: to square (bits 0-5), from square (6-11) and
+     * promoted type (12-14, knight = 1 .. queen = 4), with squares numbered
+     * a1 = 0 as here. Castling is written as the king taking its own rook.
+     */
+    static int toPolyglot(int move) {
+        int from = Move.from(move);
+        int to = Move.to(move);
+        int flags = Move.flags(move);
+        if (flags == Move.KING_CASTLE) to = from + 3;
+        else if (flags == Move.QUEEN_CASTLE) to = from - 4;
+
+        int encoded = to | from << 6;
+        if (Move.isPromotion(move)) encoded |= (Move.promotionType(move) - Piece.KNIGHT + 1) << 12;
+        return encoded;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Writes a book of the moves played in the first plies of every game in a
+     * PGN file. A move's weight is 2 per win and 1 per draw for the side that
+     * played it, scaled down where needed to fit 16 bits; moves played in fewer
+     * than minGames games, and moves that never scored, are left out, as are
+     * games without a result.
+     *
+     * @return the number of entries written
+     */
+    static long build(Path pgn, Path book, int plies, int minGames) throws IOException {
+
+        EntryTable table = new EntryTable();
+        long[] keys = new long[plies];
+        int[] moves = new int[plies];
+        int[] count = {0};
+
+        try (PgnReader reader = new PgnReader(pgn)) {
+            reader.read(new PgnReader.Visitor() {
+                @Override
+                public void startGame() {
+                    count[0] = 0;
+                }
+
+                @Override
+                public boolean move(Position pos, int move) {
+                    if (count[0] == plies) return false;
+                    keys[count[0]] = pos.hash;
+                    moves[count[0]++] = toPolyglot(move) | pos.sideToMove << 16;
+                    return true;
+                }
+
+                @Override
+                public void endGame(Position pos, CharSequence result, boolean error) {
+                    if (error || result.length() < 3) return;                     // "*" or missing
+                    int white = result.length() == 3 ? (result.charAt(0) == '1' ? 2 : 0) : 1;
+                    for (int i = 0; i < count[0]; i++) {
+                        int mover = moves[i] >>> 16;
+                        table.add(keys[i], moves[i] & 0xFFFF, mover == Piece.WHITE ? white : 2 - white);
+                    }
+                }
+            });
+        }
+        return table.write(book, minGames);
+    }
+
+    /*
+     * (key, move) -> games and score, in open addressing. The builder only; kept in
+     * parallel primitive arrays since a large corpus gives millions of entries.
+     */
+    private static final class EntryTable {
+
+        private long[] keys = new long[1 << 16];
+        private int[] moves = new int[1 << 16];                     // polyglot move + 1, 0 for an empty slot
+        private int[] games = new int[1 << 16];
+        private long[] scores = new long[1 << 16];
+        private int size;
+
+        void add(long key, int move, int score) {
+            if (size * 2 >= keys.length) grow();
+            int slot = slot(key, move, keys.length);
+            while (moves[slot] != 0 && (keys[slot] != key || moves[slot] != move + 1)) slot = (slot + 1) & (keys.length - 1);
+            if (moves[slot] == 0) {
+                keys[slot] = key;
+                moves[slot] = move + 1;
+                size++;
+            }
+            games[slot]++;
+            scores[slot] += score;
+        }
+
+        private static int slot(long key, int move, int capacity) {
+            long h = (key ^ move * 0x9E3779B97F4A7C15L) * 0xBF58476D1CE4E5B9L;
+            return (int) (h >>> 40) & (capacity - 1);
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldMoves = moves;
+            int[] oldGames = games;
+            long[] oldScores = scores;
+            int capacity = oldKeys.length * 2;
+            keys = new long[capacity];
+            moves = new int[capacity];
+            games = new int[capacity];
+            scores = new long[capacity];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldMoves[i] == 0) continue;
+                int slot = slot(oldKeys[i], oldMoves[i] - 1, capacity);
+                while (moves[slot] != 0) slot = (slot + 1) & (capacity - 1);
+                keys[slot] = oldKeys[i];
+                moves[slot] = oldMoves[i];
+                games[slot] = oldGames[i];
+                scores[slot] = oldScores[i];
+            }
+        }
+
+        /*
+         * Sorts the kept entries by unsigned key (a bucket per distinct key, found by
+         * binary search in the sorted distinct keys), then each key's moves by weight,
+         * highest first, and writes them out.
+         */
+        long write(Path path, int minGames) throws IOException {
+            int kept = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (moves[i] != 0 && games[i] >= minGames && scores[i] > 0) kept++;
+            }
+
+            long[] distinct = new long[kept];
+            int[] slots = new int[kept];
+            int k = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (moves[i] != 0 && games[i] >= minGames && scores[i] > 0) {
+                    distinct[k] = keys[i] ^ Long.MIN_VALUE;                 // signed order of these = unsigned order of the keys
+                    slots[k++] = i;
+                }
+            }
+            Arrays.sort(distinct);
+            int unique = 0;
+            for (int i = 0; i < kept; i++) {
+                if (unique == 0 || distinct[unique - 1] != distinct[i]) distinct[unique++] = distinct[i];
+            }
+
+            int[] start = new int[unique + 1];
+            int[] bucket = new int[kept];
+            for (int i = 0; i < kept; i++) {
+                bucket[i] = Arrays.binarySearch(distinct, 0, unique, keys[slots[i]] ^ Long.MIN_VALUE);
+                start[bucket[i] + 1]++;
+            }
+            for (int b = 0; b < unique; b++) start[b + 1] += start[b];
+            int[] order = new int[kept];
+            int[] next = Arrays.copyOf(start, unique);
+            for (int i = 0; i < kept; i++) order[next[bucket[i]]++] = slots[i];
+
+            try (FileChannel out = FileChannel.open(path, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer buf = ByteBuffer.allocateDirect(ENTRY_SIZE * 4096).order(ByteOrder.BIG_ENDIAN);
+                for (int b = 0; b < unique; b++) {
+                    int from = start[b], to = start[b + 1];
+                    for (int i = from + 1; i < to; i++) {                       // few moves per position
+                        int slot = order[i];
+                        int j = i - 1;
+                        for (; j >= from && scores[order[j]] < scores[slot]; j--) order[j + 1] = order[j];
+                        order[j + 1] = slot;
+                    }
+                    long max = scores[order[from]];
+                    for (int i = from; i < to; i++) {
+                        int slot = order[i];
+                        long weight = max > 0xFFFF ? Math.max(1, scores[slot] * 0xFFFF / max) : scores[slot];
+                        if (buf.remaining() < ENTRY_SIZE) flush(out, buf);
+                        buf.putLong(keys[slot]).putShort((short) (moves[slot] - 1)).putShort((short) weight).putInt(0);
+                    }
+                }
+                flush(out, buf);
+            }
+            return kept;
+        }
+
+        private static void flush(FileChannel out, ByteBuffer buf) throws IOException {
+            buf.flip();
+            while (buf.hasRemaining()) out.write(buf);
+            buf.clear();
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package chess;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Perft: counts the leaf nodes of the move tree to a fixed depth. Matching the
+ * published counts for the standard test positions is the usual proof that a
+ * move generator handles castling, en passant, promotion and checks correctly.
+ *
+ * Each subclass drives one move generator, so generators can be validated and
+ * timed against each other on identical positions (see Bench). Parallel runs
+ * the legal generator over a fork-join pool for the deep counts.
+ */
+abstract class Perft {
+
+    static final int MAX_DEPTH = 16;
+
+    /** The standard perft suite with published node counts for depths 1, 2, ... */
+    static final TestPosition[] SUITE = new TestPosition[] {
+            new TestPosition("startpos", Position.START_FEN, 5,
+                    20, 400, 8902, 197281, 4865609, 119060324),
+            new TestPosition("kiwipete", "r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w KQkq - 0 1", 4,
+                    48, 2039, 97862, 4085603, 193690690),
+            new TestPosition("en-passant", "8/2p5/3p4/KP5r/1R3p1k/8/4P1P1/8 w - - 0 1", 5,
+                    14, 191, 2812, 43238, 674624, 11030083),
+            new TestPosition("castling-promotion", "r3k2r/Pppp1ppp/1b3nbN/nP6/BBP1P3/q4N2/Pp1P2PP/R2Q1RK1 w kq - 0 1", 4,
+                    6, 264, 9467, 422333, 15833292),
+            new TestPosition("promotion", "rnbq1k1r/pp1Pbppp/2p5/8/2B5/8/PPP1NnPP/RNBQK2R w KQ - 1 8", 4,
+                    44, 1486, 62379, 2103487, 89941194),
+            new TestPosition("middlegame", "r4rk1/1pp1qppp/p1np1n2/2b1p1B1/2B1P1b1/P1NP1N2/1PP1QPPP/R4RK1 w - - 0 10", 4,
+                    46, 2079, 89890, 3894594, 164075551)
+    };
+
+    static final class TestPosition {
+
+        final String name;
+        final String fen;
+        final int benchDepth;                   // deepest depth that runs in a few seconds
+        final long[] counts;
+
+        TestPosition(String name, String fen, int benchDepth, long... counts) {
+            this.name = name;
+            this.fen = fen;
+            this.benchDepth = benchDepth;
+            this.counts = counts;
+        }
+    }
+
+    final String name;
+    final boolean exact;                        // whether its counts must match the reference at every depth
+
+    Perft(String name, boolean exact) {
+        this.name = name;
+        this.exact = exact;
+    }
+
+    abstract long count(Position root, int depth);
+
+    /** The legal bitboard generator, with make/unmake on a single position. */
+    static final class Legal extends Perft {
+
+        private final Position pos = new Position(MAX_DEPTH);
+        private final int[][] moves = new int[MAX_DEPTH][MoveGenerator.MAX_MOVES];
+
+        Legal() {
+            super("legal", true);
+        }
+
+        @Override
+        long count(Position root, int depth) {
+            pos.copyFrom(root);
+            return count(0, depth);
+        }
+
+        private long count(int ply, int depth) {
+            int[] list = moves[ply];
+            int n = MoveGenerator.generate(pos, list);
+            if (depth == 1) return n;
+
+            long nodes = 0;
+            for (int i = 0; i < n; i++) {
+                pos.makeMove(list[i]);
+                nodes += count(ply + 1, depth - 1);
+                pos.unmakeMove(list[i]);
+            }
+            return nodes;
+        }
+    }
+
+    /**
+     * The legal generator split over a fork-join pool: the moves of the first
+     * splitPlies plies become tasks, each on its own copy of the position,
+     * and below that every task counts alone with make/unmake. With a hash
+     * table, subtree counts are shared between threads by Zobrist key and
+     * depth, so transpositions are counted once.
+     *
+     * The table is lockless: an entry is two longs, the count and the key
+     * XORed with the count, written and read with opaque (untorn) accesses.
+     * A half-written entry from a racing thread fails the XOR check and is
+     * treated as a miss.
+     */
+    static final class Parallel extends Perft {
+
+        private static final long DEPTH_KEY = 0x9E3779B97F4A7C15L;  // mixed into the key, so depths don't share entries
+
+        private final ForkJoinPool pool;
+        private final int splitPlies;
+        private final AtomicLongArray table;                        // null without a hash table
+        private final int mask;
+        private final ThreadLocal<int[][]> moves = ThreadLocal.withInitial(() -> new int[MAX_DEPTH][MoveGenerator.MAX_MOVES]);
+
+        /**
+         * @param threads       pool size
+         * @param hashMegabytes shared table size, 0 for none
+         * @param splitPlies    plies split into tasks: 1 for the root moves, 2 for the next ply as well
+         */
+        Parallel(int threads, int hashMegabytes, int splitPlies) {
+            super("parallel", true);
+            this.pool = new ForkJoinPool(Math.max(1, threads));
+            this.splitPlies = Math.max(1, splitPlies);
+            if (hashMegabytes > 0) {
+                int entries = Integer.highestOneBit((int) Math.min(1L << 30, ((long) hashMegabytes << 20) / 16));
+                table = new AtomicLongArray(2 * entries);
+                mask = entries - 1;
+            } else {
+                table = null;
+                mask = 0;
+            }
+        }
+
+        int threads() {
+            return pool.getParallelism();
+        }
+
+        @Override
+        long count(Position root, int depth) {
+            clearTable();
+            return pool.invoke(new Node(copy(root, Move.NONE), depth, 0));
+        }
+
+        /**
+         * Counts each root move's subtree to depth - 1, for comparing with another
+         * engine's divide output. Stores the moves and their counts in moves and
+         * counts and returns how many there are.
+         */
+        int divide(Position root, int depth, int[] moves, long[] counts) {
+            clearTable();
+            int n = MoveGenerator.generate(root, moves);
+            Node[] tasks = new Node[n];
+            for (int i = 0; i < n; i++) tasks[i] = new Node(copy(root, moves[i]), depth - 1, 1);
+            pool.invoke(new RecursiveTask<Long>() {
+                @Override
+                protected Long compute() {
+                    invokeAll(tasks);
+                    return 0L;
+                }
+            });
+            for (int i = 0; i < n; i++) counts[i] = tasks[i].join();
+            return n;
+        }
+
+        void shutdown() {
+            pool.shutdown();
+        }
+
+        /* Every run starts from an empty table, so runs at different thread counts are timed alike. */
+        private void clearTable() {
+            if (table == null) return;
+            for (int i = 0; i < table.length(); i++) table.setOpaque(i, 0L);
+        }
+
+        private static Position copy(Position pos, int move) {
+            Position copy = new Position(MAX_DEPTH);
+            copy.copyFrom(pos);
+            if (move != Move.NONE) copy.makeMove(move);
+            return copy;
+        }
+
+        /* The subtree below pos, split into child tasks while ply < splitPlies. */
+        private final class Node extends RecursiveTask<Long> {
+
+            private final Position pos;
+            private final int depth;
+            private final int ply;
+
+            Node(Position pos, int depth, int ply) {
+                this.pos = pos;
+                this.depth = depth;
+                this.ply = ply;
+            }
+
+            @Override
+            protected Long compute() {
+                if (depth <= 0) return 1L;
+                if (ply >= splitPlies || depth <= 2) return count(pos, moves.get(), 0, depth);
+
+                long cached = probe(pos.hash, depth);
+                if (cached >= 0) return cached;
+                int[] list = new int[MoveGenerator.MAX_MOVES];
+                int n = MoveGenerator.generate(pos, list);
+                Node[] children = new Node[n];
+                for (int i = 0; i < n; i++) children[i] = new Node(copy(pos, list[i]), depth - 1, ply + 1);
+                invokeAll(children);
+                long nodes = 0;
+                for (Node child : children) nodes += child.join();
+                store(pos.hash, depth, nodes);
+                return nodes;
+            }
+        }
+
+        private long count(Position pos, int[][] lists, int ply, int depth) {
+            long cached = depth > 1 ? probe(pos.hash, depth) : -1;
+            if (cached >= 0) return cached;
+
+            int[] list = lists[ply];
+            int n = MoveGenerator.generate(pos, list);
+            if (depth == 1) return n;
+
+            long nodes = 0;
+            for (int i = 0; i < n; i++) {
+                pos.makeMove(list[i]);
+                nodes += count(pos, lists, ply + 1, depth - 1);
+                pos.unmakeMove(list[i]);
+            }
+            store(pos.hash, depth, nodes);
+            return nodes;
+        }
+
+        /* The stored count for hash at depth, or -1. */
+        private long probe(long hash, int depth) {
+            if (table == null) return -1;
+            long key = hash ^ depth * DEPTH_KEY;
+            int i = 2 * ((int) key & mask);
+            long count = table.getOpaque(i + 1);
+            return (table.getOpaque(i) ^ count) == key && count > 0 ? count : -1;
+        }
+
+        private void store(long hash, int depth, long count) {
+            if (table == null) return;
+            long key = hash ^ depth * DEPTH_KEY;
+            int i = 2 * ((int) key & mask);
+            table.setOpaque(i, key ^ count);
+            table.setOpaque(i + 1, count);
+        }
+    }
+
+    /**
+     * The per-piece target squares of the GUI's original generator, expanded
+     * into moves. That contract has no castling, en passant, promotion or check
+     * rules, so its counts only match the reference at shallow depths; it is kept
+     * as the head-to-head baseline for the bitboard generator.
+     */
+    static final class Squares extends Perft {
+
+        private final Position pos = new Position(MAX_DEPTH);
+
+        Squares() {
+            super("squares", false);
+        }
+
+        @Override
+        long count(Position root, int depth) {
+            pos.copyFrom(root);
+            return count(depth);
+        }
+
+        private long count(int depth) {
+            long nodes = 0;
+
+            long own = pos.colors[pos.sideToMove];
+            while (own != 0) {
+                int from = Long.numberOfTrailingZeros(own);
+                own &= own - 1;
+
+                long targets = pos.targets(from);
+                if (depth == 1) {
+                    nodes += Long.bitCount(targets);
+                    continue;
+                }
+                while (targets != 0) {
+                    int to = Long.numberOfTrailingZeros(targets);
+                    targets &= targets - 1;
+
+                    int flags = Move.QUIET;
+                    if (pos.pieceAt(to) != Piece.NONE) flags = Move.CAPTURE;
+                    else if (Piece.type(pos.pieceAt(from)) == Piece.PAWN && Math.abs(to - from) == 16) flags = Move.DOUBLE_PUSH;
+
+                    int move = Move.make(from, to, flags);
+                    pos.makeMove(move);
+                    nodes += count(depth - 1);
+                    pos.unmakeMove(move);
+                }
+            }
+            return nodes;
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package chess;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Standard Algebraic Notation and Portable Game Notation.
+ *
+ * SAN is read straight from bytes (see PgnReader) and matched against the
+ * pieces that can reach the destination square, so reading a move allocates
+ * nothing. A piece move is only tested for legality when two pieces of the
+ * same kind could make it; pawn moves, which are cheap to test, always are.
+ * Writing SAN disambiguates by file, then rank, then both, and marks check
+ * and mate.
+ */
+final class Pgn {
+
+    static final String WHITE_WINS = "1-0";
+    static final String BLACK_WINS = "0-1";
+    static final String DRAW = "1/2-1/2";
+    static final String UNKNOWN = "*";
+
+    private static final String[] ROSTER = {"Event", "Site", "Date", "Round", "White", "Black", "Result"};
+
+    private Pgn() {}
+
+    /** The move written in SAN, e.g. "Nbd7", "exd6", "e8=Q+" or "O-O-O#". The position is left as it was. */
+    static String toSan(Position pos, int move) {
+
+        StringBuilder sb = new StringBuilder(8);
+        int from = Move.from(move);
+        int to = Move.to(move);
+        int type = Piece.type(pos.pieceAt(from));
+
+        if (Move.flags(move) == Move.KING_CASTLE) {
+            sb.append("O-O");
+        } else if (Move.flags(move) == Move.QUEEN_CASTLE) {
+            sb.append("O-O-O");
+        } else if (type == Piece.PAWN) {
+            if (Move.isCapture(move)) sb.append((char) ('a' + Bitboard.col(from))).append('x');
+            sb.append(Move.squareName(to));
+            if (Move.isPromotion(move)) sb.append('=').append("NBRQ".charAt(Move.promotionType(move) - Piece.KNIGHT));
+        } else {
+            sb.append("PNBRQK".charAt(type));
+
+            // Other pieces of the same kind that could also go to the same square
+            int[] moves = new int[MoveGenerator.MAX_MOVES];
+            int n = MoveGenerator.generate(pos, moves);
+            boolean ambiguous = false, sameFile = false, sameRank = false;
+            for (int i = 0; i < n; i++) {
+                int other = Move.from(moves[i]);
+                if (Move.to(moves[i]) != to || other == from || pos.pieceAt(other) != pos.pieceAt(from)) continue;
+                ambiguous = true;
+                sameFile |= Bitboard.col(other) == Bitboard.col(from);
+                sameRank |= Bitboard.row(other) == Bitboard.row(from);
+            }
+            if (ambiguous) {
+                if (! sameFile) sb.append((char) ('a' + Bitboard.col(from)));
+                else if (! sameRank) sb.append((char) ('1' + Bitboard.row(from)));
+                else sb.append(Move.squareName(from));
+            }
+            if (Move.isCapture(move)) sb.append('x');
+            sb.append(Move.squareName(to));
+        }
+
+        pos.makeMove(move);
+        if (pos.inCheck()) {
+            boolean mate = MoveGenerator.generate(pos, new int[MoveGenerator.MAX_MOVES]) == 0;
+            sb.append(mate ? '#' : '+');
+        }
+        pos.unmakeMove(move);
+        return sb.toString();
+    }
+
+    /** The legal move written in SAN, or Move.NONE. */
+    static int parseSan(Position pos, String san) {
+        byte[] bytes = san.getBytes(StandardCharsets.US_ASCII);
+        return parseSan(pos, ByteBuffer.wrap(bytes), 0, bytes.length);
+    }
+
+    /**
+     * The legal move written in SAN in buf[start, end), or Move.NONE. Check,
+     * mate and annotation marks are ignored, and "0-0" is accepted for "O-O".
+     * Only absolute gets are used, so the buffer's position is not changed.
+     */
+    static int parseSan(Position pos, ByteBuffer buf, int start, int end) {
+
+        while (end > start && isSuffix(buf.get(end - 1))) end--;
+        if (end - start < 2) return Move.NONE;
+
+        int us = pos.sideToMove;
+        byte first = buf.get(start);
+
+        // Castling: O-O or O-O-O
+        if (first == 'O' || first == '0') {
+            int king = (us == Piece.WHITE) ? 4 : 60;
+            int length = end - start;
+            int move = length == 3 ? Move.make(king, king + 2, Move.KING_CASTLE)
+                    : length == 5 ? Move.make(king, king - 2, Move.QUEEN_CASTLE) : Move.NONE;
+            return (move != Move.NONE && isLegal(pos, move)) ? move : Move.NONE;
+        }
+
+        // Promotion piece at the end, with or without '='
+        int promotion = -1;
+        int last = pieceType(buf.get(end - 1));
+        if (last > Piece.PAWN && last < Piece.KING) {
+            promotion = last;
+            end--;
+            if (buf.get(end - 1) == '=') end--;
+        }
+        if (end - start < 2) return Move.NONE;
+
+        int toFile = buf.get(end - 2) - 'a';
+        int toRank = buf.get(end - 1) - '1';
+        if (toFile < 0 || toFile > 7 || toRank < 0 || toRank > 7) return Move.NONE;
+        int to = toRank * 8 + toFile;
+
+        int type = pieceType(first);
+        int i = (type == Piece.PAWN) ? start : start + 1;
+        if (type < 0) return Move.NONE;
+
+        // Whatever lies between piece and destination: disambiguation and 'x'
+        int fromFile = -1, fromRank = -1;
+        for (; i < end - 2; i++) {
+            byte c = buf.get(i);
+            if (c >= 'a' && c <= 'h') fromFile = c - 'a';
+            else if (c >= '1' && c <= '8') fromRank = c - '1';
+            else if (c != 'x' && c != ':' && c != '-') return Move.NONE;
+        }
+
+        long toBit = 1L << to;
+        if ((pos.colors[us] & toBit) != 0) return Move.NONE;
+        boolean capture = (pos.colors[us ^ 1] & toBit) != 0;
+
+        if (type == Piece.PAWN) return pawnMove(pos, to, fromFile, capture, promotion);
+        if (promotion >= 0) return Move.NONE;
+
+        long candidates;
+        switch (type) {
+            case Piece.KNIGHT: candidates = Bitboard.KNIGHT_ATTACKS[to]; break;
+            case Piece.BISHOP: candidates = Bitboard.bishopAttacks(to, pos.occupied); break;
+            case Piece.ROOK:   candidates = Bitboard.rookAttacks(to, pos.occupied); break;
+            case Piece.QUEEN:  candidates = Bitboard.queenAttacks(to, pos.occupied); break;
+            default:           candidates = Bitboard.KING_ATTACKS[to];
+        }
+        candidates &= pos.pieces[Piece.make(us, type)];
+        if (fromFile >= 0) candidates &= Bitboard.FILE_A << fromFile;
+        if (fromRank >= 0) candidates &= Bitboard.RANK_1 << (8 * fromRank);
+
+        int flags = capture ? Move.CAPTURE : Move.QUIET;
+        int found = Move.NONE;
+        while (candidates != 0) {
+            int from = Long.numberOfTrailingZeros(candidates);
+            candidates &= candidates - 1;
+            int move = Move.make(from, to, flags);
+            if (isLegal(pos, move)) {
+                if (found != Move.NONE) return Move.NONE;              // really ambiguous
+                found = move;
+            }
+        }
+        return found;
+    }
+
+    private static int pawnMove(Position pos, int to, int fromFile, boolean capture, int promotion) {
+
+        int us = pos.sideToMove;
+        int up = (us == Piece.WHITE) ? 8 : -8;
+        long pawns = pos.pieces[Piece.make(us, Piece.PAWN)];
+        boolean lastRank = (us == Piece.WHITE) ? to >= 56 : to < 8;
+        if (lastRank != (promotion >= 0)) return Move.NONE;
+
+        int from;
+        int flags;
+        if (fromFile >= 0 && fromFile != Bitboard.col(to)) {
+            from = to - up + (fromFile - Bitboard.col(to));
+            if (Math.abs(fromFile - Bitboard.col(to)) != 1 || (pawns & (1L << from)) == 0) return Move.NONE;
+            if (capture) flags = Move.CAPTURE;
+            else if (to == pos.epSquare) flags = Move.EN_PASSANT;
+            else return Move.NONE;
+        } else {
+            if (capture) return Move.NONE;
+            from = to - up;
+            flags = Move.QUIET;
+            if ((pawns & (1L << from)) == 0 && pos.pieceAt(from) == Piece.NONE
+                    && Bitboard.row(to) == (us == Piece.WHITE ? 3 : 4)) {
+                from -= up;
+                flags = Move.DOUBLE_PUSH;
+            }
+            if ((pawns & (1L << from)) == 0) return Move.NONE;
+        }
+        if (promotion >= 0) flags |= Move.PROMOTION | (promotion - Piece.KNIGHT);
+
+        int move = Move.make(from, to, flags);
+        return isLegal(pos, move) ? move : Move.NONE;
+    }
+
+    /* A well-formed move can still be illegal here: a pinned piece, a king stepping into check, or castling through check. */
+    private static boolean isLegal(Position pos, int move) {
+        int flags = Move.flags(move);
+        if (flags == Move.KING_CASTLE || flags == Move.QUEEN_CASTLE) {
+            int[] moves = new int[MoveGenerator.MAX_MOVES];
+            int n = MoveGenerator.generate(pos, moves);
+            for (int i = 0; i < n; i++) {
+                if (moves[i] == move) return true;
+            }
+            return false;
+        }
+        // A piece other than the king, off every line through its king, can't uncover a check, so
+        // unless the king is already in check there is nothing to test
+        int us = pos.sideToMove;
+        int king = pos.kingSquare(us);
+        int from = Move.from(move);
+        if (flags != Move.EN_PASSANT && from != king && Bitboard.LINE[king][from] == 0 && ! pos.inCheck()) return true;
+
+        pos.makeMove(move);
+        boolean legal = ! pos.isAttacked(pos.kingSquare(us), us ^ 1);
+        pos.unmakeMove(move);
+        return legal;
+    }
+
+    private static boolean isSuffix(byte c) {
+        return c == '+' || c == '#' || c == '!' || c == '?';
+    }
+
+    /* Piece type for a SAN piece letter, PAWN for a file letter, -1 otherwise. */
+    private static int pieceType(byte c) {
+        switch (c) {
+            case 'N': return Piece.KNIGHT;
+            case 'B': return Piece.BISHOP;
+            case 'R': return Piece.ROOK;
+            case 'Q': return Piece.QUEEN;
+            case 'K': return Piece.KING;
+            default: return (c >= 'a' && c <= 'h') ? Piece.PAWN : -1;
+        }
+    }
+
+    /** The result a finished game calls for, or UNKNOWN while it can go on. */
+    static String result(GameState game) {
+        if (game.isCheckmate()) return game.sideToMove() == Piece.WHITE ? BLACK_WINS : WHITE_WINS;
+        if (game.isStalemate()) return DRAW;
+        return UNKNOWN;
+    }
+
+    /**
+     * Writes the game as PGN: the seven tag roster (from tags, "?" where
+     * missing), any other tags, SetUp/FEN for a game not started from the
+     * initial position, and the movetext wrapped at 80 columns.
+     */
+    static void write(GameState game, Map<String, String> tags, Appendable out) throws IOException {
+
+        Map<String, String> all = new LinkedHashMap<>();
+        for (String name : ROSTER) all.put(name, tags.getOrDefault(name, "?"));
+        if (! tags.containsKey("Result")) all.put("Result", result(game));
+        all.putAll(tags);
+        if (! game.startFen().equals(Position.START_FEN)) {
+            all.put("SetUp", "1");
+            all.put("FEN", game.startFen());
+        }
+        for (Map.Entry<String, String> tag : all.entrySet()) {
+            out.append('[').append(tag.getKey()).append(" \"")
+                    .append(tag.getValue().replace("\\", "\\\\").replace("\"", "\\\"")).append("\"]\n");
+        }
+        out.append('\n');
+
+        Position pos = Position.fromFen(game.startFen());
+        StringBuilder line = new StringBuilder(88);
+        for (int i = 0; i < game.moveCount(); i++) {
+            int move = game.moveAt(i);
+            String token = "";
+            if (pos.sideToMove == Piece.WHITE) token = pos.fullmoveNumber + ". ";
+            else if (i == 0) token = pos.fullmoveNumber + "... ";
+            token += toSan(pos, move);
+            line = appendWrapped(out, line, token);
+            pos.makeMove(move);
+        }
+        line = appendWrapped(out, line, all.get("Result"));
+        out.append(line).append("\n\n");
+    }
+
+    private static StringBuilder appendWrapped(Appendable out, StringBuilder line, String token) throws IOException {
+        if (line.length() > 0 && line.length() + 1 + token.length() > 80) {
+            out.append(line).append('\n');
+            line.setLength(0);
+        }
+        if (line.length() > 0) line.append(' ');
+        return line.append(token);
+    }
+}
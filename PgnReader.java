@@ -0,0 +1,293 @@
+package chess;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Streams the games of a PGN file of any size through a Visitor.
+ *
+ * The file is memory-mapped a window (1 GB) at a time and tokenized in place:
+ * tags and results reach the visitor as CharSequence views of the mapped
+ * bytes, and moves are read from the bytes into a packed move, so no String is
+ * made per move. Each move is played on one reused Position, which the
+ * visitor sees just before the move is made. Comments, variations, NAGs and
+ * "%" escape lines are skipped; a game with a move that can't be read is
+ * reported with error set and the reader goes on with the next game.
+ *
+ * A window is only moved forward between games, so a single game must be
+ * smaller than MARGIN (1 MB) to be read across a window boundary.
+ */
+final class PgnReader implements AutoCloseable {
+
+    interface Visitor {
+
+        default void startGame() {}
+
+        /** A tag pair; the views are only valid during the call. */
+        default void tag(CharSequence name, CharSequence value) {}
+
+        /** Called with the position before each move; returning false skips the rest of the game. */
+        default boolean move(Position pos, int move) {
+            return true;
+        }
+
+        /** The game's result token ("*" when missing) and the position after its last move read. */
+        default void endGame(Position pos, CharSequence result, boolean error) {}
+    }
+
+    private static final long WINDOW = 1L << 30;
+    private static final int MARGIN = 1 << 20;
+
+    private final FileChannel channel;
+    private final long size;
+    private MappedByteBuffer buf;
+    private long base;                                  // file offset of buf[0]
+    private int limit;
+
+    private final Position start = Position.fromFen(Position.START_FEN);
+    private final Position pos = new Position(512);
+    private final Slice name = new Slice();
+    private final Slice value = new Slice();
+
+    private long games;
+    private long moves;
+    private long errors;
+
+    PgnReader(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        size = channel.size();
+        map(0);
+    }
+
+    long games() {
+        return games;
+    }
+
+    long moves() {
+        return moves;
+    }
+
+    /** Games in which a move could not be read, or whose FEN tag was invalid. */
+    long errors() {
+        return errors;
+    }
+
+    private void map(long offset) throws IOException {
+        base = offset;
+        limit = (int) Math.min(WINDOW, size - offset);
+        buf = channel.map(FileChannel.MapMode.READ_ONLY, base, limit);
+    }
+
+    /** Reads every game from the file to the visitor; returns the number of games. */
+    long read(Visitor visitor) throws IOException {
+
+        int p = 0;
+        boolean inGame = false;
+        boolean sawMoves = false;                       // a '[' after moves starts the next game
+        boolean skip = false;                           // rest of the game is ignored
+        boolean error = false;
+
+        while (true) {
+            if (p >= limit) {
+                if (inGame) {
+                    finish(visitor, null, error || base + limit < size);
+                    inGame = false;
+                }
+                if (base + limit >= size) break;
+                map(base + p);                          // only reached with a game larger than MARGIN
+                p = 0;
+                continue;
+            }
+
+            byte c = buf.get(p);
+            if (c <= ' ') {
+                p++;
+                continue;
+            }
+
+            if (c == '[' && inGame && sawMoves) {
+                finish(visitor, null, error);
+                inGame = false;
+            }
+            if (! inGame) {
+                if (p > limit - MARGIN && base + limit < size) {
+                    map(base + p);
+                    p = 0;
+                }
+                inGame = true;
+                sawMoves = skip = error = false;
+                pos.copyFrom(start);
+                visitor.startGame();
+            }
+
+            switch (c) {
+                case '[': p = tag(visitor, p + 1);
+                    if (p < 0) {
+                        p = -p;
+                        skip = error = true;
+                    }
+                    break;
+                case '{': p = skipPast(p + 1, (byte) '}'); break;
+                case ';':
+                case '%': p = skipPast(p + 1, (byte) '\n'); break;
+                case '(': p = skipVariation(p + 1); break;
+                case '$': p = skipToken(p + 1); break;
+                case '*':
+                    name.set(p, p + 1);
+                    finish(visitor, name, error);
+                    inGame = false;
+                    p++;
+                    break;
+                default:
+                    int end = skipToken(p);
+                    sawMoves = true;
+                    if (c >= '0' && c <= '9' && isResult(p, end)) {
+                        name.set(p, end);
+                        finish(visitor, name, error);
+                        inGame = false;
+                    } else if (! skip) {
+                        int san = p;
+                        if (c >= '1' && c <= '9') {                        // move number, maybe glued to the move
+                            while (san < end && buf.get(san) >= '0' && buf.get(san) <= '9') san++;
+                            while (san < end && buf.get(san) == '.') san++;
+                        }
+                        if (san < end) {
+                            int move = Pgn.parseSan(pos, buf, san, end);
+                            if (move == Move.NONE) {
+                                skip = error = true;
+                            } else {
+                                if (! visitor.move(pos, move)) skip = true;
+                                pos.makeMove(move);
+                                moves++;
+                            }
+                        }
+                    }
+                    p = end;
+            }
+        }
+        return games;
+    }
+
+    private void finish(Visitor visitor, Slice result, boolean error) {
+        if (result == null) {
+            name.set(0, 0);
+            name.missing = true;
+            result = name;
+        }
+        games++;
+        if (error) errors++;
+        visitor.endGame(pos, result, error);
+        name.missing = false;
+    }
+
+    /* [Name "Value"], starting after the '['. Returns the position after ']', negated if the FEN was bad. */
+    private int tag(Visitor visitor, int p) {
+        int nameStart = p;
+        while (p < limit && buf.get(p) > ' ' && buf.get(p) != '"') p++;
+        name.set(nameStart, p);
+        while (p < limit && buf.get(p) != '"' && buf.get(p) != ']') p++;
+
+        int valueStart = ++p;
+        while (p < limit && buf.get(p) != '"') {
+            if (buf.get(p) == '\\') p++;
+            p++;
+        }
+        value.set(valueStart, Math.min(p, limit));
+        p = skipPast(p, (byte) ']');
+
+        boolean bad = false;
+        if (name.is("FEN")) {
+            try {
+                pos.setFen(value.toString());
+            } catch (IllegalArgumentException e) {
+                bad = true;
+            }
+        }
+        visitor.tag(name, value);
+        return bad ? -p : p;
+    }
+
+    private int skipPast(int p, byte end) {
+        while (p < limit && buf.get(p) != end) p++;
+        return Math.min(p + 1, limit);
+    }
+
+    /* Skips a (possibly nested) variation, starting after its '('. */
+    private int skipVariation(int p) {
+        int depth = 1;
+        while (p < limit && depth > 0) {
+            byte c = buf.get(p++);
+            if (c == '(') depth++;
+            else if (c == ')') depth--;
+            else if (c == '{') p = skipPast(p, (byte) '}');
+        }
+        return p;
+    }
+
+    private int skipToken(int p) {
+        while (p < limit) {
+            byte c = buf.get(p);
+            if (c <= ' ' || c == '{' || c == '(' || c == ')' || c == ';' || c == '[' || c == '$') break;
+            p++;
+        }
+        return p;
+    }
+
+    /* 1-0, 0-1 or 1/2-1/2 */
+    private boolean isResult(int p, int end) {
+        int length = end - p;
+        if (length == 3) return buf.get(p + 1) == '-' && (buf.get(p) == '1' ? buf.get(p + 2) == '0' : buf.get(p + 2) == '1');
+        return length == 7 && buf.get(p + 1) == '/' && buf.get(p + 3) == '-';
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /* A view of bytes in the current window as ASCII characters. */
+    private final class Slice implements CharSequence {
+
+        private int start;
+        private int end;
+        private boolean missing;                        // stands for an absent result, reads as "*"
+
+        void set(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        boolean is(String s) {
+            if (s.length() != length()) return false;
+            for (int i = 0; i < s.length(); i++) {
+                if (s.charAt(i) != charAt(i)) return false;
+            }
+            return true;
+        }
+
+        @Override
+        public int length() {
+            return missing ? 1 : end - start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return missing ? '*' : (char) (buf.get(start + index) & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            return toString().substring(from, to);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(length());
+            for (int i = 0; i < length(); i++) sb.append(charAt(i));
+            return sb.toString();
+        }
+    }
+}
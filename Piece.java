@@ -0,0 +1,46 @@
+package chess;
+
+/**
+ * Integer piece codes shared by the bitboard position and the move generator.
+ *
+ * A piece code is color * 6 + type, so the twelve colored pieces fit in 0..11
+ * and can index per-piece tables directly. NONE marks an empty square.
+ */
+final class Piece {
+
+    static final int WHITE = 0;                     // "player" side, starts on rows 1 and 2
+    static final int BLACK = 1;                     // "opponent" side, starts on rows 7 and 8
+
+    static final int PAWN = 0;
+    static final int KNIGHT = 1;
+    static final int BISHOP = 2;
+    static final int ROOK = 3;
+    static final int QUEEN = 4;
+    static final int KING = 5;
+
+    static final int NONE = -1;
+
+    static final String[] NAMES = new String[] {"pawn", "knight", "bishop", "rook", "queen", "king"};
+
+    private Piece() {}
+
+    static int make(int color, int type) {
+        return color * 6 + type;
+    }
+
+    static int color(int piece) {
+        return piece < 6 ? WHITE : BLACK;
+    }
+
+    static int type(int piece) {
+        return piece < 6 ? piece : piece - 6;
+    }
+
+    /** Looks up a type from the names used by Game.ChessPiece, or NONE if unknown. */
+    static int typeOf(String name) {
+        for (int t = 0; t < NAMES.length; t++) {
+            if (NAMES[t].equals(name)) return t;
+        }
+        return NONE;
+    }
+}
@@ -0,0 +1,440 @@
+package chess;
+
+/**
+ * Bitboard representation of a chess position.
+ *
+ * There is one long per colored piece (indexed by Piece code), one per side and
+ * one for total occupancy. A small mailbox copy of the board is kept alongside
+ * so the piece standing on a square can be found without scanning bitboards.
+ *
+ * makeMove() pushes what it cannot recompute (captured piece, castling rights,
+ * en passant square, halfmove clock and hash) onto an undo stack of primitive
+ * arrays, so unmakeMove() restores the previous position exactly. The stack
+ * only grows when a game gets longer than it has ever been; making and
+ * unmaking moves allocates nothing.
+ *
+ * put() and remove() also keep the evaluation's material and piece-square
+ * sums, and the inputs of an attached Network, up to date, so every move
+ * updates them incrementally.
+ */
+final class Position {
+
+    static final String START_FEN = "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1";
+
+    static final int WHITE_KINGSIDE = 1;                // castling rights bits
+    static final int WHITE_QUEENSIDE = 2;
+    static final int BLACK_KINGSIDE = 4;
+    static final int BLACK_QUEENSIDE = 8;
+
+    private static final int[] CASTLING_MASK = new int[64];     // rights kept when a piece leaves or lands on a square
+
+    static {
+        java.util.Arrays.fill(CASTLING_MASK, 0xF);
+        CASTLING_MASK[0] = ~WHITE_QUEENSIDE & 0xF;
+        CASTLING_MASK[4] = ~(WHITE_KINGSIDE | WHITE_QUEENSIDE) & 0xF;
+        CASTLING_MASK[7] = ~WHITE_KINGSIDE & 0xF;
+        CASTLING_MASK[56] = ~BLACK_QUEENSIDE & 0xF;
+        CASTLING_MASK[60] = ~(BLACK_KINGSIDE | BLACK_QUEENSIDE) & 0xF;
+        CASTLING_MASK[63] = ~BLACK_KINGSIDE & 0xF;
+    }
+
+    final long[] pieces = new long[12];
+    final long[] colors = new long[2];
+    long occupied;
+
+    int sideToMove = Piece.WHITE;
+    int castling;
+    int epSquare = -1;                                  // square a pawn may capture onto en passant, or -1
+    int halfmoveClock;
+    int fullmoveNumber = 1;
+    long hash;                                          // Zobrist key, updated incrementally
+    int mgScore;                                        // Evaluation.MG and EG summed over the board, white minus black
+    int egScore;
+    int phase;                                          // Evaluation.PHASE summed over the board
+    Network.Accumulator accumulator;                    // null unless a network evaluates this position
+
+    private final byte[] board = new byte[64];
+
+    private long[] undoHash;                            // hash before each move on the stack
+    private int[] undoState;                            // captured piece, castling, en passant and halfmove clock
+    private int undoCount;
+
+    Position() {
+        this(16);
+    }
+
+    /** A position whose undo stack holds capacity moves before it has to grow. */
+    Position(int capacity) {
+        java.util.Arrays.fill(board, (byte) Piece.NONE);
+        undoHash = new long[capacity];
+        undoState = new int[capacity];
+    }
+
+    static Position fromFen(String fen) {
+        Position pos = new Position();
+        pos.setFen(fen);
+        return pos;
+    }
+
+    void setFen(String fen) {
+
+        String[] fields = fen.trim().split("\\s+");
+        if (fields.length < 4) throw new IllegalArgumentException("Invalid FEN: " + fen);
+
+        clear();
+
+        int row = 7;
+        int col = 0;
+        for (char c : fields[0].toCharArray()) {
+            if (c == '/') {
+                row--;
+                col = 0;
+            } else if (c >= '1' && c <= '8') {
+                col += c - '0';
+            } else {
+                int type = "pnbrqk".indexOf(Character.toLowerCase(c));
+                if (type < 0 || row < 0 || col > 7) throw new IllegalArgumentException("Invalid FEN: " + fen);
+                put(row * 8 + col++, Piece.make(Character.isUpperCase(c) ? Piece.WHITE : Piece.BLACK, type));
+            }
+        }
+
+        sideToMove = fields[1].equals("b") ? Piece.BLACK : Piece.WHITE;
+
+        for (char c : fields[2].toCharArray()) {
+            switch (c) {
+                case 'K': castling |= WHITE_KINGSIDE; break;
+                case 'Q': castling |= WHITE_QUEENSIDE; break;
+                case 'k': castling |= BLACK_KINGSIDE; break;
+                case 'q': castling |= BLACK_QUEENSIDE; break;
+                default: break;
+            }
+        }
+
+        epSquare = fields[3].equals("-") ? -1 : (fields[3].charAt(1) - '1') * 8 + (fields[3].charAt(0) - 'a');
+        if (epSquare >= 0 && ! canCaptureEnPassant(epSquare)) epSquare = -1;
+        hash = computeHash();
+        halfmoveClock = fields.length > 4 ? Integer.parseInt(fields[4]) : 0;
+        fullmoveNumber = fields.length > 5 ? Integer.parseInt(fields[5]) : 1;
+    }
+
+    /** The position in Forsyth-Edwards Notation; setFen(toFen()) gives the same position and hash. */
+    String toFen() {
+        StringBuilder sb = new StringBuilder(90);
+        for (int row = 7; row >= 0; row--) {
+            int empty = 0;
+            for (int col = 0; col < 8; col++) {
+                int piece = board[row * 8 + col];
+                if (piece == Piece.NONE) {
+                    empty++;
+                    continue;
+                }
+                if (empty > 0) sb.append(empty);
+                empty = 0;
+                char c = "pnbrqk".charAt(Piece.type(piece));
+                sb.append(Piece.color(piece) == Piece.WHITE ? Character.toUpperCase(c) : c);
+            }
+            if (empty > 0) sb.append(empty);
+            if (row > 0) sb.append('/');
+        }
+
+        sb.append(sideToMove == Piece.WHITE ? " w " : " b ");
+        if (castling == 0) sb.append('-');
+        if ((castling & WHITE_KINGSIDE) != 0) sb.append('K');
+        if ((castling & WHITE_QUEENSIDE) != 0) sb.append('Q');
+        if ((castling & BLACK_KINGSIDE) != 0) sb.append('k');
+        if ((castling & BLACK_QUEENSIDE) != 0) sb.append('q');
+
+        sb.append(' ').append(epSquare >= 0 ? Move.squareName(epSquare) : "-");
+        sb.append(' ').append(halfmoveClock).append(' ').append(fullmoveNumber);
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return toFen();
+    }
+
+    void clear() {
+        java.util.Arrays.fill(pieces, 0L);
+        java.util.Arrays.fill(board, (byte) Piece.NONE);
+        colors[0] = colors[1] = occupied = 0L;
+        sideToMove = Piece.WHITE;
+        castling = 0;
+        epSquare = -1;
+        halfmoveClock = 0;
+        fullmoveNumber = 1;
+        hash = 0L;
+        mgScore = egScore = phase = 0;
+        undoCount = 0;
+        if (accumulator != null) accumulator.reset();
+    }
+
+    void copyFrom(Position other) {
+        System.arraycopy(other.pieces, 0, pieces, 0, 12);
+        System.arraycopy(other.board, 0, board, 0, 64);
+        colors[0] = other.colors[0];
+        colors[1] = other.colors[1];
+        occupied = other.occupied;
+        sideToMove = other.sideToMove;
+        castling = other.castling;
+        epSquare = other.epSquare;
+        halfmoveClock = other.halfmoveClock;
+        fullmoveNumber = other.fullmoveNumber;
+        hash = other.hash;
+        mgScore = other.mgScore;
+        egScore = other.egScore;
+        phase = other.phase;
+        if (accumulator != null) accumulator.refresh(this);
+
+        // The undo stack comes along, so the copy can take moves back and detect repetitions
+        ensureUndoCapacity(other.undoCount);
+        System.arraycopy(other.undoHash, 0, undoHash, 0, other.undoCount);
+        System.arraycopy(other.undoState, 0, undoState, 0, other.undoCount);
+        undoCount = other.undoCount;
+    }
+
+    /** Number of moves that can be taken back. */
+    int undoCount() {
+        return undoCount;
+    }
+
+    /** Hash from scratch; makeMove() keeps hash equal to this without recomputing. */
+    long computeHash() {
+        long h = 0L;
+        for (int sq = 0; sq < 64; sq++) {
+            if (board[sq] != Piece.NONE) h ^= Zobrist.PIECES[board[sq]][sq];
+        }
+        h ^= Zobrist.CASTLING[castling];
+        if (epSquare >= 0) h ^= Zobrist.EP_FILE[Bitboard.col(epSquare)];
+        if (sideToMove == Piece.BLACK) h ^= Zobrist.SIDE;
+        return h;
+    }
+
+    /* En passant is only part of the position (and its hash) when a pawn can actually take. */
+    private boolean canCaptureEnPassant(int sq) {
+        return (Bitboard.PAWN_ATTACKS[sideToMove ^ 1][sq] & pieces[Piece.make(sideToMove, Piece.PAWN)]) != 0;
+    }
+
+    /** Has network evaluate this position from now on, or the tables again if it is null. */
+    void setNetwork(Network network) {
+        accumulator = network == null ? null : network.newAccumulator();
+        if (accumulator != null) accumulator.refresh(this);
+    }
+
+    int pieceAt(int sq) {
+        return board[sq];
+    }
+
+    void put(int sq, int piece) {
+        long b = 1L << sq;
+        board[sq] = (byte) piece;
+        hash ^= Zobrist.PIECES[piece][sq];
+        pieces[piece] |= b;
+        colors[Piece.color(piece)] |= b;
+        occupied |= b;
+        mgScore += Evaluation.MG[piece][sq];
+        egScore += Evaluation.EG[piece][sq];
+        phase += Evaluation.PHASE[piece];
+        if (accumulator != null) accumulator.add(piece, sq);
+    }
+
+    void remove(int sq) {
+        int piece = board[sq];
+        if (piece == Piece.NONE) return;
+        long b = ~(1L << sq);
+        board[sq] = (byte) Piece.NONE;
+        hash ^= Zobrist.PIECES[piece][sq];
+        pieces[piece] &= b;
+        colors[Piece.color(piece)] &= b;
+        occupied &= b;
+        mgScore -= Evaluation.MG[piece][sq];
+        egScore -= Evaluation.EG[piece][sq];
+        phase -= Evaluation.PHASE[piece];
+        if (accumulator != null) accumulator.remove(piece, sq);
+    }
+
+    /** Moves whatever stands on from to to, removing any piece already on to. */
+    void move(int from, int to) {
+        int piece = board[from];
+        remove(to);
+        remove(from);
+        put(to, piece);
+    }
+
+    /** Plays a move produced by MoveGenerator, including castling, en passant and promotion. */
+    void makeMove(int move) {
+
+        int from = Move.from(move);
+        int to = Move.to(move);
+        int flags = Move.flags(move);
+        int piece = board[from];
+        int us = sideToMove;
+
+        int capturedSquare = (flags == Move.EN_PASSANT) ? (us == Piece.WHITE ? to - 8 : to + 8) : to;
+        int captured = Move.isCapture(move) ? board[capturedSquare] : Piece.NONE;
+        pushUndo(captured);
+
+        halfmoveClock++;
+        if (Piece.type(piece) == Piece.PAWN || captured != Piece.NONE) halfmoveClock = 0;
+
+        if (captured != Piece.NONE) remove(capturedSquare);
+
+        remove(from);
+        put(to, Move.isPromotion(move) ? Piece.make(us, Move.promotionType(move)) : piece);
+
+        if (flags == Move.KING_CASTLE) move(to + 1, to - 1);
+        else if (flags == Move.QUEEN_CASTLE) move(to - 2, to + 1);
+
+        if (epSquare >= 0) hash ^= Zobrist.EP_FILE[Bitboard.col(epSquare)];
+        epSquare = -1;
+        if (flags == Move.DOUBLE_PUSH
+                && (Bitboard.PAWN_ATTACKS[us][(from + to) >>> 1] & pieces[Piece.make(us ^ 1, Piece.PAWN)]) != 0) {
+            epSquare = (from + to) >>> 1;
+            hash ^= Zobrist.EP_FILE[Bitboard.col(epSquare)];
+        }
+
+        hash ^= Zobrist.CASTLING[castling];
+        castling &= CASTLING_MASK[from] & CASTLING_MASK[to];
+        hash ^= Zobrist.CASTLING[castling];
+
+        if (us == Piece.BLACK) fullmoveNumber++;
+        sideToMove = us ^ 1;
+        hash ^= Zobrist.SIDE;
+    }
+
+    /** Takes back move, which must be the last move made. */
+    void unmakeMove(int move) {
+
+        int from = Move.from(move);
+        int to = Move.to(move);
+        int flags = Move.flags(move);
+        int them = sideToMove;
+        int us = them ^ 1;
+
+        int state = undoState[--undoCount];
+
+        if (flags == Move.KING_CASTLE) move(to - 1, to + 1);
+        else if (flags == Move.QUEEN_CASTLE) move(to + 1, to - 2);
+
+        int piece = Move.isPromotion(move) ? Piece.make(us, Piece.PAWN) : board[to];
+        remove(to);
+        put(from, piece);
+
+        int captured = (state & 0xF) - 1;
+        if (captured != Piece.NONE) {
+            put(flags == Move.EN_PASSANT ? (us == Piece.WHITE ? to - 8 : to + 8) : to, captured);
+        }
+
+        castling = (state >>> 4) & 0xF;
+        epSquare = ((state >>> 8) & 0x7F) - 1;
+        halfmoveClock = state >>> 16;
+        if (us == Piece.BLACK) fullmoveNumber--;
+        sideToMove = us;
+        hash = undoHash[undoCount];
+    }
+
+    /** Passes the turn without moving, as used by null-move pruning. */
+    void makeNullMove() {
+        pushUndo(Piece.NONE);
+        if (epSquare >= 0) hash ^= Zobrist.EP_FILE[Bitboard.col(epSquare)];
+        epSquare = -1;
+        halfmoveClock++;
+        sideToMove ^= 1;
+        hash ^= Zobrist.SIDE;
+    }
+
+    void unmakeNullMove() {
+        int state = undoState[--undoCount];
+        epSquare = ((state >>> 8) & 0x7F) - 1;
+        halfmoveClock = state >>> 16;
+        sideToMove ^= 1;
+        hash = undoHash[undoCount];
+    }
+
+    /** Whether the current position already occurred since the last capture or pawn move. */
+    boolean isRepetition() {
+        int oldest = Math.max(0, undoCount - halfmoveClock);
+        for (int i = undoCount - 2; i >= oldest; i -= 2) {
+            if (undoHash[i] == hash) return true;
+        }
+        return false;
+    }
+
+    /** How many times the current position occurred before, since the last capture or pawn move; 2 is a threefold repetition. */
+    int repetitions() {
+        int oldest = Math.max(0, undoCount - halfmoveClock);
+        int n = 0;
+        for (int i = undoCount - 2; i >= oldest; i -= 2) {
+            if (undoHash[i] == hash) n++;
+        }
+        return n;
+    }
+
+    private void pushUndo(int captured) {
+        if (undoCount == undoHash.length) ensureUndoCapacity(Math.max(16, undoCount * 2));
+        undoHash[undoCount] = hash;
+        undoState[undoCount++] = (captured + 1) | (castling << 4) | ((epSquare + 1) << 8) | (halfmoveClock << 16);
+    }
+
+    private void ensureUndoCapacity(int capacity) {
+        if (capacity <= undoHash.length) return;
+        undoHash = java.util.Arrays.copyOf(undoHash, capacity);
+        undoState = java.util.Arrays.copyOf(undoState, capacity);
+    }
+
+    int kingSquare(int color) {
+        return Long.numberOfTrailingZeros(pieces[Piece.make(color, Piece.KING)]);
+    }
+
+    boolean isAttacked(int sq, int byColor) {
+        int base = Piece.make(byColor, Piece.PAWN);
+        long queens = pieces[base + Piece.QUEEN];
+        return (Bitboard.PAWN_ATTACKS[byColor ^ 1][sq] & pieces[base + Piece.PAWN]) != 0
+                || (Bitboard.KNIGHT_ATTACKS[sq] & pieces[base + Piece.KNIGHT]) != 0
+                || (Bitboard.KING_ATTACKS[sq] & pieces[base + Piece.KING]) != 0
+                || (Bitboard.bishopAttacks(sq, occupied) & (pieces[base + Piece.BISHOP] | queens)) != 0
+                || (Bitboard.rookAttacks(sq, occupied) & (pieces[base + Piece.ROOK] | queens)) != 0;
+    }
+
+    boolean inCheck() {
+        return isAttacked(kingSquare(sideToMove), sideToMove ^ 1);
+    }
+
+    /**
+     * Squares the piece on sq can move to or capture on: empty squares and enemy
+     * pieces it attacks, with sliding rays stopped by the first blocker.
+     */
+    long targets(int sq) {
+
+        int piece = board[sq];
+        if (piece == Piece.NONE) return 0L;
+
+        int color = Piece.color(piece);
+        long own = colors[color];
+
+        switch (Piece.type(piece)) {
+            case Piece.PAWN:   return pawnTargets(sq, color);
+            case Piece.KNIGHT: return Bitboard.KNIGHT_ATTACKS[sq] & ~own;
+            case Piece.BISHOP: return Bitboard.bishopAttacks(sq, occupied) & ~own;
+            case Piece.ROOK:   return Bitboard.rookAttacks(sq, occupied) & ~own;
+            case Piece.QUEEN:  return Bitboard.queenAttacks(sq, occupied) & ~own;
+            case Piece.KING:   return Bitboard.KING_ATTACKS[sq] & ~own;
+            default:           return 0L;
+        }
+    }
+
+    private long pawnTargets(int sq, int color) {
+        long from = 1L << sq;
+        long empty = ~occupied;
+        long single, twoSteps;
+
+        if (color == Piece.WHITE) {
+            single = (from << 8) & empty;
+            twoSteps = ((single & Bitboard.RANK_3) << 8) & empty;       // only from the starting row, never jumping
+        } else {
+            single = (from >>> 8) & empty;
+            twoSteps = ((single & Bitboard.RANK_6) >>> 8) & empty;
+        }
+        return single | twoSteps | (Bitboard.PAWN_ATTACKS[color][sq] & colors[color ^ 1]);
+    }
+}
@@ -0,0 +1,598 @@
+package chess;
+
+/**
+ * Iterative-deepening alpha-beta search.
+ *
+ * Each iteration runs a principal variation search (full window on the first
+ * move, null windows with re-search on the rest) followed by a captures-only
+ * quiescence search at the leaves. Null-move pruning and late-move reductions
+ * cut the tree; moves are ordered by the transposition table move, the previous
+ * iteration's principal variation, MVV-LVA for captures, then killer and
+ * history heuristics. Results are cached in a TranspositionTable, which may
+ * be shared with other Search instances. With a Tablebase set, any position
+ * below the root with few enough pieces is scored from it without searching.
+ *
+ * Moves are made and unmade on one Position owned by the search, so the tree
+ * walk allocates nothing. A Search instance owns all of its buffers and is
+ * meant to be reused by one thread at a time; stop() may be called from any
+ * thread.
+ */
+final class Search {
+
+    static final int INFINITY = 32000;
+    static final int MATE = 31000;                      // score for giving mate at the root; mate in n plies is MATE - n
+    static final int MAX_PLY = 64;
+
+    private static final int NO_SCORE = Integer.MIN_VALUE;
+
+    private static final int[][] REDUCTIONS = new int[MAX_PLY][MoveGenerator.MAX_MOVES];
+
+    static {
+        for (int depth = 1; depth < MAX_PLY; depth++) {
+            for (int count = 1; count < MoveGenerator.MAX_MOVES; count++) {
+                REDUCTIONS[depth][count] = (int) (0.75 + Math.log(depth) * Math.log(count) / 2.25);
+            }
+        }
+    }
+
+    /** Told about every iteration the search completes, e.g. to print UCI "info" lines. */
+    interface Listener {
+        void iterationDone(Result result);
+    }
+
+    /**
+     * How far a search may go. Whichever limit is reached first ends it, and
+     * stopping the limits ends every search running under them.
+     *
+     * timeMillis is a hard limit. With a soft limit as well, no new iteration
+     * starts after about softMillis, less when the best move has stayed the
+     * same for a few iterations and more when it just changed. A pondering
+     * search ignores both until ponderHit(), and its time counts from then.
+     */
+    static final class Limits {
+
+        int depth = MAX_PLY - 1;
+        long nodes = Long.MAX_VALUE;
+        long timeMillis = Long.MAX_VALUE;
+        long softMillis = Long.MAX_VALUE;
+
+        volatile boolean stopped;
+        volatile boolean pondering;
+        Listener listener;                              // optional, called from the searching thread
+
+        void stop() {
+            stopped = true;
+        }
+
+        /** The predicted move was played: the search goes on as a normal timed one. */
+        void ponderHit() {
+            pondering = false;
+        }
+
+        /**
+         * Soft and hard limits for one move from the clock: remaining time, the
+         * increment and delay per move, and the moves to the next time control
+         * (0 if none). The hard limit never takes more than a third of what is left.
+         */
+        static Limits clock(long remaining, long increment, long delay, int movesToGo) {
+            Limits limits = new Limits();
+            long available = Math.max(1, remaining - 30);               // for the GUI or the link to answer
+            long soft = remaining / (movesToGo > 0 ? movesToGo + 1 : 30) + increment * 3 / 4 + delay;
+            limits.timeMillis = Math.max(1, Math.min(soft * 4, available / 3 + delay));
+            limits.softMillis = Math.max(1, Math.min(soft, limits.timeMillis));
+            return limits;
+        }
+
+        static Limits depth(int depth) {
+            Limits limits = new Limits();
+            limits.depth = depth;
+            return limits;
+        }
+
+        static Limits nodes(long nodes) {
+            Limits limits = new Limits();
+            limits.nodes = nodes;
+            return limits;
+        }
+
+        static Limits time(long millis) {
+            Limits limits = new Limits();
+            limits.timeMillis = millis;
+            return limits;
+        }
+    }
+
+    /** The outcome of the deepest completed iteration. */
+    static final class Result {
+
+        final int bestMove;
+        final int score;
+        final int depth;
+        final long nodes;
+        final long millis;
+        final int[] pv;
+        final long ttProbes;                                    // table lookups and hits; Engine.think sums them over its threads
+        final long ttHits;
+
+        Result(int bestMove, int score, int depth, long nodes, long millis, int[] pv) {
+            this(bestMove, score, depth, nodes, millis, pv, 0, 0);
+        }
+
+        Result(int bestMove, int score, int depth, long nodes, long millis, int[] pv, long ttProbes, long ttHits) {
+            this.bestMove = bestMove;
+            this.score = score;
+            this.depth = depth;
+            this.nodes = nodes;
+            this.millis = millis;
+            this.pv = pv;
+            this.ttProbes = ttProbes;
+            this.ttHits = ttHits;
+        }
+
+        long nps() {
+            return millis > 0 ? nodes * 1000 / millis : nodes * 1000;
+        }
+
+        /** The share of table lookups that found their position, 0 to 1. */
+        double ttHitRate() {
+            return ttProbes > 0 ? (double) ttHits / ttProbes : 0.0;
+        }
+
+        /** The score as UCI writes it: "cp 35", or "mate 3" / "mate -2" in moves. */
+        String scoreString() {
+            if (Math.abs(score) < MATE - MAX_PLY) return "cp " + score;
+            return "mate " + (score > 0 ? (MATE - score + 1) / 2 : -(MATE + score) / 2);
+        }
+
+        String pvString() {
+            StringBuilder sb = new StringBuilder();
+            for (int move : pv) {
+                if (sb.length() > 0) sb.append(' ');
+                sb.append(Move.toString(move));
+            }
+            return sb.toString();
+        }
+    }
+
+    private final Position pos = new Position(MAX_PLY + 16);        // made and unmade in place, never copied
+    private final int[][] moves = new int[MAX_PLY][MoveGenerator.MAX_MOVES];
+    private final int[][] orderScores = new int[MAX_PLY][MoveGenerator.MAX_MOVES];
+    private final int[][] killers = new int[MAX_PLY][2];
+    private final int[][] history = new int[12][64];                // [piece][to square]
+    private final int[][] pvTable = new int[MAX_PLY][MAX_PLY];
+    private final int[] pvLength = new int[MAX_PLY];
+
+    private final TranspositionTable tt;
+    private final int threadId;                                     // 0 for the main thread, helpers are 1..n
+    private final boolean agesTable;                                // whether each search starts a new table generation
+
+    private Tablebase tablebase;                                    // null for none
+    private Limits limits;
+    private int[] lastPv = new int[0];
+    private long nodes;
+    private long tablebaseHits;
+    private long ttProbes;                                          // counted always, returned on the Result
+    private long ttHits;
+    private long cutoffs;
+    private long firstMoveCutoffs;
+    private long generations;
+    private long generated;
+    private final long[] published = new long[7];                   // nodes and the counts above at the last iteration
+    private long lastIterationNodes;
+    private long nodeLimit;
+    private long deadline;
+    private long clockStart;                                        // when the search's time started: at the start or the ponder hit
+    private boolean pondering;
+    private volatile boolean stopped;
+
+    Search() {
+        this(new TranspositionTable(16));
+    }
+
+    Search(TranspositionTable tt) {
+        this(tt, 0);
+    }
+
+    Search(TranspositionTable tt, int threadId) {
+        this(tt, threadId, threadId == 0);
+    }
+
+    /** agesTable is false for a search whose table is aged by its owner, as the helpers' is by the main thread. */
+    Search(TranspositionTable tt, int threadId, boolean agesTable) {
+        this.tt = tt;
+        this.threadId = threadId;
+        this.agesTable = agesTable;
+    }
+
+    TranspositionTable table() {
+        return tt;
+    }
+
+    /** Tables to score endings from, or null; only set between searches. */
+    void setTablebase(Tablebase tablebase) {
+        this.tablebase = tablebase;
+    }
+
+    long tablebaseHits() {
+        return tablebaseHits;
+    }
+
+    /** The network to evaluate with, or null for the tables; only set between searches. */
+    void setNetwork(Network network) {
+        pos.setNetwork(network);
+    }
+
+    void stop() {
+        stopped = true;
+    }
+
+    /** Nodes visited so far by the current or last search; may be read from any thread. */
+    long nodes() {
+        return nodes;
+    }
+
+    Result search(Position root, Limits limits) {
+
+        long start = System.currentTimeMillis();
+        clockStart = start;
+        pondering = limits.pondering;
+        deadline = (pondering || limits.timeMillis == Long.MAX_VALUE) ? Long.MAX_VALUE : start + limits.timeMillis;
+        nodeLimit = limits.nodes;
+        nodes = 0;
+        tablebaseHits = 0;
+        ttProbes = ttHits = cutoffs = firstMoveCutoffs = generations = generated = 0;
+        java.util.Arrays.fill(published, 0);
+        lastIterationNodes = 0;
+        this.limits = limits;
+        stopped = limits.stopped;
+        lastPv = new int[0];
+        for (int[] k : killers) k[0] = k[1] = Move.NONE;
+        for (int[] h : history) java.util.Arrays.fill(h, 0);
+        if (agesTable) tt.newSearch();
+
+        pos.copyFrom(root);
+
+        int[] rootMoves = new int[MoveGenerator.MAX_MOVES];
+        int count = MoveGenerator.generate(root, rootMoves);
+        Result result = new Result(count > 0 ? rootMoves[0] : Move.NONE, 0, 0, 0, 0, new int[0]);
+        if (count == 0) return result;
+
+        // Helper threads start one ply deeper every other thread, so they spread over
+        // neighbouring depths and fill the shared table ahead of the main thread
+        int score = 0;
+        int stable = 0;                                             // iterations the best move has stayed the same
+        for (int depth = 1 + (threadId & 1); depth <= Math.min(limits.depth, MAX_PLY - 1); depth++) {
+
+            Metrics.SearchIteration event = Metrics.ENABLED ? new Metrics.SearchIteration() : null;
+            long iterationStart = 0;
+            if (event != null) {
+                event.begin();
+                iterationStart = System.nanoTime();
+            }
+
+            // Aspiration window around the previous score, widened on failure
+            int window = 50;
+            int alpha = depth >= 4 ? score - window : -INFINITY;
+            int beta = depth >= 4 ? score + window : INFINITY;
+            while (true) {
+                score = pvs(0, depth, alpha, beta, false);
+                if (stopped) break;
+                if (score <= alpha) alpha = Math.max(-INFINITY, alpha - window);
+                else if (score >= beta) beta = Math.min(INFINITY, beta + window);
+                else break;
+                window *= 2;
+            }
+            if (stopped) break;
+
+            lastPv = java.util.Arrays.copyOf(pvTable[0], pvLength[0]);
+            long now = System.currentTimeMillis();
+            int bestMove = lastPv.length > 0 ? lastPv[0] : result.bestMove;
+            stable = (bestMove == result.bestMove && result.depth > 0) ? stable + 1 : 0;
+            result = new Result(bestMove, score, depth, nodes, now - start, lastPv, ttProbes, ttHits);
+            if (limits.listener != null) limits.listener.iterationDone(result);
+            if (event != null) publish(event, depth, score, System.nanoTime() - iterationStart);
+
+            if (Math.abs(score) >= MATE - MAX_PLY) break;                              // forced mate found
+            if (pondering && ! limits.pondering) ponderHit();
+            if (pondering) continue;
+            long elapsed = now - clockStart;
+            if (limits.softMillis != Long.MAX_VALUE) {
+                // An unstable best move earns more time, a settled one less
+                int percent = stable == 0 ? 150 : stable < 3 ? 100 : 60;
+                if (elapsed * 100 > limits.softMillis * percent) break;
+            } else if (limits.timeMillis != Long.MAX_VALUE && elapsed > limits.timeMillis / 2) {
+                break;                                                                 // next depth won't finish
+            }
+        }
+
+        return new Result(result.bestMove, result.score, result.depth, nodes,
+                System.currentTimeMillis() - start, result.pv, ttProbes, ttHits);
+    }
+
+    private int pvs(int ply, int depth, int alpha, int beta, boolean allowNull) {
+
+        pvLength[ply] = ply;
+        if (depth <= 0) return quiesce(ply, alpha, beta);
+
+        nodes++;
+        if ((nodes & 2047) == 0) checkLimits();
+        if (stopped) return 0;
+
+        boolean pvNode = beta - alpha > 1;
+
+        if (ply > 0) {
+            if (pos.halfmoveClock >= 100 || pos.isRepetition()) return 0;
+            int exact = tablebaseScore(ply);
+            if (exact != NO_SCORE) return exact;
+            alpha = Math.max(alpha, -MATE + ply);                    // mate distance pruning
+            beta = Math.min(beta, MATE - ply - 1);
+            if (alpha >= beta) return alpha;
+        }
+        if (ply >= MAX_PLY - 1) return Evaluation.evaluate(pos);
+
+        int ttMove = Move.NONE;
+        long entry = tt.probe(pos.hash);
+        ttProbes++;
+        if (entry != 0) {
+            ttHits++;
+            ttMove = TranspositionTable.move(entry);
+            if (! pvNode && TranspositionTable.depth(entry) >= depth) {
+                int score = scoreFromTable(TranspositionTable.score(entry), ply);
+                int bound = TranspositionTable.bound(entry);
+                if (bound == TranspositionTable.EXACT
+                        || (bound == TranspositionTable.LOWER && score >= beta)
+                        || (bound == TranspositionTable.UPPER && score <= alpha)) {
+                    return score;
+                }
+            }
+        }
+        int originalAlpha = alpha;
+
+        boolean inCheck = pos.inCheck();
+        if (inCheck) depth++;                                       // check extension
+
+        // Null move: if passing still fails high, a real move surely would too
+        if (allowNull && ! pvNode && ! inCheck && depth >= 3 && Evaluation.hasNonPawnMaterial(pos)
+                && Evaluation.evaluate(pos) >= beta) {
+            int r = depth > 6 ? 3 : 2;
+            pos.makeNullMove();
+            int score = -pvs(ply + 1, depth - 1 - r, -beta, -beta + 1, false);
+            pos.unmakeNullMove();
+            if (stopped) return 0;
+            if (score >= beta) return score >= MATE - MAX_PLY ? beta : score;
+        }
+
+        int[] list = moves[ply];
+        int n = MoveGenerator.generate(pos, list);
+        generations++;
+        generated += n;
+        if (n == 0) return inCheck ? -MATE + ply : 0;
+
+        scoreMoves(pos, ply, n, ttMove);
+
+        int bestScore = -INFINITY;
+        int bestMove = Move.NONE;
+        for (int i = 0; i < n; i++) {
+
+            int move = pickNext(ply, i, n);
+            boolean quiet = ! Move.isCapture(move) && ! Move.isPromotion(move);
+
+            int piece = pos.pieceAt(Move.from(move));
+            pos.makeMove(move);
+
+            int score;
+            if (i == 0) {
+                score = -pvs(ply + 1, depth - 1, -beta, -alpha, true);
+            } else {
+                int reduction = 0;
+                if (depth >= 3 && i >= 3 && quiet && ! inCheck
+                        && move != killers[ply][0] && move != killers[ply][1] && ! pos.inCheck()) {
+                    reduction = Math.min(REDUCTIONS[Math.min(depth, MAX_PLY - 1)][i], depth - 2);
+                    if (pvNode && reduction > 0) reduction--;
+                }
+                score = -pvs(ply + 1, depth - 1 - reduction, -alpha - 1, -alpha, true);
+                if (score > alpha && reduction > 0) score = -pvs(ply + 1, depth - 1, -alpha - 1, -alpha, true);
+                if (score > alpha && score < beta) score = -pvs(ply + 1, depth - 1, -beta, -alpha, true);
+            }
+            pos.unmakeMove(move);
+            if (stopped) return 0;
+
+            if (score > bestScore) {
+                bestScore = score;
+                bestMove = move;
+                if (score > alpha) {
+                    alpha = score;
+                    updatePv(ply, move);
+                    if (score >= beta) {
+                        cutoffs++;
+                        if (i == 0) firstMoveCutoffs++;
+                        if (quiet) {
+                            if (killers[ply][0] != move) {
+                                killers[ply][1] = killers[ply][0];
+                                killers[ply][0] = move;
+                            }
+                            history[piece][Move.to(move)] += depth * depth;
+                        }
+                        break;
+                    }
+                }
+            }
+        }
+
+        int bound = bestScore >= beta ? TranspositionTable.LOWER
+                : bestScore > originalAlpha ? TranspositionTable.EXACT : TranspositionTable.UPPER;
+        tt.store(pos.hash, bestMove, scoreToTable(bestScore, ply), depth, bound);
+        return bestScore;
+    }
+
+    /* Adds this iteration's counts to the registry and commits its JFR events. */
+    private void publish(Metrics.SearchIteration event, int depth, int score, long nanos) {
+        long[] now = {nodes, ttProbes, ttHits, cutoffs, firstMoveCutoffs, generations, generated};
+        long[] delta = new long[now.length];
+        for (int i = 0; i < now.length; i++) delta[i] = now[i] - published[i];
+        long previousNodes = lastIterationNodes;
+        lastIterationNodes = delta[0];
+        System.arraycopy(now, 0, published, 0, now.length);
+
+        event.end();
+        long nps = delta[0] * 1_000_000_000L / Math.max(1, nanos);
+        Metrics.NODES.add(delta[0]);
+        Metrics.ITERATIONS.increment();
+        Metrics.TT_PROBES.add(delta[1]);
+        Metrics.TT_HITS.add(delta[2]);
+        Metrics.CUTOFFS.add(delta[3]);
+        Metrics.FIRST_MOVE_CUTOFFS.add(delta[4]);
+        Metrics.GENERATIONS.add(delta[5]);
+        Metrics.GENERATED.add(delta[6]);
+        Metrics.NPS.record(nps);
+        if (previousNodes > 0) Metrics.BRANCHING.record(delta[0] * 100 / previousNodes);
+
+        if (event.shouldCommit()) {
+            event.thread = threadId;
+            event.depth = depth;
+            event.score = score;
+            event.nodes = delta[0];
+            event.nps = nps;
+            event.branching = previousNodes > 0 ? (double) delta[0] / previousNodes : 0;
+            event.firstMoveCutoffRate = delta[3] > 0 ? (double) delta[4] / delta[3] : 0;
+            event.commit();
+        }
+        Metrics.MoveGeneration generation = new Metrics.MoveGeneration();
+        if (generation.shouldCommit()) {
+            generation.thread = threadId;
+            generation.depth = depth;
+            generation.calls = delta[5];
+            generation.moves = delta[6];
+            generation.commit();
+        }
+        Metrics.TableProbes probes = new Metrics.TableProbes();
+        if (probes.shouldCommit()) {
+            probes.thread = threadId;
+            probes.depth = depth;
+            probes.probes = delta[1];
+            probes.hits = delta[2];
+            probes.hitRate = delta[1] > 0 ? (double) delta[2] / delta[1] : 0;
+            probes.commit();
+        }
+    }
+
+    /* The exact score of pos from the tablebase, or NO_SCORE if it has too many pieces or no table. */
+    private int tablebaseScore(int ply) {
+        if (tablebase == null || Long.bitCount(pos.occupied) > Tablebase.MAX_PIECES) return NO_SCORE;
+        int value = tablebase.probe(pos);
+        if (value == Tablebase.NONE) return NO_SCORE;
+        tablebaseHits++;
+        return Tablebase.score(value, ply);
+    }
+
+    private int quiesce(int ply, int alpha, int beta) {
+
+        nodes++;
+        if ((nodes & 2047) == 0) checkLimits();
+        if (stopped) return 0;
+
+        int exact = tablebaseScore(ply);
+        if (exact != NO_SCORE) return exact;
+
+        int standPat = Evaluation.evaluate(pos);
+        if (standPat >= beta || ply >= MAX_PLY - 1) return standPat;
+        if (standPat > alpha) alpha = standPat;
+
+        // Only captures and queen promotions
+        int n = MoveGenerator.generateCaptures(pos, moves[ply]);
+        scoreMoves(pos, ply, n, Move.NONE);
+
+        for (int i = 0; i < n; i++) {
+            int move = pickNext(ply, i, n);
+
+            pos.makeMove(move);
+            int score = -quiesce(ply + 1, -beta, -alpha);
+            pos.unmakeMove(move);
+            if (stopped) return 0;
+
+            if (score > alpha) {
+                if (score >= beta) return score;
+                alpha = score;
+            }
+        }
+        return alpha;
+    }
+
+    /* Ordering keys: table move, previous PV move, captures by MVV-LVA, promotions, killers and history. */
+    private void scoreMoves(Position pos, int ply, int n, int ttMove) {
+        int[] list = moves[ply];
+        int[] scores = orderScores[ply];
+        int pvMove = ply < lastPv.length ? lastPv[ply] : Move.NONE;
+
+        for (int i = 0; i < n; i++) {
+            int move = list[i];
+            int from = Move.from(move);
+            int to = Move.to(move);
+            if (move == ttMove) {
+                scores[i] = Integer.MAX_VALUE;
+            } else if (move == pvMove) {
+                scores[i] = 1 << 30;
+            } else if (Move.isCapture(move)) {
+                int victim = Move.flags(move) == Move.EN_PASSANT ? Piece.PAWN : Piece.type(pos.pieceAt(to));
+                scores[i] = (1 << 28) + Evaluation.VALUES[victim] * 8 - Piece.type(pos.pieceAt(from));
+            } else if (Move.isPromotion(move)) {
+                scores[i] = (1 << 27) + Move.promotionType(move);
+            } else if (move == killers[ply][0]) {
+                scores[i] = (1 << 26) + 1;
+            } else if (move == killers[ply][1]) {
+                scores[i] = 1 << 26;
+            } else {
+                scores[i] = Math.min(history[pos.pieceAt(from)][to], (1 << 26) - 1);
+            }
+        }
+    }
+
+    /* Selection sort one step at a time, since a cutoff usually comes before the list is exhausted. */
+    private int pickNext(int ply, int i, int n) {
+        int[] list = moves[ply];
+        int[] scores = orderScores[ply];
+        int best = i;
+        for (int j = i + 1; j < n; j++) {
+            if (scores[j] > scores[best]) best = j;
+        }
+        int move = list[best];
+        list[best] = list[i];
+        list[i] = move;
+        int score = scores[best];
+        scores[best] = scores[i];
+        scores[i] = score;
+        return move;
+    }
+
+    private void updatePv(int ply, int move) {
+        pvTable[ply][ply] = move;
+        int childLength = (ply + 1 < MAX_PLY) ? pvLength[ply + 1] : ply + 1;
+        for (int i = ply + 1; i < childLength; i++) pvTable[ply][i] = pvTable[ply + 1][i];
+        pvLength[ply] = Math.max(childLength, ply + 1);
+    }
+
+    /* Mate scores are stored relative to the node, not the root, so they stay valid at any ply. */
+    private static int scoreToTable(int score, int ply) {
+        if (score >= MATE - MAX_PLY) return score + ply;
+        if (score <= -MATE + MAX_PLY) return score - ply;
+        return score;
+    }
+
+    private static int scoreFromTable(int score, int ply) {
+        if (score >= MATE - MAX_PLY) return score - ply;
+        if (score <= -MATE + MAX_PLY) return score + ply;
+        return score;
+    }
+
+    /* The pondered move was played: the clock starts now. */
+    private void ponderHit() {
+        pondering = false;
+        clockStart = System.currentTimeMillis();
+        if (limits.timeMillis != Long.MAX_VALUE) deadline = clockStart + limits.timeMillis;
+    }
+
+    private void checkLimits() {
+        if (pondering && ! limits.pondering) ponderHit();
+        if (nodes >= nodeLimit || limits.stopped || System.currentTimeMillis() >= deadline) stopped = true;
+    }
+}
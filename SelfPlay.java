@@ -0,0 +1,188 @@
+package chess;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Paths;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Self-play games that label positions for training an evaluation, run
+ * without the Swing window:
+ *
+ *   java chess.Game selfplay [directory] [-games N] [-threads N] [-nodes N] [-random N]
+ *       [-shard records] [-hash MB] [-eval network.nnue] [-tablebases dir] [-seed N]
+ *
+ * Each worker thread owns a search and its table and plays whole games. The
+ * first few plies of a game are random legal moves, so games spread out from
+ * the initial position. From there every move is searched to a node limit,
+ * and each position not in check and without a mate score is kept with that
+ * search's score. When the game ends (as Tournament adjudicates it, or once
+ * both sides' scores have agreed on a clear win for a few plies) its result
+ * is filled into its records, and they go to the TrainingData.Writer as one
+ * batch.
+ */
+final class SelfPlay {
+
+    private static final long REPORT_NANOS = 10_000_000_000L;
+    private static final int WIN_SCORE = 1500;                  // centipawns both sides must see...
+    private static final int WIN_PLIES = 4;                     // ...for this many plies in a row to end the game
+
+    private String directory;
+    private long games = 10_000;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private long nodes = 1000;                                  // per move
+    private int randomPlies = 8;
+    private long shardRecords = 1 << 20;                        // 32 MB shards
+    private int hash = 8;                                       // MB per worker
+    private String eval;
+    private String tablebaseDirectory = "tablebases";
+    private int maxPlies = 400;
+    private long seed = System.nanoTime();
+
+    // One run's state
+    private Network network;
+    private Tablebase tablebase;
+    private TrainingData.Writer writer;
+    private SplittableRandom seeds;
+    private final AtomicLong nextGame = new AtomicLong();
+    private final LongAdder played = new LongAdder();
+    private final LongAdder positions = new LongAdder();
+    private volatile IOException writeError;
+
+    static SelfPlay fromArgs(String[] args) {
+        SelfPlay s = new SelfPlay();
+        boolean named = args.length > 1 && ! args[1].startsWith("-");
+        s.directory = named ? args[1] : "training";
+        for (int i = named ? 2 : 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "-games": s.games = Long.parseLong(Tournament.value(args, i++)); break;
+                case "-threads": s.threads = Math.max(1, Integer.parseInt(Tournament.value(args, i++))); break;
+                case "-nodes": s.nodes = Long.parseLong(Tournament.value(args, i++)); break;
+                case "-random": s.randomPlies = Integer.parseInt(Tournament.value(args, i++)); break;
+                case "-shard": s.shardRecords = Long.parseLong(Tournament.value(args, i++)); break;
+                case "-hash": s.hash = Math.max(1, Integer.parseInt(Tournament.value(args, i++))); break;
+                case "-eval": s.eval = Tournament.value(args, i++); break;
+                case "-tablebases": s.tablebaseDirectory = Tournament.value(args, i++); break;
+                case "-seed": s.seed = Long.parseLong(Tournament.value(args, i++)); break;
+                default: throw new IllegalArgumentException("unknown option " + args[i]);
+            }
+        }
+        return s;
+    }
+
+    /** Plays the games and returns the number of positions written. */
+    long run(PrintStream log) throws IOException, InterruptedException {
+
+        network = eval != null ? Network.load(Paths.get(eval)) : null;
+        tablebase = Tablebase.open(Paths.get(tablebaseDirectory));
+        seeds = new SplittableRandom(seed);
+
+        long start = System.nanoTime();
+        Thread[] workers = new Thread[threads];
+        try (TrainingData.Writer out = new TrainingData.Writer(Paths.get(directory), shardRecords)) {
+            writer = out;
+            for (int i = 0; i < threads; i++) {
+                SplittableRandom random = seeds.split();
+                workers[i] = new Thread(() -> work(random), "selfplay-" + (i + 1));
+                workers[i].setDaemon(true);
+                workers[i].start();
+            }
+            for (Thread worker : workers) {
+                while (worker.isAlive()) {
+                    worker.join(REPORT_NANOS / 1_000_000);
+                    if (worker.isAlive()) report(log, System.nanoTime() - start, false);
+                }
+            }
+        }
+        if (writeError != null) throw writeError;
+        report(log, System.nanoTime() - start, true);
+        return positions.sum();
+    }
+
+    /* One worker: plays games until all are taken, writing each game's records when it ends. */
+    private void work(SplittableRandom random) {
+        TranspositionTable table = new TranspositionTable(hash);
+        Search search = new Search(table);
+        search.setNetwork(network);
+        search.setTablebase(tablebase);
+        ByteBuffer records = ByteBuffer.allocate(TrainingData.RECORD_BYTES * 512).order(ByteOrder.LITTLE_ENDIAN);
+        int[] moves = new int[MoveGenerator.MAX_MOVES];
+
+        while (writeError == null && nextGame.getAndIncrement() < games) {
+            table.clear();
+            records.clear();
+            GameState game = opening(random, moves);
+            Position pos = game.position();
+
+            Tournament.Outcome outcome;
+            int winning = 0;                                    // plies in a row with a clear win for one side
+            int winner = Piece.NONE;
+            while ((outcome = Tournament.adjudicate(game, tablebase, maxPlies)) == null) {
+                Search.Result result = search.search(pos, Search.Limits.nodes(nodes));
+                boolean mate = Math.abs(result.score) >= Search.MATE - Search.MAX_PLY;
+                if (! pos.inCheck() && ! mate) {
+                    if (records.remaining() < TrainingData.RECORD_BYTES) records = grow(records);
+                    TrainingData.encode(pos, result.score, TrainingData.DRAW, records);
+                }
+
+                int ahead = result.score >= 0 ? pos.sideToMove : pos.sideToMove ^ 1;
+                winning = Math.abs(result.score) >= WIN_SCORE && (winning == 0 || ahead == winner) ? winning + 1 : 0;
+                winner = ahead;
+                if (! game.play(result.bestMove)) throw new IllegalStateException("search returned " + Move.toString(result.bestMove));
+                if (winning >= WIN_PLIES) {
+                    outcome = new Tournament.Outcome(winner == Piece.WHITE ? Pgn.WHITE_WINS : Pgn.BLACK_WINS, "adjudication");
+                    break;
+                }
+            }
+
+            int label = outcome.result.equals(Pgn.WHITE_WINS) ? TrainingData.WHITE_WINS
+                    : outcome.result.equals(Pgn.BLACK_WINS) ? TrainingData.BLACK_WINS : TrainingData.DRAW;
+            for (int offset = 0; offset < records.position(); offset += TrainingData.RECORD_BYTES) {
+                TrainingData.setResult(records, offset, label);
+            }
+            records.flip();
+            int n = records.remaining() / TrainingData.RECORD_BYTES;
+            try {
+                writer.write(records);
+            } catch (IOException e) {
+                writeError = e;
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            positions.add(n);
+            played.increment();
+        }
+    }
+
+    /* A game from the initial position after randomPlies random legal moves, with moves left to play. */
+    private GameState opening(SplittableRandom random, int[] moves) {
+        while (true) {
+            GameState game = new GameState();
+            int count = 0;
+            for (int ply = 0; ply < randomPlies; ply++) {
+                count = MoveGenerator.generate(game.position(), moves);
+                if (count == 0) break;
+                game.play(moves[random.nextInt(count)]);
+            }
+            if (MoveGenerator.generate(game.position(), moves) > 0) return game;
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer records) {
+        ByteBuffer bigger = ByteBuffer.allocate(records.capacity() * 2).order(ByteOrder.LITTLE_ENDIAN);
+        records.flip();
+        return bigger.put(records);
+    }
+
+    private void report(PrintStream log, long elapsed, boolean last) {
+        double hours = Math.max(1, elapsed) / 3.6e12;
+        log.printf("%s%d games\t%d positions\t%.2f M positions/hour%n",
+                last ? "Done: " : "", played.sum(), positions.sum(), positions.sum() / hours / 1e6);
+    }
+}
@@ -0,0 +1,307 @@
+package chess;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Headless host for many concurrent games against the engine.
+ *
+ * A session is only a GameState (position arrays and a move list, no squares,
+ * pieces or images) plus a few counters, so tens of thousands fit in one JVM.
+ * Each session handles its commands one at a time, in order, on its own
+ * virtual thread where the runtime has them (Java 21+, looked up
+ * reflectively so this still builds on 17) and otherwise as a serial queue
+ * drained by a small shared pool. Engine replies are computed on a bounded
+ * pool of platform threads, one Search per thread over a shared table, and
+ * come back to the session as one more command. Positions found in the
+ * opening book, if one is set, are answered from it on the session's own
+ * thread without going to the pool, and the engine threads share one
+ * tablebase, if one is set.
+ *
+ * With a Journal set, every session's start position and moves are journaled
+ * as they are played, and recover() brings the sessions of a previous run
+ * back after a crash or restart.
+ */
+final class SessionManager {
+
+    /** Told about every move played in a session, on that session's thread. */
+    interface Listener {
+        void moved(Session session, int move);
+    }
+
+    /** One game. Its state is only touched from its own thread, through execute(). */
+    static final class Session {
+
+        final long id;
+        final int engineSide;
+        final GameState state;
+        private final Listener listener;
+        private final SessionManager manager;
+
+        private final ConcurrentLinkedQueue<Runnable> mailbox = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile boolean closed;
+        private boolean thinking;
+        private long requested;                                     // nanoTime the engine was asked for a move
+
+        // Metrics, written only by the session's thread
+        private volatile int movesPlayed;
+        private volatile int engineMoves;
+        private volatile long engineNodes;
+        private volatile long totalLatency;                         // nanoseconds, request to reply played
+        private volatile long maxLatency;
+
+        private Session(long id, String fen, int engineSide, Listener listener, SessionManager manager) {
+            this.id = id;
+            this.engineSide = engineSide;
+            this.state = new GameState(fen);
+            this.listener = listener;
+            this.manager = manager;
+        }
+
+        int movesPlayed() {
+            return movesPlayed;
+        }
+
+        int engineMoves() {
+            return engineMoves;
+        }
+
+        long engineNodes() {
+            return engineNodes;
+        }
+
+        /** Mean time from a move being submitted to the engine's reply being played, in nanoseconds. */
+        long meanLatency() {
+            int n = engineMoves;
+            return n == 0 ? 0 : totalLatency / n;
+        }
+
+        long maxLatency() {
+            return maxLatency;
+        }
+
+        boolean isClosed() {
+            return closed;
+        }
+
+        /* Runs task after every task submitted before it, never two at once. */
+        private void execute(Runnable task) {
+            mailbox.add(task);
+            if (scheduled.compareAndSet(false, true)) manager.io.execute(this::drain);
+        }
+
+        private void drain() {
+            Runnable task;
+            while ((task = mailbox.poll()) != null) task.run();
+            scheduled.set(false);
+            // A task added between the last poll and clearing the flag would otherwise be stranded
+            if (! mailbox.isEmpty() && scheduled.compareAndSet(false, true)) manager.io.execute(this::drain);
+        }
+
+        private void play(int move) {
+            if (closed || ! state.play(move)) return;
+            movesPlayed++;
+            Journal journal = manager.journal;
+            if (journal != null) journal.append(id, move);
+            if (listener != null) listener.moved(this, move);
+            if (state.sideToMove() == engineSide) manager.requestMove(this);
+        }
+
+        private void enginePlayed(Search.Result result) {
+            thinking = false;
+            if (closed) return;
+
+            long latency = System.nanoTime() - requested;
+            engineMoves++;
+            engineNodes += result.nodes;
+            totalLatency += latency;
+            maxLatency = Math.max(maxLatency, latency);
+            manager.latency.record(latency);
+            manager.engineMoves.incrementAndGet();
+
+            play(result.bestMove);
+        }
+    }
+
+    private static final int AGE_REPLIES = 16;                  // searched replies per table generation
+
+    private final ExecutorService io = ioExecutor();
+    private final ExecutorService enginePool;
+    private final ThreadLocal<Search> searches;
+    private final TranspositionTable tt;
+    private final Search.Limits template;
+    private volatile OpeningBook book;
+    private volatile Tablebase tablebase;
+    private volatile Journal journal;
+
+    private final ConcurrentHashMap<Long, Session> sessions = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong();
+    private final AtomicLong engineMoves = new AtomicLong();
+    private final AtomicLong searched = new AtomicLong();
+    private final Histogram latency = new Histogram();
+
+    /**
+     * @param engineThreads platform threads computing engine replies
+     * @param hashMegabytes size of the table they share
+     * @param limits        depth, node and time limits for every reply
+     */
+    SessionManager(int engineThreads, int hashMegabytes, Search.Limits limits) {
+        tt = new TranspositionTable(hashMegabytes);
+        // Each search runs as a main thread but leaves aging the shared table to requestMove, every AGE_REPLIES
+        // replies, so that sessions running at once don't age out each other's entries
+        searches = ThreadLocal.withInitial(() -> new Search(tt, 0, false));
+        template = limits;
+
+        AtomicInteger count = new AtomicInteger();
+        enginePool = Executors.newFixedThreadPool(Math.max(1, engineThreads), task -> {
+            Thread t = new Thread(task, "session-engine-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /* One new virtual thread per task where available, else a shared platform pool. */
+    private static ExecutorService ioExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            AtomicInteger count = new AtomicInteger();
+            return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), task -> {
+                Thread t = new Thread(task, "session-io-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    /** The book shared by every session, or null to always search. */
+    void setBook(OpeningBook book) {
+        this.book = book;
+    }
+
+    /** Endgame tables for every engine thread, or null. */
+    void setTablebase(Tablebase tablebase) {
+        this.tablebase = tablebase;
+    }
+
+    /** The journal for sessions opened from now on, or null. The manager doesn't close it. */
+    void setJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Reopens every game left in directory's journal files by a previous run,
+     * replaying their moves without checking them again, and has the engine
+     * move where it is its turn. Call before opening new sessions.
+     *
+     * @return the recovered sessions
+     */
+    List<Session> recover(Path directory, Listener listener) throws IOException {
+        List<Session> recovered = new ArrayList<>();
+        for (Journal.Entry entry : Journal.recover(directory)) {
+            Session session = new Session(entry.id, entry.fen, entry.engineSide, listener, this);
+            for (short move : entry.moves) session.state.replay(move & 0xFFFF);
+            session.movesPlayed = entry.moves.length;
+            sessions.put(session.id, session);
+            nextId.accumulateAndGet(entry.id, Math::max);
+            recovered.add(session);
+            session.execute(() -> {
+                if (session.state.sideToMove() == session.engineSide) requestMove(session);
+            });
+        }
+        return recovered;
+    }
+
+    /** Starts a game from fen; the engine plays engineSide and moves at once if it is its turn. */
+    Session open(String fen, int engineSide, Listener listener) {
+        Session session = new Session(nextId.incrementAndGet(), fen, engineSide, listener, this);
+        sessions.put(session.id, session);
+        Journal journal = this.journal;
+        if (journal != null) journal.open(session.id, engineSide, session.state.startFen());
+        session.execute(() -> {
+            if (session.state.sideToMove() == engineSide) requestMove(session);
+        });
+        return session;
+    }
+
+    /** Queues the opponent's move for the session; it is dropped if illegal or not their turn. */
+    void submit(Session session, int move) {
+        session.execute(() -> {
+            if (! session.thinking && session.state.sideToMove() != session.engineSide) session.play(move);
+        });
+    }
+
+    /** Ends a session; its journal file, if any, is deleted. */
+    void close(Session session) {
+        session.closed = true;
+        if (sessions.remove(session.id) != null) {
+            Journal journal = this.journal;
+            if (journal != null) journal.close(session.id);
+        }
+    }
+
+    Session get(long id) {
+        return sessions.get(id);
+    }
+
+    int size() {
+        return sessions.size();
+    }
+
+    long engineMoves() {
+        return engineMoves.get();
+    }
+
+    /** Engine reply latencies over all sessions, in nanoseconds. */
+    Histogram latency() {
+        return latency;
+    }
+
+    /** Stops every session and the pools. Journal files are kept, for recover() in the next run. */
+    void shutdown() {
+        for (Session session : sessions.values()) session.closed = true;
+        sessions.clear();
+        enginePool.shutdownNow();
+        io.shutdownNow();
+    }
+
+    /* Called on the session's thread; the search itself runs on the engine pool. */
+    private void requestMove(Session session) {
+        if (session.thinking || session.state.isCheckmate() || session.state.isStalemate()) return;
+        session.thinking = true;
+        session.requested = System.nanoTime();
+
+        OpeningBook book = this.book;
+        int bookMove = book != null ? book.probe(session.state.position()) : Move.NONE;
+        if (bookMove != Move.NONE) {
+            Search.Result result = new Search.Result(bookMove, 0, 0, 0, 0, new int[] {bookMove});
+            session.execute(() -> session.enginePlayed(result));
+            return;
+        }
+
+        Position root = new Position();
+        root.copyFrom(session.state.position());
+        enginePool.execute(() -> {
+            if (session.closed) return;
+            Search.Limits limits = new Search.Limits();
+            limits.depth = template.depth;
+            limits.nodes = template.nodes;
+            limits.timeMillis = template.timeMillis;
+            if (searched.incrementAndGet() % AGE_REPLIES == 0) tt.newSearch();
+            Search search = searches.get();
+            search.setTablebase(tablebase);
+            Search.Result result = search.search(root, limits);
+            session.execute(() -> session.enginePlayed(result));
+        });
+    }
+}
@@ -0,0 +1,102 @@
+package chess;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.imageio.ImageIO;
+
+/**
+ * The piece images, decoded once per JVM and shared by every board.
+ *
+ * The PNGs are read from the classpath next to this class (chess_pieces/),
+ * all at once on the common pool, the first time get() is called. Sprites are
+ * indexed by piece code (Piece.make), with the knights facing left; the two
+ * right-facing knights follow at KNIGHT_RIGHT + color. Scaled copies for other
+ * square sizes, e.g. a resized window or a HiDPI screen, are made on first
+ * request and kept.
+ */
+final class SpriteAtlas {
+
+    static final int KNIGHT_RIGHT = 12;                 // + color
+    static final int COUNT = 14;
+    static final int BASE_SQUARE = 60;                  // square width in pixels the PNGs are drawn for
+
+    private static final String DIRECTORY = "chess_pieces/";
+
+    private final BufferedImage[] sprites = new BufferedImage[COUNT];
+    private final ConcurrentHashMap<Integer, BufferedImage[]> scaled = new ConcurrentHashMap<>();
+
+    private static final class Holder {
+        static final SpriteAtlas INSTANCE = new SpriteAtlas();
+    }
+
+    private SpriteAtlas() {
+        @SuppressWarnings("unchecked")
+        CompletableFuture<BufferedImage>[] decoding = (CompletableFuture<BufferedImage>[]) new CompletableFuture<?>[COUNT];
+        for (int i = 0; i < COUNT; i++) {
+            String file = fileName(i);
+            decoding[i] = CompletableFuture.supplyAsync(() -> read(file));
+        }
+        for (int i = 0; i < COUNT; i++) sprites[i] = decoding[i].join();
+        scaled.put(BASE_SQUARE, sprites);
+    }
+
+    static SpriteAtlas get() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * The sprites drawn for squares of the given width in pixels, indexed as
+     * above. The array is shared and must not be modified; a sprite that failed
+     * to load is null.
+     */
+    BufferedImage[] forSquare(int squareWidth) {
+        BufferedImage[] images = scaled.get(squareWidth);
+        if (images != null) return images;
+        return scaled.computeIfAbsent(squareWidth, this::scale);
+    }
+
+    private BufferedImage[] scale(int squareWidth) {
+        BufferedImage[] images = new BufferedImage[COUNT];
+        for (int i = 0; i < COUNT; i++) {
+            BufferedImage source = sprites[i];
+            if (source == null) continue;
+
+            int w = Math.max(1, source.getWidth() * squareWidth / BASE_SQUARE);
+            int h = Math.max(1, source.getHeight() * squareWidth / BASE_SQUARE);
+            images[i] = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = images[i].createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(source, 0, 0, w, h, null);
+            g.dispose();
+        }
+        return images;
+    }
+
+    /* e.g. "knightleftwhite.PNG"; the file names are those of the original image set. */
+    private static String fileName(int index) {
+        int color = index >= KNIGHT_RIGHT ? index - KNIGHT_RIGHT : Piece.color(index);
+        String name = index >= KNIGHT_RIGHT ? "knightright"
+                : Piece.type(index) == Piece.KNIGHT ? "knightleft" : Piece.NAMES[Piece.type(index)];
+        return name + (color == Piece.WHITE ? "white" : "black") + ".PNG";
+    }
+
+    private static BufferedImage read(String file) {
+        try (InputStream in = SpriteAtlas.class.getResourceAsStream(DIRECTORY + file)) {
+            if (in == null) {
+                System.out.println("Image not found on the classpath: " + DIRECTORY + file);
+                return null;
+            }
+            return ImageIO.read(in);
+        } catch (IOException e) {
+            System.out.println("Could not read image: " + DIRECTORY + file);
+            e.printStackTrace();
+            return null;
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package chess;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Distance-to-mate tables for endings of up to four pieces, kings included,
+ * made by TablebaseGenerator and read through memory-mapped files.
+ *
+ * One file per material, named like "KRvKN.tb", holds a byte per position:
+ * all positions with white to move, then all with black to move. Each position
+ * is indexed by its squares, 6 bits per piece in the order white king, black
+ * king, white pieces, black pieces (strongest first); the board is first
+ * mirrored and, without pawns, turned so that the white king stands in the
+ * a1-d1-d4 triangle (10 squares), or with pawns on files a-d (32 squares).
+ * Endings where black has the stronger material are read from the
+ * color-swapped table.
+ *
+ * A byte is 0 for a draw, otherwise the number of plies to mate plus one:
+ * odd distances are wins for the side to move, even ones losses. Castling
+ * rights, en passant and the fifty-move rule are not part of the tables, so
+ * positions with castling rights or an en passant square are not probed.
+ */
+final class Tablebase {
+
+    static final int MAX_PIECES = 4;
+    static final int NONE = -1;                                 // probe() with no table for the position
+
+    static final String EXTENSION = ".tb";
+
+    // The 8 board symmetries: bit 0 mirrors the files, bit 1 the ranks, bit 2 swaps files and ranks (after the mirrors)
+    static final int[][] TRANSFORM = new int[8][64];
+    static final int[][] INVERSE = new int[8][64];
+    static final int[] KING_TRANSFORM = new int[64];           // the symmetry that brings a white king into the triangle
+    static final int[] KING_SLOT = new int[64];                // triangle square -> 0..9, others -1
+    static final int[] SLOT_SQUARE = new int[10];
+    static final int[] PAWN_TRANSFORM = new int[64];           // 0, or 1 for a white king on files e-h
+    static final int[] PAWN_SLOT = new int[64];                // files a-d -> 0..31, others -1
+    static final int[] PAWN_SLOT_SQUARE = new int[32];
+
+    private static final int KEYS = 59049;                      // 3^10: up to 2 of each non-king piece
+    private static final int[] POWERS = {1, 3, 9, 27, 81, 243, 729, 2187, 6561, 19683};
+    private static final String LETTERS = "PNBRQK";
+
+    static {
+        for (int g = 0; g < 8; g++) {
+            for (int sq = 0; sq < 64; sq++) {
+                int t = sq;
+                if ((g & 1) != 0) t ^= 7;
+                if ((g & 2) != 0) t ^= 56;
+                if ((g & 4) != 0) t = (t & 7) << 3 | t >>> 3;
+                TRANSFORM[g][sq] = t;
+                INVERSE[g][t] = sq;
+            }
+        }
+        int slots = 0;
+        for (int sq = 0; sq < 64; sq++) {
+            int g = (Bitboard.col(sq) > 3 ? 1 : 0) | (Bitboard.row(sq) > 3 ? 2 : 0);
+            int t = TRANSFORM[g][sq];
+            if (Bitboard.row(t) > Bitboard.col(t)) g |= 4;
+            KING_TRANSFORM[sq] = g;
+
+            int row = Bitboard.row(sq), col = Bitboard.col(sq);
+            KING_SLOT[sq] = (col <= 3 && row <= col) ? slots : -1;
+            if (KING_SLOT[sq] >= 0) SLOT_SQUARE[slots++] = sq;
+
+            PAWN_TRANSFORM[sq] = col > 3 ? 1 : 0;
+            PAWN_SLOT[sq] = col <= 3 ? row * 4 + col : -1;
+            if (col <= 3) PAWN_SLOT_SQUARE[row * 4 + col] = sq;
+        }
+    }
+
+    /** One material combination; data is null until the table is generated or mapped. */
+    static final class Table {
+
+        final String name;
+        final int[] pieces;                                     // piece codes in index order
+        final boolean pawns;
+        final int size;                                         // positions per side to move
+        ByteBuffer data;
+
+        Table(String name) {
+            this.name = name;
+            this.pieces = parse(name);
+            boolean hasPawn = false;
+            for (int piece : pieces) hasPawn |= Piece.type(piece) == Piece.PAWN;
+            this.pawns = hasPawn;
+            this.size = (pawns ? 32 : 10) << (6 * (pieces.length - 1));
+        }
+
+        /* Squares in index order -> index, after the symmetry chosen by the white king. */
+        int index(int[] squares) {
+            int g = pawns ? PAWN_TRANSFORM[squares[0]] : KING_TRANSFORM[squares[0]];
+            int[] t = TRANSFORM[g];
+            int index = (pawns ? PAWN_SLOT : KING_SLOT)[t[squares[0]]];
+            for (int i = 1; i < pieces.length; i++) index = index << 6 | t[squares[i]];
+            return index;
+        }
+
+        /* The squares of an index; the white king in the triangle or on files a-d. */
+        void squares(int index, int[] squares) {
+            for (int i = pieces.length - 1; i >= 1; i--) {
+                squares[i] = index & 63;
+                index >>>= 6;
+            }
+            squares[0] = pawns ? PAWN_SLOT_SQUARE[index] : SLOT_SQUARE[index];
+        }
+
+        int get(int sideToMove, int index) {
+            return data.get(sideToMove * size + index) & 0xFF;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private final Table[] byKey = new Table[KEYS];
+    private final boolean[] flippedByKey = new boolean[KEYS];
+    private final List<FileChannel> channels = new ArrayList<>();
+    private int count;
+
+    /** Maps every table file in directory; an empty or missing directory gives an empty tablebase. */
+    static Tablebase open(Path directory) throws IOException {
+        Tablebase tablebase = new Tablebase();
+        if (! Files.isDirectory(directory)) return tablebase;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + EXTENSION)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                name = name.substring(0, name.length() - EXTENSION.length());
+                if (! name.matches("K[QRBNP]*vK[QRBNP]*") || name.length() - 1 > MAX_PIECES) continue;
+                tablebase.map(new Table(name), file);
+            }
+        }
+        return tablebase;
+    }
+
+    void map(Table table, Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        if (channel.size() != 2L * table.size) {
+            channel.close();
+            throw new IOException(file + " should be " + 2L * table.size + " bytes");
+        }
+        table.data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        synchronized (channels) {
+            channels.add(channel);
+        }
+        add(table);
+    }
+
+    /** Makes a table with its data in place available to probe(), in both colors. */
+    void add(Table table) {
+        int key = key(table.pieces, false);
+        int flipped = key(table.pieces, true);
+        if (byKey[key] == null) count++;
+        byKey[key] = table;
+        flippedByKey[key] = false;
+        if (flipped != key) {
+            byKey[flipped] = table;
+            flippedByKey[flipped] = true;
+        }
+    }
+
+    /** Number of tables, not counting color-swapped views. */
+    int size() {
+        return count;
+    }
+
+    /**
+     * The stored byte for pos (see above) from the side to move's view, or NONE
+     * if pos has more than four pieces, castling rights or an en passant square,
+     * or its table is missing. Allocates nothing.
+     */
+    int probe(Position pos) {
+        int n = Long.bitCount(pos.occupied);
+        if (n > MAX_PIECES || pos.castling != 0 || pos.epSquare >= 0) return NONE;
+        if (n == 2) return 0;
+
+        int key = 0;
+        for (int type = Piece.PAWN; type < Piece.KING; type++) {
+            key += Long.bitCount(pos.pieces[Piece.make(Piece.WHITE, type)]) * POWERS[type];
+            key += Long.bitCount(pos.pieces[Piece.make(Piece.BLACK, type)]) * POWERS[type + 5];
+        }
+        Table table = byKey[key];
+        if (table == null || table.data == null) return NONE;
+        boolean flipped = flippedByKey[key];
+        int[] pieces = table.pieces;
+
+        // The white king (or black's, for a swapped table) picks the symmetry; the others follow in table order
+        int flip = flipped ? 56 : 0;
+        int king = Long.numberOfTrailingZeros(pos.pieces[swapColor(pieces[0], flipped)]) ^ flip;
+        int g = table.pawns ? PAWN_TRANSFORM[king] : KING_TRANSFORM[king];
+        int[] t = TRANSFORM[g];
+        int index = (table.pawns ? PAWN_SLOT : KING_SLOT)[t[king]];
+
+        long bits = 0;
+        for (int i = 1; i < pieces.length; i++) {
+            if (pieces[i] != pieces[i - 1]) bits = pos.pieces[swapColor(pieces[i], flipped)];
+            else bits &= bits - 1;                              // the second of two like pieces
+            index = index << 6 | t[Long.numberOfTrailingZeros(bits) ^ flip];
+        }
+        int side = flipped ? pos.sideToMove ^ 1 : pos.sideToMove;
+        return table.get(side, index);
+    }
+
+    private static int swapColor(int piece, boolean swap) {
+        return swap ? Piece.make(Piece.color(piece) ^ 1, Piece.type(piece)) : piece;
+    }
+
+    /* 3^(slot) per non-king piece, white pawn..queen in slots 0-4 and black in 5-9. */
+    private static int key(int[] pieces, boolean flipped) {
+        int key = 0;
+        for (int piece : pieces) {
+            if (Piece.type(piece) == Piece.KING) continue;
+            int color = Piece.color(piece) ^ (flipped ? 1 : 0);
+            key += POWERS[Piece.type(piece) + color * 5];
+        }
+        return key;
+    }
+
+    /** True for a stored byte that is a win for the side to move. */
+    static boolean isWin(int value) {
+        return value != 0 && (value - 1) % 2 == 1;
+    }
+
+    /** Plies to mate for a stored byte other than 0. */
+    static int plies(int value) {
+        return value - 1;
+    }
+
+    /** A stored byte as a search score at ply, matching Search's mate scores. */
+    static int score(int value, int ply) {
+        if (value == 0) return 0;
+        int mate = Search.MATE - ply - plies(value);
+        return isWin(value) ? mate : -mate;
+    }
+
+    /* "KRvKN" -> white king, black king, white rook, black knight. */
+    static int[] parse(String name) {
+        int v = name.indexOf('v');
+        String white = name.substring(1, v);
+        String black = name.substring(v + 2);
+        int[] pieces = new int[2 + white.length() + black.length()];
+        pieces[0] = Piece.make(Piece.WHITE, Piece.KING);
+        pieces[1] = Piece.make(Piece.BLACK, Piece.KING);
+        int i = 2;
+        for (char c : white.toCharArray()) pieces[i++] = Piece.make(Piece.WHITE, LETTERS.indexOf(c));
+        for (char c : black.toCharArray()) pieces[i++] = Piece.make(Piece.BLACK, LETTERS.indexOf(c));
+        return pieces;
+    }
+
+    /** The names of every ending of three and four pieces with white the stronger side, in generation order. */
+    static List<String> endings() {
+        String strongest = "QRBNP";
+        List<String> names = new ArrayList<>();
+        for (int pawns = 0; pawns <= 2; pawns++) {
+            for (int a = 0; a < 5; a++) {
+                add(names, pawns, "K" + strongest.charAt(a) + "vK");
+                for (int b = a; b < 5; b++) {
+                    add(names, pawns, "K" + strongest.charAt(a) + strongest.charAt(b) + "vK");
+                    add(names, pawns, "K" + strongest.charAt(a) + "vK" + strongest.charAt(b));
+                }
+            }
+        }
+        // Three pieces first: the four-piece tables capture into them
+        names.sort((x, y) -> x.length() - y.length());
+        return names;
+    }
+
+    private static void add(List<String> names, int pawns, String name) {
+        if (name.length() - name.replace("P", "").length() == pawns && ! names.contains(name)) names.add(name);
+    }
+
+    void close() throws IOException {
+        synchronized (channels) {
+            for (FileChannel channel : channels) channel.close();
+            channels.clear();
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package chess;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Builds the Tablebase files by retrograde analysis, run as
+ * "java chess.Game tablebase [directory] [threads]".
+ *
+ * Each table starts with one forward pass over every position: mates are lost
+ * at distance 0, stalemates are draws, and captures and promotions are looked
+ * up in the smaller tables made before it. What is left is solved backwards,
+ * one distance at a time: every position lost in d plies makes each position
+ * that can move into it a win in d + 1, and every position won in d plies
+ * takes one move off the count of each position that can move into it, which
+ * is lost once all its moves are. The moves into a position are generated as
+ * unmoves, so each distance only touches the positions it changes. Whatever is
+ * never reached is a draw.
+ *
+ * Every pass is split into chunks of indices shared out to the threads. The
+ * move counts are decremented atomically; every other write in a pass either
+ * goes to the chunk's own positions or is the same value from every thread.
+ * Finished tables are written next to each other and reused when the generator
+ * is run again, so an interrupted run continues where it stopped.
+ */
+final class TablebaseGenerator {
+
+    private static final VarHandle COUNTS = MethodHandles.arrayElementVarHandle(byte[].class);
+    private static final int CHUNK = 1 << 15;
+    private static final byte INVALID = (byte) 0xFF;            // index that isn't a legal position
+    private static final int CANNOT_LOSE = 0xFF;                // has a drawing or winning capture or promotion
+    private static final int MAX_PLIES = 250;
+
+    private final Tablebase tablebase = new Tablebase();       // finished tables, probed through captures and promotions
+    private final int threads;
+    private final ExecutorService pool;
+    private final Worker[] workers;
+
+    // The table being made, indexed by side to move * size + index
+    private Tablebase.Table table;
+    private int size;
+    private byte[] value;                                       // as in the file, 0 until decided
+    private byte[] pending;                                     // plies + 1 the position will be decided at, or 0
+    private byte[] exitLoss;                                    // longest loss through a capture or promotion, or CANNOT_LOSE
+    private byte[] counts;                                      // moves within the table not yet known to lose
+
+    private TablebaseGenerator(int threads) {
+        this.threads = Math.max(1, threads);
+        AtomicInteger count = new AtomicInteger();
+        pool = Executors.newFixedThreadPool(this.threads, task -> {
+            Thread t = new Thread(task, "tablebase-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        workers = new Worker[this.threads];
+        for (int i = 0; i < workers.length; i++) workers[i] = new Worker();
+    }
+
+    /** Writes every 3- and 4-piece table missing from directory. */
+    static void generate(Path directory, int threads, PrintStream log) throws IOException {
+        Files.createDirectories(directory);
+        TablebaseGenerator generator = new TablebaseGenerator(threads);
+        try {
+            for (String name : Tablebase.endings()) {
+                Tablebase.Table table = new Tablebase.Table(name);
+                Path file = directory.resolve(name + Tablebase.EXTENSION);
+                if (Files.exists(file)) {
+                    generator.tablebase.map(table, file);
+                    continue;
+                }
+                long start = System.nanoTime();
+                int longest = generator.solve(table);
+                generator.write(file);
+                log.printf("%s\t%d positions\tlongest mate %d plies\t%.1f s%n", name, 2L * table.size, longest,
+                        (System.nanoTime() - start) / 1e9);
+            }
+        } finally {
+            generator.pool.shutdownNow();
+        }
+    }
+
+    /* Solves table into value[]; returns the longest distance to mate. */
+    private int solve(Tablebase.Table table) {
+        this.table = table;
+        size = table.size;
+        value = new byte[2 * size];
+        pending = new byte[2 * size];
+        exitLoss = new byte[2 * size];
+        counts = new byte[2 * size];
+
+        int last = 0;
+        for (int max : parallel(this::initialize)) last = Math.max(last, max);
+
+        int longest = 0;
+        for (int d = 0; ; d++) {
+            if (d > MAX_PLIES) throw new IllegalStateException(table + ": mate longer than " + MAX_PLIES + " plies");
+            int ply = d;
+            int found = 0;
+            for (int n : parallel((worker, from, to) -> decide(worker, from, to, ply))) found += n;
+            if (found > 0) longest = d;
+            if (found == 0 && d >= last) break;
+        }
+
+        for (int i = 0; i < value.length; i++) {
+            if (value[i] == INVALID) value[i] = 0;
+        }
+        pending = exitLoss = counts = null;
+        table.data = ByteBuffer.wrap(value);
+        tablebase.add(table);
+        return longest;
+    }
+
+    private interface Pass {
+        /** Works through indices [from, to); returns a count or maximum, combined by the caller. */
+        int run(Worker worker, int from, int to);
+    }
+
+    /* Runs pass over all indices on every thread, chunk by chunk; one result per chunk. */
+    private List<Integer> parallel(Pass pass) {
+        AtomicInteger next = new AtomicInteger();
+        int chunks = (value.length + CHUNK - 1) / CHUNK;
+        List<Callable<List<Integer>>> tasks = new ArrayList<>();
+        for (Worker worker : workers) {
+            tasks.add(() -> {
+                List<Integer> results = new ArrayList<>();
+                int chunk;
+                while ((chunk = next.getAndIncrement()) < chunks) {
+                    int from = chunk * CHUNK;
+                    results.add(pass.run(worker, from, Math.min(from + CHUNK, value.length)));
+                }
+                return results;
+            });
+        }
+        List<Integer> results = new ArrayList<>();
+        try {
+            for (Future<List<Integer>> future : pool.invokeAll(tasks)) results.addAll(future.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(table + ": generation failed", e.getCause());
+        }
+        return results;
+    }
+
+    /* The forward pass. Returns the furthest distance it scheduled. */
+    private int initialize(Worker w, int from, int to) {
+        int last = 0;
+        for (int i = from; i < to; i++) {
+            int side = i < size ? Piece.WHITE : Piece.BLACK;
+            if (! w.setUp(i - side * size, side)) {
+                value[i] = INVALID;
+                continue;
+            }
+
+            Position pos = w.pos;
+            int n = MoveGenerator.generate(pos, w.moves);
+            if (n == 0) {
+                if (pos.inCheck()) pending[i] = 1;                  // mated: lost in 0
+                else exitLoss[i] = (byte) CANNOT_LOSE;              // stalemate
+                continue;
+            }
+
+            int inside = 0;
+            int win = Integer.MAX_VALUE;
+            int loss = 0;
+            boolean cannotLose = false;
+            for (int k = 0; k < n; k++) {
+                int move = w.moves[k];
+                if (! Move.isCapture(move) && ! Move.isPromotion(move)) {
+                    inside++;
+                    continue;
+                }
+                pos.makeMove(move);
+                int result = tablebase.probe(pos);
+                pos.unmakeMove(move);
+                if (result == Tablebase.NONE) throw new IllegalStateException(table + " needs a table it captures into");
+
+                if (result == 0) cannotLose = true;
+                else if (Tablebase.isWin(result)) loss = Math.max(loss, Tablebase.plies(result) + 1);
+                else win = Math.min(win, Tablebase.plies(result) + 1);
+            }
+
+            counts[i] = (byte) inside;
+            if (win != Integer.MAX_VALUE) {
+                pending[i] = (byte) (win + 1);
+                cannotLose = true;
+                last = Math.max(last, win);
+            }
+            exitLoss[i] = (byte) (cannotLose ? CANNOT_LOSE : loss);
+            if (! cannotLose) {
+                last = Math.max(last, loss);
+                if (inside == 0) pending[i] = (byte) (loss + 1);    // every move is a losing capture
+            }
+        }
+        return last;
+    }
+
+    /* Decides the positions scheduled for distance d and passes the news on to the positions that move into them. */
+    private int decide(Worker w, int from, int to, int d) {
+        int found = 0;
+        for (int i = from; i < to; i++) {
+            if (value[i] != 0 || (pending[i] & 0xFF) != d + 1) continue;
+            value[i] = (byte) (d + 1);
+            found++;
+            predecessors(w, i, d);
+        }
+        return found;
+    }
+
+    /*
+     * Every position that moves into position i, which was just decided at
+     * distance d, found by taking back each non-capturing move of the side
+     * that moved last. The table only holds one board of each symmetric set,
+     * so the unmoves are taken on each symmetric board that the index stands
+     * for, and only predecessors that are themselves stored as they stand are
+     * counted: then every move the forward pass counted is taken back exactly
+     * once.
+     */
+    private void predecessors(Worker w, int i, int d) {
+        int side = i < size ? Piece.WHITE : Piece.BLACK;
+        int mover = side ^ 1;
+        int[] pieces = table.pieces;
+        int[] stored = w.squares;
+        int[] x = w.board;
+        table.squares(i - side * size, stored);
+
+        int symmetries = table.pawns ? 2 : 8;
+        int[] kingTransform = table.pawns ? Tablebase.PAWN_TRANSFORM : Tablebase.KING_TRANSFORM;
+        for (int g = 0; g < symmetries; g++) {
+            long occupied = 0;
+            for (int k = 0; k < pieces.length; k++) {
+                x[k] = Tablebase.INVERSE[g][stored[k]];
+                occupied |= 1L << x[k];
+            }
+            if (kingTransform[x[0]] != g) continue;                 // that board is stored under another index
+
+            for (int k = 0; k < pieces.length; k++) {
+                if (Piece.color(pieces[k]) != mover) continue;
+                int at = x[k];
+                long origins = unmoves(pieces[k], at, occupied);
+                while (origins != 0) {
+                    x[k] = Long.numberOfTrailingZeros(origins);
+                    origins &= origins - 1;
+                    if (kingTransform[x[0]] == 0) update(mover * size + index(x), d);
+                }
+                x[k] = at;
+            }
+        }
+    }
+
+    /* Squares piece could have come from to reach at without capturing. */
+    private static long unmoves(int piece, int at, long occupied) {
+        long empty = ~occupied;
+        switch (Piece.type(piece)) {
+            case Piece.KING:   return Bitboard.KING_ATTACKS[at] & empty;
+            case Piece.KNIGHT: return Bitboard.KNIGHT_ATTACKS[at] & empty;
+            case Piece.BISHOP: return Bitboard.bishopAttacks(at, occupied) & empty;
+            case Piece.ROOK:   return Bitboard.rookAttacks(at, occupied) & empty;
+            case Piece.QUEEN:  return Bitboard.queenAttacks(at, occupied) & empty;
+            default:
+                int row = Bitboard.row(at);
+                if (Piece.color(piece) == Piece.WHITE) {
+                    if (row < 2 || (occupied & 1L << (at - 8)) != 0) return 0L;
+                    long origins = 1L << (at - 8);
+                    if (row == 3 && (occupied & 1L << (at - 16)) == 0) origins |= 1L << (at - 16);
+                    return origins;
+                }
+                if (row > 5 || (occupied & 1L << (at + 8)) != 0) return 0L;
+                long origins = 1L << (at + 8);
+                if (row == 4 && (occupied & 1L << (at + 16)) == 0) origins |= 1L << (at + 16);
+                return origins;
+        }
+    }
+
+    /* Squares already in stored orientation -> index. */
+    private int index(int[] squares) {
+        int index = (table.pawns ? Tablebase.PAWN_SLOT : Tablebase.KING_SLOT)[squares[0]];
+        for (int k = 1; k < table.pieces.length; k++) index = index << 6 | squares[k];
+        return index;
+    }
+
+    /* Position p can move into one decided at distance d. */
+    private void update(int p, int d) {
+        if (value[p] != 0) return;                                  // decided already, or not a position
+        if (d % 2 == 0) {
+            // It can move into a loss: a win, unless it already has a quicker one
+            int scheduled = pending[p] & 0xFF;
+            if (scheduled == 0 || scheduled > d + 2) pending[p] = (byte) (d + 2);
+            return;
+        }
+        int exit = exitLoss[p] & 0xFF;
+        if (exit == CANNOT_LOSE) return;
+        byte left = (byte) ((byte) COUNTS.getAndAdd(counts, p, (byte) -1) - 1);
+        if (left == 0) pending[p] = (byte) (Math.max(d + 1, exit) + 1);   // every move loses
+    }
+
+    private void write(Path file) throws IOException {
+        Path partial = file.resolveSibling(file.getFileName() + ".part");
+        try (FileChannel out = FileChannel.open(partial, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buf = ByteBuffer.wrap(value);
+            while (buf.hasRemaining()) out.write(buf);
+        }
+        Files.move(partial, file, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /* One per thread: a board to set positions up on and scratch arrays. */
+    private final class Worker {
+
+        final Position pos = new Position(4);
+        final int[] moves = new int[MoveGenerator.MAX_MOVES];
+        final int[] squares = new int[Tablebase.MAX_PIECES];
+        final int[] board = new int[Tablebase.MAX_PIECES];
+
+        /* Sets up the position at index with side to move; false if it isn't a legal one. */
+        boolean setUp(int index, int side) {
+            int[] pieces = table.pieces;
+            table.squares(index, squares);
+            long occupied = 0;
+            for (int k = 0; k < pieces.length; k++) {
+                long bit = 1L << squares[k];
+                if ((occupied & bit) != 0) return false;
+                if (Piece.type(pieces[k]) == Piece.PAWN && (bit & (Bitboard.RANK_1 | Bitboard.RANK_8)) != 0) return false;
+                occupied |= bit;
+            }
+            pos.clear();
+            for (int k = 0; k < pieces.length; k++) pos.put(squares[k], pieces[k]);
+            pos.sideToMove = side;
+            return ! pos.isAttacked(pos.kingSquare(side ^ 1), side);   // the side that just moved can't be in check
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package chess;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Engine-vs-engine matches for tuning, run without the Swing window:
+ *
+ *   java chess.Game tournament [-openings file.epd] [-pgn games.pgn] [-games N] [-threads N]
+ *       [-nodes N | -tc 0.1+0.01] [-hash MB] [-evalA network.nnue] [-evalB network.nnue]
+ *       [-elo0 0] [-elo1 5] [-alpha 0.05] [-beta 0.05] [-tablebases dir] [-maxplies N]
+ *
+ * Player A is the version under test and B the baseline; they differ in
+ * their evaluation (a network file, or the built-in tables). Each worker
+ * thread owns one search per player, with its own transposition table
+ * cleared between games, and plays whole games one after another. Every
+ * opening (one FEN or EPD per line, or the initial position when there is
+ * no file) is played twice with the colors swapped.
+ *
+ * A game ends at mate or stalemate, a threefold repetition, the fifty-move
+ * rule, bare kings (or a lone minor piece), a tablebase position (adjudicated
+ * to its stored result), a flag with -tc, or a draw after maxplies. Finished
+ * games are appended to the PGN file as they come in, in no particular order;
+ * the Round tag gives their number.
+ *
+ * After every game the sequential probability ratio test between elo0 and
+ * elo1 is updated, using the normal approximation of the score's
+ * log-likelihood ratio. Once it passes a bound, no new games start. A
+ * progress line with the Elo estimate and its 95% interval is printed every
+ * 10 s and at the end.
+ */
+final class Tournament {
+
+    private static final long REPORT_NANOS = 10_000_000_000L;
+
+    private String openingsFile;
+    private String pgnFile = "tournament.pgn";
+    private long games = 1000;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private long nodes = 5000;                                      // per move, unless there is a time control
+    private String timeControl;
+    private int hash = 8;                                           // MB per search
+    private String evalA;
+    private String evalB;
+    private double elo0 = 0;
+    private double elo1 = 5;
+    private double alpha = 0.05;
+    private double beta = 0.05;
+    private String tablebaseDirectory = "tablebases";
+    private int maxPlies = 400;
+
+    // One run's state
+    private List<String> openings;
+    private Network networkA;
+    private Network networkB;
+    private Tablebase tablebase;
+    private final AtomicLong nextGame = new AtomicLong();
+    private BufferedWriter pgn;
+    private IOException writeError;
+    private long wins, draws, losses;                               // for A; guarded by this
+    private volatile boolean decided;
+
+    /** How a game ended: its PGN result and the Termination tag. */
+    static final class Outcome {
+        final String result;
+        final String termination;
+
+        Outcome(String result, String termination) {
+            this.result = result;
+            this.termination = termination;
+        }
+    }
+
+    static Tournament fromArgs(String[] args) {
+        Tournament t = new Tournament();
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "-openings": t.openingsFile = value(args, i++); break;
+                case "-pgn": t.pgnFile = value(args, i++); break;
+                case "-games": t.games = Long.parseLong(value(args, i++)); break;
+                case "-threads": t.threads = Math.max(1, Integer.parseInt(value(args, i++))); break;
+                case "-nodes": t.nodes = Long.parseLong(value(args, i++)); break;
+                case "-tc": t.timeControl = value(args, i++); break;
+                case "-hash": t.hash = Math.max(1, Integer.parseInt(value(args, i++))); break;
+                case "-evalA": t.evalA = value(args, i++); break;
+                case "-evalB": t.evalB = value(args, i++); break;
+                case "-elo0": t.elo0 = Double.parseDouble(value(args, i++)); break;
+                case "-elo1": t.elo1 = Double.parseDouble(value(args, i++)); break;
+                case "-alpha": t.alpha = Double.parseDouble(value(args, i++)); break;
+                case "-beta": t.beta = Double.parseDouble(value(args, i++)); break;
+                case "-tablebases": t.tablebaseDirectory = value(args, i++); break;
+                case "-maxplies": t.maxPlies = Integer.parseInt(value(args, i++)); break;
+                default: throw new IllegalArgumentException("unknown option " + args[i]);
+            }
+        }
+        return t;
+    }
+
+    /** The value of the command-line option at args[i], which must be there. */
+    static String value(String[] args, int i) {
+        if (i + 1 >= args.length) throw new IllegalArgumentException("missing value for " + args[i]);
+        return args[i + 1];
+    }
+
+    /** Plays the match, or until the SPRT decides, and returns the final report line. */
+    String run(PrintStream log) throws IOException, InterruptedException {
+
+        openings = new ArrayList<>();
+        if (openingsFile != null) {
+            for (String line : Files.readAllLines(Paths.get(openingsFile), StandardCharsets.UTF_8)) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                try {
+                    openings.add(Position.fromFen(Analyzer.fen(line)).toFen());
+                } catch (RuntimeException e) {
+                    throw new IOException(openingsFile + ": not a position: " + line);
+                }
+            }
+        }
+        if (openings.isEmpty()) openings.add(Position.START_FEN);
+        networkA = evalA != null ? Network.load(Paths.get(evalA)) : null;
+        networkB = evalB != null ? Network.load(Paths.get(evalB)) : null;
+        tablebase = Tablebase.open(Paths.get(tablebaseDirectory));
+
+        log.println(name("A", evalA) + " vs " + name("B", evalB) + ": " + openings.size() + " openings, "
+                + (timeControl != null ? "tc " + timeControl : nodes + " nodes per move") + ", " + threads + " threads");
+
+        long start = System.nanoTime();
+        String last;
+        Thread[] workers = new Thread[threads];
+        try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(pgnFile), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            pgn = writer;
+            for (int i = 0; i < threads; i++) {
+                workers[i] = new Thread(this::work, "tournament-" + (i + 1));
+                workers[i].setDaemon(true);
+                workers[i].start();
+            }
+            for (Thread worker : workers) {
+                while (worker.isAlive()) {
+                    worker.join(REPORT_NANOS / 1_000_000);
+                    if (worker.isAlive()) log.println(report(System.nanoTime() - start));
+                }
+            }
+            last = "Done: " + report(System.nanoTime() - start);      // flushes the last games
+        }
+        if (writeError != null) throw writeError;
+        log.println(last);
+        return last;
+    }
+
+    /* One worker: a search for each player, playing games until all are taken or the test is decided. */
+    private void work() {
+        TranspositionTable tableA = new TranspositionTable(hash);
+        TranspositionTable tableB = new TranspositionTable(hash);
+        Search a = new Search(tableA);
+        Search b = new Search(tableB);
+        a.setNetwork(networkA);
+        b.setNetwork(networkB);
+        a.setTablebase(tablebase);
+        b.setTablebase(tablebase);
+
+        long round;
+        while (! decided && (round = nextGame.getAndIncrement()) < games) {
+            String opening = openings.get((int) (round / 2 % openings.size()));
+            boolean aWhite = (round & 1) == 0;
+            tableA.clear();
+            tableB.clear();
+            GameState game = new GameState(opening);
+            Outcome outcome = play(game, aWhite ? a : b, aWhite ? b : a);
+            finish(round, game, aWhite, outcome);
+        }
+    }
+
+    private Outcome play(GameState game, Search white, Search black) {
+        Position pos = game.position();
+        Clock clock = timeControl != null ? Clock.parse(timeControl) : null;
+        while (true) {
+            Outcome outcome = adjudicate(game, tablebase, maxPlies);
+            if (outcome != null) return outcome;
+
+            int side = pos.sideToMove;
+            Search.Limits limits = Search.Limits.nodes(nodes);
+            if (clock != null) {
+                clock.turn(side);
+                limits = Search.Limits.clock(clock.remaining(side), clock.increment(), clock.delay(), 0);
+            }
+            Search.Result result = (side == Piece.WHITE ? white : black).search(pos, limits);
+            String loss = side == Piece.WHITE ? Pgn.BLACK_WINS : Pgn.WHITE_WINS;
+            if (clock != null && clock.remaining(side) == 0) return new Outcome(loss, "time forfeit");
+            if (! game.play(result.bestMove)) return new Outcome(loss, "illegal move " + Move.toString(result.bestMove));
+        }
+    }
+
+    /** The outcome if game is over by the rules or by adjudication (tablebase, or a draw at maxPlies), or null. */
+    static Outcome adjudicate(GameState game, Tablebase tablebase, int maxPlies) {
+        String result = Pgn.result(game);
+        if (! result.equals(Pgn.UNKNOWN)) return new Outcome(result, game.isCheckmate() ? "checkmate" : "stalemate");
+
+        Position pos = game.position();
+        if (pos.repetitions() >= 2) return new Outcome(Pgn.DRAW, "threefold repetition");
+        if (pos.halfmoveClock >= 100) return new Outcome(Pgn.DRAW, "fifty-move rule");
+        if (insufficientMaterial(pos)) return new Outcome(Pgn.DRAW, "insufficient material");
+
+        int value = tablebase != null ? tablebase.probe(pos) : Tablebase.NONE;
+        if (value != Tablebase.NONE) {
+            if (value == 0) return new Outcome(Pgn.DRAW, "tablebase draw");
+            boolean whiteWins = Tablebase.isWin(value) == (pos.sideToMove == Piece.WHITE);
+            return new Outcome(whiteWins ? Pgn.WHITE_WINS : Pgn.BLACK_WINS, "tablebase win");
+        }
+        if (game.moveCount() >= maxPlies) return new Outcome(Pgn.DRAW, "move limit");
+        return null;
+    }
+
+    /* Bare kings, or kings and a single knight or bishop. */
+    private static boolean insufficientMaterial(Position pos) {
+        int n = Long.bitCount(pos.occupied);
+        if (n == 2) return true;
+        if (n != 3) return false;
+        long minors = pos.pieces[Piece.make(Piece.WHITE, Piece.KNIGHT)] | pos.pieces[Piece.make(Piece.BLACK, Piece.KNIGHT)]
+                | pos.pieces[Piece.make(Piece.WHITE, Piece.BISHOP)] | pos.pieces[Piece.make(Piece.BLACK, Piece.BISHOP)];
+        return minors != 0;
+    }
+
+    /* Counts a finished game, writes it out and updates the test. */
+    private synchronized void finish(long round, GameState game, boolean aWhite, Outcome outcome) {
+        if (outcome.result.equals(Pgn.DRAW)) draws++;
+        else if (outcome.result.equals(Pgn.WHITE_WINS) == aWhite) wins++;
+        else losses++;
+
+        Map<String, String> tags = new LinkedHashMap<>();
+        tags.put("Event", "Self-play");
+        tags.put("Date", LocalDate.now().format(DateTimeFormatter.ofPattern("yyyy.MM.dd")));
+        tags.put("Round", String.valueOf(round + 1));
+        tags.put("White", aWhite ? name("A", evalA) : name("B", evalB));
+        tags.put("Black", aWhite ? name("B", evalB) : name("A", evalA));
+        tags.put("Result", outcome.result);
+        tags.put("Termination", outcome.termination);
+        if (writeError == null) {
+            try {
+                Pgn.write(game, tags, pgn);
+            } catch (IOException e) {
+                writeError = e;
+                decided = true;
+            }
+        }
+
+        double llr = llr();
+        if (llr >= Math.log((1 - beta) / alpha) || llr <= Math.log(beta / (1 - alpha))) decided = true;
+    }
+
+    /*
+     * Log-likelihood ratio of elo1 against elo0 for the games so far: with
+     * per-game scores of mean s and variance v over n games, about
+     * n (s1 - s0) (2s - s0 - s1) / 2v, where s0 and s1 are the expected scores at the two Elo values.
+     * Half a game is added to each of wins, draws and losses, so that a clean
+     * sweep still has a spread and the first few games can't decide alone.
+     */
+    private double llr() {
+        long games = wins + draws + losses;
+        if (games == 0) return 0;
+        double w = wins + 0.5, d = draws + 0.5, l = losses + 0.5;
+        double n = w + d + l;
+        double s = (w + d / 2) / n;
+        double v = (w * (1 - s) * (1 - s) + d * (0.5 - s) * (0.5 - s) + l * s * s) / n;
+        double s0 = expectedScore(elo0);
+        double s1 = expectedScore(elo1);
+        return games * (s1 - s0) * (2 * s - s0 - s1) / (2 * v);
+    }
+
+    private static double expectedScore(double elo) {
+        return 1 / (1 + Math.pow(10, -elo / 400));
+    }
+
+    private static double elo(double score) {
+        score = Math.max(1e-6, Math.min(1 - 1e-6, score));
+        return -400 * Math.log10(1 / score - 1) + 0.0;                // + 0.0 turns -0.0 into 0.0
+    }
+
+    private synchronized String report(long elapsed) {
+        if (writeError == null) {
+            try {
+                pgn.flush();
+            } catch (IOException e) {
+                writeError = e;
+                decided = true;
+            }
+        }
+        long n = wins + draws + losses;
+        double s = n > 0 ? (wins + draws / 2.0) / n : 0.5;
+        double v = n > 0 ? (wins * (1 - s) * (1 - s) + draws * (0.5 - s) * (0.5 - s) + losses * s * s) / n : 0;
+        double margin = 1.96 * Math.sqrt(v / Math.max(1, n));
+        double minutes = Math.max(1, elapsed) / 6e10;
+        String verdict = "";
+        double llr = llr();
+        if (llr >= Math.log((1 - beta) / alpha)) verdict = "\tH1 accepted";
+        else if (llr <= Math.log(beta / (1 - alpha))) verdict = "\tH0 accepted";
+        return String.format("%d games\t+%d =%d -%d\tElo %.1f [%.1f, %.1f]\tLLR %.2f [%.2f, %.2f]\t%.0f games/min%s",
+                n, wins, draws, losses, elo(s), elo(s - margin), elo(s + margin),
+                llr, Math.log(beta / (1 - alpha)), Math.log((1 - beta) / alpha), n / minutes, verdict);
+    }
+
+    private static String name(String player, String eval) {
+        return player + " (" + (eval != null ? Paths.get(eval).getFileName().toString() : "tables") + ")";
+    }
+}
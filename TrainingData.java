@@ -0,0 +1,355 @@
+package chess;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Labelled positions for training an evaluation, as made by SelfPlay: one
+ * fixed-size record per position in shard files "shard-00000.bin", ... of a
+ * directory. A record is 32 bytes, little-endian:
+ *
+ *   long  occupied squares (bit = square, a1 = 0)
+ *   16 bytes  piece codes of the occupied squares in square order, 4 bits each, low nibble first
+ *   byte  side to move (bit 0) and castling rights (bits 1-4)
+ *   byte  en passant file + 1, or 0
+ *   short search score in centipawns for the side to move
+ *   byte  game result for white: 0 loss, 1 draw, 2 win
+ *   byte  halfmove clock
+ *   short fullmove number
+ *
+ * Writer appends records through two direct buffers: producers fill one
+ * while a writer thread writes the other, so no producer waits on the disk
+ * unless both are full. Reader maps the shards and reads fields straight out
+ * of the mapped pages, with no decoding step and nothing allocated per record.
+ */
+final class TrainingData {
+
+    static final int RECORD_BYTES = 32;
+    static final String EXTENSION = ".bin";
+
+    static final int BLACK_WINS = 0;
+    static final int DRAW = 1;
+    static final int WHITE_WINS = 2;
+
+    static final int RESULT_OFFSET = 28;                                // of the result byte in a record
+
+    private static final int BUFFER_BYTES = RECORD_BYTES << 15;         // 1 MB per buffer
+
+    private TrainingData() {}
+
+    /** Appends pos with its score (for the side to move) and result (for white) to buf, a little-endian buffer, as one record. */
+    static void encode(Position pos, int score, int result, ByteBuffer buf) {
+        int start = buf.position();
+        buf.putLong(start, pos.occupied);
+        long occupied = pos.occupied;
+        for (int i = 0; i < 16; i++) {
+            int packed = 0;
+            for (int half = 0; half < 2 && occupied != 0; half++) {
+                int sq = Long.numberOfTrailingZeros(occupied);
+                occupied &= occupied - 1;
+                packed |= pos.pieceAt(sq) << (4 * half);
+            }
+            buf.put(start + 8 + i, (byte) packed);
+        }
+        buf.put(start + 24, (byte) (pos.sideToMove | pos.castling << 1));
+        buf.put(start + 25, (byte) (pos.epSquare < 0 ? 0 : Bitboard.col(pos.epSquare) + 1));
+        buf.putShort(start + 26, (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, score)));
+        buf.put(start + RESULT_OFFSET, (byte) result);
+        buf.put(start + 29, (byte) Math.min(255, pos.halfmoveClock));
+        buf.putShort(start + 30, (short) pos.fullmoveNumber);
+        buf.position(start + RECORD_BYTES);
+    }
+
+    /** Sets the result (for white) of the record at offset of buf, once the game it came from is over. */
+    static void setResult(ByteBuffer buf, int offset, int result) {
+        buf.put(offset + RESULT_OFFSET, (byte) result);
+    }
+
+    static Path shard(Path directory, int number) {
+        return directory.resolve(String.format("shard-%05d%s", number, EXTENSION));
+    }
+
+    /* The shard files of directory, in order. */
+    private static List<Path> shards(Path directory) throws IOException {
+        List<Path> shards = new ArrayList<>();
+        if (! Files.isDirectory(directory)) return shards;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "shard-*" + EXTENSION)) {
+            for (Path file : files) shards.add(file);
+        }
+        shards.sort(null);
+        return shards;
+    }
+
+    /**
+     * Appends records to new shards of a directory, numbered after any that are
+     * already there, starting a new shard every recordsPerShard records.
+     */
+    static final class Writer implements AutoCloseable {
+
+        private final Path directory;
+        private final long shardBytes;
+
+        private final Object lock = new Object();
+        private ByteBuffer filling = ByteBuffer.allocateDirect(BUFFER_BYTES);
+        private ByteBuffer free = ByteBuffer.allocateDirect(BUFFER_BYTES);   // null while the writer has it
+        private ByteBuffer full;                                        // handed to the writer, not yet taken
+        private boolean closing;
+        private IOException failure;
+        private long records;
+
+        // Writer thread only
+        private int nextShard;
+        private FileChannel channel;
+        private long channelBytes;
+
+        private final Thread thread;
+
+        Writer(Path directory, long recordsPerShard) throws IOException {
+            this.directory = Files.createDirectories(directory);
+            this.shardBytes = Math.max(1, recordsPerShard) * RECORD_BYTES;
+            List<Path> existing = shards(directory);
+            if (! existing.isEmpty()) {
+                String last = existing.get(existing.size() - 1).getFileName().toString();
+                nextShard = Integer.parseInt(last.substring(6, last.length() - EXTENSION.length())) + 1;
+            }
+            thread = new Thread(this::run, "training-writer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /** Appends the records between records' position and limit, which must be whole records. */
+        void write(ByteBuffer records) throws IOException, InterruptedException {
+            int n = records.remaining() / RECORD_BYTES;
+            synchronized (lock) {
+                if (closing) throw new IllegalStateException("writer is closed");
+                while (records.hasRemaining()) {
+                    if (failure != null) throw failure;
+                    if (! filling.hasRemaining()) {
+                        while (free == null && failure == null) lock.wait();     // both buffers are full
+                        if (failure != null) throw failure;
+                        filling.flip();
+                        full = filling;
+                        filling = free;
+                        free = null;
+                        lock.notifyAll();
+                    }
+                    int chunk = Math.min(records.remaining(), filling.remaining());
+                    ByteBuffer slice = records.duplicate();
+                    slice.limit(slice.position() + chunk);
+                    filling.put(slice);
+                    records.position(records.position() + chunk);
+                }
+                this.records += n;
+            }
+        }
+
+        /** Records written or queued so far. */
+        long records() {
+            synchronized (lock) {
+                return records;
+            }
+        }
+
+        /** Writes what is queued, forces the last shard to disk and stops the writer thread. */
+        @Override
+        public void close() throws IOException {
+            try {
+                synchronized (lock) {
+                    while (full != null && failure == null) lock.wait();
+                    if (! closing && failure == null) {
+                        filling.flip();
+                        full = filling;
+                        filling = null;
+                    }
+                    closing = true;
+                    lock.notifyAll();
+                }
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (lock) {
+                if (failure != null) throw failure;
+            }
+        }
+
+        private void run() {
+            while (true) {
+                ByteBuffer buf;
+                synchronized (lock) {
+                    try {
+                        while (full == null && ! closing) lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (full == null) break;
+                    buf = full;
+                    full = null;
+                }
+                try {
+                    writeOut(buf);
+                } catch (IOException e) {
+                    synchronized (lock) {
+                        if (failure == null) failure = e;
+                    }
+                }
+                buf.clear();
+                synchronized (lock) {
+                    if (filling == null) filling = buf;                 // closing: nothing more will be put
+                    else free = buf;
+                    lock.notifyAll();
+                }
+            }
+            try {
+                if (channel != null) {
+                    channel.force(false);
+                    channel.close();
+                }
+            } catch (IOException e) {
+                synchronized (lock) {
+                    if (failure == null) failure = e;
+                }
+            }
+        }
+
+        /* Writes buf to the current shard, moving on to the next one at a shard boundary. */
+        private void writeOut(ByteBuffer buf) throws IOException {
+            while (buf.hasRemaining()) {
+                if (channel == null || channelBytes == shardBytes) {
+                    if (channel != null) {
+                        channel.force(false);
+                        channel.close();
+                    }
+                    channel = FileChannel.open(shard(directory, nextShard++), StandardOpenOption.CREATE_NEW,
+                            StandardOpenOption.WRITE);
+                    channelBytes = 0;
+                }
+                ByteBuffer part = buf.duplicate();
+                part.limit(part.position() + (int) Math.min(buf.remaining(), shardBytes - channelBytes));
+                while (part.hasRemaining()) channelBytes += channel.write(part);
+                buf.position(part.position());
+            }
+        }
+    }
+
+    /**
+     * Every record of a directory's shards, memory-mapped, by index 0..size()-1.
+     * A partly written last record of a shard is left out. Safe to read from
+     * any number of threads.
+     */
+    static final class Reader implements AutoCloseable {
+
+        private final MappedByteBuffer[] maps;
+        private final long[] starts;                                    // first record of each shard, then the total
+
+        Reader(Path directory) throws IOException {
+            List<Path> files = shards(directory);
+            maps = new MappedByteBuffer[files.size()];
+            starts = new long[files.size() + 1];
+            for (int i = 0; i < maps.length; i++) {
+                try (FileChannel channel = FileChannel.open(files.get(i), StandardOpenOption.READ)) {
+                    long size = channel.size() / RECORD_BYTES * RECORD_BYTES;
+                    if (size > Integer.MAX_VALUE) throw new IOException(files.get(i) + " is over 2 GB");
+                    maps[i] = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                    maps[i].order(ByteOrder.LITTLE_ENDIAN);
+                    starts[i + 1] = starts[i] + size / RECORD_BYTES;
+                }
+            }
+        }
+
+        long size() {
+            return starts[maps.length];
+        }
+
+        /** Fills records with indexes drawn uniformly at random, for one training batch. */
+        void batch(long[] records, SplittableRandom random) {
+            for (int i = 0; i < records.length; i++) records[i] = random.nextLong(size());
+        }
+
+        long occupied(long record) {
+            return map(record).getLong(offset(record));
+        }
+
+        int sideToMove(long record) {
+            return map(record).get(offset(record) + 24) & 1;
+        }
+
+        /** The search score in centipawns for the side to move. */
+        int score(long record) {
+            return map(record).getShort(offset(record) + 26);
+        }
+
+        /** BLACK_WINS, DRAW or WHITE_WINS. */
+        int result(long record) {
+            return map(record).get(offset(record) + RESULT_OFFSET);
+        }
+
+        /**
+         * Writes the Network inputs (piece * 64 + square, from white's view) of
+         * record's pieces into inputs and returns how many there are.
+         */
+        int inputs(long record, int[] inputs) {
+            ByteBuffer map = map(record);
+            int offset = offset(record);
+            long occupied = map.getLong(offset);
+            int n = 0;
+            while (occupied != 0) {
+                int sq = Long.numberOfTrailingZeros(occupied);
+                occupied &= occupied - 1;
+                int piece = map.get(offset + 8 + (n >> 1)) >> (4 * (n & 1)) & 0xF;
+                inputs[n++] = piece * 64 + sq;
+            }
+            return n;
+        }
+
+        /** Sets pos to record's position. */
+        void position(long record, Position pos) {
+            ByteBuffer map = map(record);
+            int offset = offset(record);
+            int[] inputs = new int[32];
+            int n = inputs(record, inputs);
+            pos.clear();
+            for (int i = 0; i < n; i++) pos.put(inputs[i] & 63, inputs[i] >> 6);
+            int flags = map.get(offset + 24);
+            int ep = map.get(offset + 25);
+            pos.sideToMove = flags & 1;
+            pos.castling = flags >> 1 & 0xF;
+            pos.epSquare = ep == 0 ? -1 : (pos.sideToMove == Piece.WHITE ? 40 : 16) + ep - 1;
+            pos.halfmoveClock = map.get(offset + 29) & 0xFF;
+            pos.fullmoveNumber = map.getShort(offset + 30);
+            pos.hash = pos.computeHash();
+        }
+
+        private ByteBuffer map(long record) {
+            return maps[shardOf(record)];
+        }
+
+        private int offset(long record) {
+            return (int) (record - starts[shardOf(record)]) * RECORD_BYTES;
+        }
+
+        private int shardOf(long record) {
+            if (record < 0 || record >= size()) throw new IndexOutOfBoundsException("record " + record);
+            int i = Arrays.binarySearch(starts, record);
+            if (i < 0) return -i - 2;
+            while (starts[i + 1] == record) i++;                        // skip empty shards
+            return i;
+        }
+
+        @Override
+        public void close() {
+            Arrays.fill(maps, null);                                    // unmapped once collected
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package chess;
+
+/**
+ * Fixed-size hash table of search results, shared by any number of search
+ * threads without locks.
+ *
+ * Entries live in one preallocated long[] as (key ^ data, data) pairs, four to
+ * a 64-byte bucket. A reader recomputes key ^ data and only trusts the entry
+ * if it matches its own key, so an entry torn by two threads writing at once
+ * reads as a miss instead of as wrong data. Probing allocates nothing.
+ *
+ * The data word packs move (16 bits), score (16), depth (8), bound (2) and
+ * the search generation (6) that is used to age out stale entries.
+ */
+final class TranspositionTable {
+
+    static final int UPPER = 1;                         // score is at most the stored value (failed low)
+    static final int LOWER = 2;                         // score is at least the stored value (failed high)
+    static final int EXACT = 3;
+
+    private static final int BUCKET_ENTRIES = 4;
+    private static final int BUCKET_LONGS = BUCKET_ENTRIES * 2;
+
+    private final long[] table;
+    private final int bucketMask;
+    private int generation;
+
+    TranspositionTable(int megabytes) {
+        long buckets = Math.max(1, ((long) megabytes << 20) / (BUCKET_LONGS * 8));
+        int size = Integer.highestOneBit((int) Math.min(buckets, 1 << 26));     // power of two, at most 4 GB
+        table = new long[size * BUCKET_LONGS];
+        bucketMask = size - 1;
+    }
+
+    int megabytes() {
+        return (int) ((long) table.length * 8 >> 20);
+    }
+
+    /** Marks the start of a new search so entries from older ones are replaced first. */
+    void newSearch() {
+        generation = (generation + 1) & 0x3F;
+    }
+
+    void clear() {
+        java.util.Arrays.fill(table, 0L);
+        generation = 0;
+    }
+
+    /** The data word stored for key, or 0 if there is none. */
+    long probe(long key) {
+        int base = bucket(key);
+        for (int i = base; i < base + BUCKET_LONGS; i += 2) {
+            long data = table[i + 1];
+            if ((table[i] ^ data) == key && data != 0) return data;
+        }
+        return 0L;
+    }
+
+    void store(long key, int move, int score, int depth, int bound) {
+
+        int base = bucket(key);
+        int victim = base;
+        int worst = Integer.MAX_VALUE;
+
+        for (int i = base; i < base + BUCKET_LONGS; i += 2) {
+            long data = table[i + 1];
+            if ((table[i] ^ data) == key || data == 0) {
+                // Same position: keep the old move if the new result has none, and
+                // don't let a shallow non-exact result overwrite a deeper one
+                if (data != 0) {
+                    if (move == Move.NONE) move = move(data);
+                    if (bound != EXACT && depth < depth(data) - 2 && generation(data) == generation) return;
+                }
+                victim = i;
+                break;
+            }
+            // Otherwise replace the shallowest entry, counting older generations as shallower
+            int age = (generation - generation(data)) & 0x3F;
+            int value = depth(data) - 8 * age;
+            if (value < worst) {
+                worst = value;
+                victim = i;
+            }
+        }
+
+        long data = (move & 0xFFFFL)
+                | ((score & 0xFFFFL) << 16)
+                | ((depth & 0xFFL) << 32)
+                | ((long) bound << 40)
+                | ((long) generation << 42);
+        table[victim] = key ^ data;
+        table[victim + 1] = data;
+    }
+
+    static int move(long data) {
+        return (int) (data & 0xFFFF);
+    }
+
+    static int score(long data) {
+        return (short) (data >>> 16);
+    }
+
+    static int depth(long data) {
+        return (int) ((data >>> 32) & 0xFF);
+    }
+
+    static int bound(long data) {
+        return (int) ((data >>> 40) & 3);
+    }
+
+    private static int generation(long data) {
+        return (int) ((data >>> 42) & 0x3F);
+    }
+
+    /** Permille of a sample of entries written by the current search, as reported by UCI "hashfull". */
+    int hashfull() {
+        int used = 0;
+        int sample = Math.min(1000, table.length / 2);
+        for (int i = 0; i < sample; i++) {
+            long data = table[i * 2 + 1];
+            if (data != 0 && generation(data) == generation) used++;
+        }
+        return sample == 0 ? 0 : used * 1000 / sample;
+    }
+
+    private int bucket(long key) {
+        return ((int) (key >>> 32) & bucketMask) * BUCKET_LONGS;
+    }
+}
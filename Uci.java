@@ -0,0 +1,306 @@
+package chess;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Universal Chess Interface front end, started with "java chess.Game uci".
+ *
+ * The calling thread only reads commands; searches run on the engine's own
+ * threads and report back through Search.Listener, so "stop" and "isready"
+ * are answered while a search is running. The search checks its stop flag
+ * every 2048 nodes, which is well under a millisecond.
+ */
+final class Uci {
+
+    private static final String NAME = "Chess_Game";
+    private static final int MAX_THREADS = 256;
+    private static final int MAX_HASH = 4096;                       // MB, the table's own limit
+
+    private final BufferedReader in;
+    private final PrintStream out;
+
+    private final Engine engine = new Engine(1, 16);
+    private final Position position = new Position();
+
+    private OpeningBook book;                                       // opened from BookFile, played when OwnBook is set
+    private boolean ownBook = true;
+    private Tablebase tablebase;                                    // opened from TablebasePath
+
+    private CompletableFuture<Void> searching;                      // null when idle
+    private Search.Limits limits;                                   // the last search's, stopped directly: a "stop" before
+                                                                    // the engine thread has started it must not be lost
+    private boolean infinite;                                       // hold bestmove until "stop"
+    private Search.Limits pondering;                                // "go ponder": hold bestmove until "ponderhit" or "stop"
+    private Search.Result held;
+
+    Uci(InputStream in, PrintStream out) {
+        this.in = new BufferedReader(new InputStreamReader(in));
+        this.out = out;
+        position.setFen(Position.START_FEN);
+    }
+
+    /** Reads commands until "quit" or end of input. */
+    void run() throws IOException {
+        String line;
+        while ((line = in.readLine()) != null) {
+            String[] tokens = line.trim().split("\\s+");
+            if (tokens[0].isEmpty()) continue;
+
+            try {
+                if (! execute(tokens)) return;
+            } catch (NumberFormatException e) {
+                send("info string bad number in: " + line);
+            }
+        }
+        stop();
+        engine.shutdown();
+    }
+
+    /* Runs one command; returns false on "quit". */
+    private boolean execute(String[] tokens) {
+        switch (tokens[0]) {
+            case "uci":
+                send("id name " + NAME);
+                send("id author Alexander Hamme");
+                send("option name Hash type spin default 16 min 1 max " + MAX_HASH);
+                send("option name Threads type spin default 1 min 1 max " + MAX_THREADS);
+                send("option name OwnBook type check default true");
+                send("option name BookFile type string default <empty>");
+                send("option name TablebasePath type string default <empty>");
+                send("option name EvalFile type string default <empty>");
+                send("option name Ponder type check default true");
+                send("uciok");
+                break;
+            case "isready": send("readyok"); break;
+            case "ucinewgame": waitForSearch(); engine.table().clear(); break;
+            case "setoption": waitForSearch(); setOption(tokens); break;
+            case "position": waitForSearch(); setPosition(tokens); break;
+            case "go": waitForSearch(); go(tokens); break;
+            case "stop": stop(); break;
+            case "ponderhit": ponderHit(); break;
+            case "metrics":                                         // not UCI: the Metrics registry, for monitoring
+                for (String line : Metrics.text().split("\n")) send("info string " + line);
+                break;
+            case "quit":
+                stop();
+                engine.shutdown();
+                return false;
+            default: send("info string unknown command " + tokens[0]);
+        }
+        return true;
+    }
+
+    private void setOption(String[] tokens) {
+        String name = null;
+        String value = null;
+        for (int i = 1; i < tokens.length - 1; i++) {
+            if (tokens[i].equals("name")) name = tokens[i + 1];
+            if (tokens[i].equals("value")) value = tokens[i + 1];
+        }
+        if (name == null || value == null) return;
+
+        try {
+            switch (name.toLowerCase()) {
+                case "hash": engine.setHash(Math.max(1, Math.min(MAX_HASH, Integer.parseInt(value)))); break;
+                case "threads": engine.setThreads(Math.max(1, Math.min(MAX_THREADS, Integer.parseInt(value)))); break;
+                case "ownbook":
+                    ownBook = value.equalsIgnoreCase("true");
+                    engine.setBook(ownBook ? book : null);
+                    break;
+                case "bookfile": openBook(value); break;
+                case "tablebasepath": openTablebase(value); break;
+                case "evalfile": openNetwork(value); break;
+                case "ponder": break;                               // the GUI decides when to ponder
+                default: send("info string unknown option " + name);
+            }
+        } catch (NumberFormatException e) {
+            send("info string bad value " + value + " for " + name);
+        }
+    }
+
+    private void openBook(String file) {
+        engine.setBook(null);
+        try {
+            if (book != null) book.close();
+            book = null;
+            if (! file.equals("<empty>")) book = OpeningBook.open(Paths.get(file));
+        } catch (IOException e) {
+            send("info string could not open book " + file + ": " + e.getMessage());
+        }
+        engine.setBook(ownBook ? book : null);
+    }
+
+    private void openTablebase(String directory) {
+        engine.setTablebase(null);
+        try {
+            if (tablebase != null) tablebase.close();
+            tablebase = null;
+            if (! directory.equals("<empty>")) {
+                tablebase = Tablebase.open(Paths.get(directory));
+                send("info string " + tablebase.size() + " tables found in " + directory);
+            }
+        } catch (IOException e) {
+            send("info string could not open tablebases in " + directory + ": " + e.getMessage());
+        }
+        engine.setTablebase(tablebase);
+    }
+
+    private void openNetwork(String file) {
+        Network network = null;
+        try {
+            if (! file.equals("<empty>")) {
+                network = Network.load(Paths.get(file));
+                send("info string network " + file + " with " + network.hidden + " hidden units");
+            }
+        } catch (IOException e) {
+            send("info string could not load network " + file + ": " + e.getMessage());
+        }
+        engine.setNetwork(network);
+    }
+
+    /* position [startpos | fen <6 fields>] [moves m1 m2 ...] */
+    private void setPosition(String[] tokens) {
+        int i = 1;
+        try {
+            if (i < tokens.length && tokens[i].equals("startpos")) {
+                position.setFen(Position.START_FEN);
+                i++;
+            } else if (i < tokens.length && tokens[i].equals("fen")) {
+                StringBuilder fen = new StringBuilder();
+                for (i++; i < tokens.length && ! tokens[i].equals("moves"); i++) fen.append(tokens[i]).append(' ');
+                position.setFen(fen.toString().trim());
+            }
+        } catch (IllegalArgumentException e) {
+            send("info string bad fen: " + e.getMessage());
+            position.setFen(Position.START_FEN);
+            return;
+        }
+
+        if (i < tokens.length && tokens[i].equals("moves")) {
+            for (i++; i < tokens.length; i++) {
+                int move = Move.parse(position, tokens[i]);
+                if (move == Move.NONE) {
+                    send("info string illegal move " + tokens[i]);
+                    return;
+                }
+                position.makeMove(move);                            // kept on the undo stack for repetitions
+            }
+        }
+    }
+
+    /* go [depth N] [nodes N] [movetime MS] [wtime MS btime MS winc MS binc MS movestogo N] [infinite] [ponder] */
+    private void go(String[] tokens) {
+
+        Search.Limits limits = new Search.Limits();
+        long time = -1, increment = 0;
+        int movesToGo = 0;
+        boolean ponder = false;
+        infinite = false;
+        pondering = null;
+        held = null;
+
+        for (int i = 1; i < tokens.length; i++) {
+            String value = i + 1 < tokens.length ? tokens[i + 1] : "0";
+            switch (tokens[i]) {
+                case "depth": limits.depth = Math.max(1, Math.min(Search.MAX_PLY - 1, Integer.parseInt(value))); i++; break;
+                case "nodes": limits.nodes = Long.parseLong(value); i++; break;
+                case "movetime": limits.timeMillis = Long.parseLong(value); i++; break;
+                case "wtime": if (position.sideToMove == Piece.WHITE) time = Long.parseLong(value); i++; break;
+                case "btime": if (position.sideToMove == Piece.BLACK) time = Long.parseLong(value); i++; break;
+                case "winc": if (position.sideToMove == Piece.WHITE) increment = Long.parseLong(value); i++; break;
+                case "binc": if (position.sideToMove == Piece.BLACK) increment = Long.parseLong(value); i++; break;
+                case "movestogo": movesToGo = Integer.parseInt(value); i++; break;
+                case "infinite": infinite = true; break;
+                case "ponder": ponder = true; break;
+                default: break;
+            }
+        }
+        if (time >= 0) {
+            Search.Limits clock = Search.Limits.clock(time, increment, 0, movesToGo);
+            limits.timeMillis = clock.timeMillis;
+            limits.softMillis = clock.softMillis;
+        }
+        if (ponder) {
+            limits.pondering = true;                                // the time limits start at "ponderhit"
+            pondering = limits;
+        }
+
+        long start = System.currentTimeMillis();
+        limits.listener = result -> info(result, System.currentTimeMillis() - start);
+
+        this.limits = limits;
+        searching = engine.thinkAsync(position, limits).thenAccept(result -> finished(result, limits));
+    }
+
+    private synchronized void finished(Search.Result result, Search.Limits limits) {
+        if ((infinite || limits.pondering) && ! limits.stopped) {
+            held = result;                                          // answered only after "stop", or "ponderhit"
+            return;
+        }
+        bestMove(result);
+    }
+
+    /* The opponent played the predicted move: the search goes on with its clock limits, or answers now if it is done. */
+    private synchronized void ponderHit() {
+        if (pondering == null) return;
+        pondering.ponderHit();
+        pondering = null;
+        if (held != null) bestMove(held);
+        held = null;
+    }
+
+    private void stop() {
+        if (searching == null) return;
+        limits.stop();                                              // Search checks it on entry too
+        synchronized (this) {
+            infinite = false;
+            pondering = null;
+            if (held != null) bestMove(held);
+            held = null;
+        }
+        searching.join();
+        searching = null;
+    }
+
+    /* Lets a running search finish before the position or the engine changes; an infinite or pondering one is stopped. */
+    private void waitForSearch() {
+        if (searching == null) return;
+        if (infinite || pondering != null) {
+            stop();
+            return;
+        }
+        searching.join();
+        searching = null;
+    }
+
+    private void bestMove(Search.Result result) {
+        if (result.ttProbes > 0) {
+            send("info string tt probes " + result.ttProbes + " hits " + result.ttHits
+                    + String.format(" hitrate %.1f%%", 100 * result.ttHitRate()));
+        }
+        String line = "bestmove " + Move.toString(result.bestMove);
+        if (result.pv.length > 1) line += " ponder " + Move.toString(result.pv[1]);
+        send(line);
+    }
+
+    private void info(Search.Result result, long millis) {
+        long nodes = engine.nodes();
+        send("info depth " + result.depth + " score " + result.scoreString() + " nodes " + nodes
+                + " nps " + (nodes * 1000 / Math.max(1, millis)) + " time " + millis
+                + " hashfull " + engine.table().hashfull() + " tbhits " + engine.tablebaseHits()
+                + " pv " + result.pvString());
+    }
+
+    private void send(String line) {
+        synchronized (out) {
+            out.println(line);
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package chess;
+
+/**
+ * Random keys for Zobrist hashing. A position's hash is the XOR of the keys of
+ * everything in it, so a move updates it with a handful of XORs.
+ *
+ * The keys come from a fixed seed and must never change: hashes are stored in
+ * files such as the opening book.
+ */
+final class Zobrist {
+
+    static final long[][] PIECES = new long[12][64];
+    static final long[] CASTLING = new long[16];
+    static final long[] EP_FILE = new long[8];
+    static final long SIDE;                             // XORed in when black is to move
+
+    private static long seed = 0x2545F4914F6CDD1DL;
+
+    static {
+        for (long[] keys : PIECES) {
+            for (int sq = 0; sq < 64; sq++) keys[sq] = nextRandom();
+        }
+        for (int i = 0; i < CASTLING.length; i++) CASTLING[i] = nextRandom();
+        for (int i = 0; i < EP_FILE.length; i++) EP_FILE[i] = nextRandom();
+        SIDE = nextRandom();
+    }
+
+    private Zobrist() {}
+
+    /* xorshift64* */
+    private static long nextRandom() {
+        seed ^= seed >>> 12;
+        seed ^= seed << 25;
+        seed ^= seed >>> 27;
+        return seed * 0x2545F4914F6CDD1DL;
+    }
+}